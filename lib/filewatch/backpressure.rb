@@ -0,0 +1,69 @@
+# encoding: utf-8
+require "concurrent/atomic/atomic_fixnum"
+
+module FileWatch
+  # Tracks how long the events pushed downstream waited on a full queue, the watch loop reduces its work accordingly.
+  #
+  # The input reports the pushes that blocked (see #blocked). Once per round the level is updated: it goes up one
+  # step when pushes were blocked for a significant part of the round and comes back down one step per round
+  # without blocked pushes, so reading ramps back up gradually as the queue drains. When throttled (level > 0):
+  # - the bytes read from a file in a round are reduced (halved for every level)
+  # - files that are not active are not restat-ed and no new files are opened
+  # - discovery is paused
+  class Backpressure
+    MAX_LEVEL = 4
+    # pushes taking less are not blocked
+    BLOCKED_PUSH_NANOS = 5_000_000
+    # the part of a round pushes have to be blocked for to throttle more
+    BLOCKED_RATIO = 0.1
+
+    attr_reader :level
+
+    def initialize
+      @blocked_nanos = Concurrent::AtomicFixnum.new(0)
+      @level = 0
+      @updated_at = now
+    end
+
+    # called by the input (possibly from several threads) with the time a push took
+    def blocked(nanos)
+      @blocked_nanos.increment(nanos) if nanos >= BLOCKED_PUSH_NANOS
+    end
+
+    # called by the watch loop at the start of a round
+    # @return the (new) level
+    def update
+      at = now
+      blocked = @blocked_nanos.value
+      @blocked_nanos.decrement(blocked)
+      elapsed = at - @updated_at
+      @updated_at = at
+      if elapsed > 0 && blocked >= elapsed * BLOCKED_RATIO
+        @level = [@level + 1, MAX_LEVEL].min
+      elsif blocked.zero?
+        @level = [@level - 1, 0].max
+      end
+      @level
+    end
+
+    def throttled?
+      @level > 0
+    end
+
+    # @param bytes [Integer, nil] what may be read in a round, nil means no limit
+    # @param minimum [Integer] what is still read however throttled (e.g. a chunk), a file is slowed down not stopped
+    # @return what may be read when throttled, halved for every level (no limit starts at FILE_READ_BUDGET)
+    def read_budget(bytes, minimum = 1)
+      return bytes unless throttled?
+      return FILE_READ_BUDGET >> (@level - 1) if bytes.nil?
+      return bytes if bytes <= minimum
+      [bytes >> @level, minimum].max
+    end
+
+    private
+
+    def now
+      Process.clock_gettime(Process::CLOCK_MONOTONIC, :nanosecond)
+    end
+  end
+end
@@ -7,6 +7,25 @@ require "pathname"
 module FileWatch
   # the number of bytes read from a file during the read phase
   FILE_READ_SIZE = 32768
+  # the size of a memory mapped window (read mode with `file_read_mmap`)
+  FILE_MAP_SIZE = 16 * 1024 * 1024
+  # the decompressed bytes read from an archive (read mode) in between sincedb checkpoints
+  ARCHIVE_CHECKPOINT_SIZE = 8 * 1024 * 1024
+  # the decompressed bytes of an archive kept in memory while validating it (`check_archive_validity`)
+  ARCHIVE_SPOOL_SIZE = 16 * 1024 * 1024
+  # the bytes read from one file per round (tail mode) when several `read_workers` are used and no budget is set
+  FILE_READ_BUDGET = 4 * 1024 * 1024
+  # the bytes hashed (from the start of a file) to identify it with `file_identity => "fingerprint"`
+  FINGERPRINT_SIZE = 1024
+  # the bytes read from all files in a round (tail mode) with `file_read_sizing => "adaptive"`
+  ADAPTIVE_READ_BUDGET = 32 * 1024 * 1024
+  # the bounds of the chunk size with `file_read_sizing => "adaptive"`
+  ADAPTIVE_CHUNK_MIN = 4 * 1024
+  ADAPTIVE_CHUNK_MAX = 1024 * 1024
+  # with the `watch_service` discovery backend files are globbed every `discover_interval` x this factor
+  DISCOVER_EVENTS_GLOB_FACTOR = 10
+  # the files from the warm start snapshot discovered in a round, see WarmStart
+  WARM_START_BATCH = 1000
   # the largest fixnum in ruby
   # this is used in the read loop e.g.
   # @opts[:file_chunk_count].times do
@@ -32,6 +51,16 @@ module FileWatch
     PathStatClass = Stat::Generic
     FileOpener = ::File
   end
+  require_relative "stat/fingerprint"
+
+  module Stat
+    # @return the stat of the file at the path, the watched file takes its sincedb key from it
+    def self.create(pathname, settings)
+      stat = PathStatClass.new(pathname)
+      return stat unless settings.file_identity == "fingerprint"
+      Fingerprint.new(pathname, stat, settings.fingerprint_bytes, settings.fingerprint_short_files)
+    end
+  end
 
   # Structs can be used as hash keys because they compare by value
   # this is used as the key for values in the sincedb hash
@@ -41,7 +70,14 @@ module FileWatch
     end
   end
 
-  BufferExtractResult = Struct.new(:lines, :warning, :additional)
+  # bytes_consumed is the byte count of all lines (and their delimiters)
+  BufferExtractResult = Struct.new(:lines, :warning, :additional, :bytes_consumed) do
+    # @return the bytes consumed by the first count lines e.g. when not all lines were accepted
+    def bytes_consumed_by(count, delimiter_byte_size)
+      return bytes_consumed if count == lines.size
+      lines.take(count).inject(0) { |sum, line| sum + line.bytesize + delimiter_byte_size }
+    end
+  end
 
   class LoopControlResult
     attr_reader :count, :size, :more
@@ -71,6 +107,12 @@ module FileWatch
   require_relative "sincedb_value"
   require_relative "sincedb_record_serializer"
   require_relative "watched_files_collection"
+  require_relative "reader_pool"
+  require_relative "read_budget"
+  require_relative "backpressure"
+  require_relative "handle_cache"
+  require_relative "sincedb_flusher"
+  require_relative "warm_start"
   require_relative "sincedb_collection"
   require_relative "watch"
   require_relative "watched_file"
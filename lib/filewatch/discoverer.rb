@@ -9,6 +9,9 @@ module FileWatch
     # associated with a sincedb entry if one can be found
     include LogStash::Util::Loggable
 
+    # Dir.glob like matching of a path
+    GLOB_MATCH_FLAGS = File::FNM_PATHNAME | File::FNM_EXTGLOB
+
     attr_reader :watched_files_collection
 
     def initialize(watched_files_collection, sincedb_collection, settings)
@@ -18,23 +21,105 @@ module FileWatch
       @sincedb_collection = sincedb_collection
       @settings = settings
       @settings.exclude.each { |p| @exclude << p }
+      # expands the globs (in parallel) into the files not in the collection yet
+      @path_finder = PathFinder.new(@exclude.to_a, @settings.shared_scans)
+      # with the watch_service backend new files are discovered from directory events (inotify on Linux)
+      @directory_watcher = DirectoryWatcher.new if @settings.discovery_backend == "watch_service"
+      # the files found on startup that are in the warm start snapshot, discovered a batch at a time
+      if @settings.warm_start
+        if FileHelper.device?(@settings.sincedb_path)
+          logger.info("sincedb_path is a device, warm start is disabled", :sincedb_path => @settings.sincedb_path)
+        else
+          @warm_start = WarmStart.new(@settings.sincedb_path)
+        end
+      end
+      @deferred = {}
     end
 
     def add_path(path)
       return if @watching.member?(path)
       @watching << path
+      register_directories(path) if event_driven?
       discover_files_new_path(path)
       self
     end
 
     def discover
-      @watching.each do |path|
-        discover_files_ongoing(path)
+      @settings.metrics.time(:"discovery.glob") do
+        # directories might have been created since, these are picked up by the glob
+        @watching.each { |path| register_directories(path) } if event_driven?
+        files = discover_files_ongoing(@watching.to_a)
+        @settings.metrics.gauge(:"discovery.files", files)
+      end
+    end
+
+    def event_driven?
+      !@directory_watcher.nil?
+    end
+
+    def deferred?
+      !@deferred.empty?
+    end
+
+    # discovers the next batch of files known from the warm start snapshot
+    def discover_deferred
+      return if @deferred.empty?
+      batch = []
+      @deferred.each_key do |path|
+        break if batch.size == WARM_START_BATCH
+        batch << path
+      end
+      batch.each do |path|
+        @deferred.delete(path)
+        discover_file(path, false)
+      end
+      @settings.metrics.gauge(:"discovery.deferred", @deferred.size)
+      @warm_start.discovered if @deferred.empty?
+    end
+
+    # discovers the files created (or renamed to a watched path) since the last call
+    # deleted files need no handling here, processing detects these when the file is stat-ed
+    def discover_events
+      return unless event_driven?
+      # the directories are registered again after the watcher was closed (e.g. subscribing again)
+      @watching.each { |path| register_directories(path) } if @directory_watcher.size.zero?
+      @directory_watcher.poll.each do |kind, file|
+        @settings.metrics.increment(:"discovery.events")
+        case kind
+        when :create
+          next unless @watching.any? { |path| File.fnmatch?(path, file, GLOB_MATCH_FLAGS) }
+          next unless File.file?(file)
+          logger.trace("discover_events: created", :path => file)
+          discover_file(file, true)
+        when :overflow
+          logger.debug("discover_events: events were lost, discovering all files")
+          discover
+          return
+        end
       end
     end
 
+    def close
+      @directory_watcher.close if event_driven?
+      @warm_start.write(@watched_files_collection.files, @deferred.keys) if @warm_start
+    end
+
     private
 
+    def register_directories(path)
+      # a trailing separator makes the glob only match directories, e.g. /var/log/**/ all directories under /var/log
+      Dir.glob(File.join(File.dirname(path), "")).each do |dir|
+        begin
+          if @directory_watcher.register(dir)
+            logger.trace("register_directories: watching", :directory => dir)
+          end
+        rescue IOError => e
+          logger.warn("register_directories: unable to watch directory, files are still discovered periodically",
+                      :directory => dir, :exception => e.class, :message => e.message)
+        end
+      end
+    end
+
     def can_exclude?(watched_file, new_discovery)
       @exclude.each do |pattern|
         if watched_file.pathname.basename.fnmatch?(pattern)
@@ -49,59 +134,75 @@ module FileWatch
     end
 
     def discover_files_new_path(path)
-      discover_any_files(path, false)
+      return discover_any_files([path], false) if @warm_start.nil?
+      new_files, found = @path_finder.find([path], @watched_files_collection)
+      new_files, known = @warm_start.split(new_files.reject { |file| @deferred.key?(file) })
+      logger.trace("discover_files: warm start", :count => found, :new => new_files.size, :deferred => known.size)
+      known.each { |file| @deferred[file] = true }
+      new_files.each { |file| discover_file(file, false) }
+      found
     end
 
-    def discover_files_ongoing(path)
-      discover_any_files(path, true)
+    def discover_files_ongoing(paths)
+      discover_any_files(paths, true)
     end
 
-    def discover_any_files(path, ongoing)
-      fileset = Dir.glob(path).select { |f| File.file?(f) }
-      logger.trace("discover_files", :count => fileset.size)
-      fileset.each do |file|
-        new_discovery = false
-        watched_file = @watched_files_collection.get(file)
-        if watched_file.nil?
-          pathname = Pathname.new(file)
-          begin
-            path_stat = PathStatClass.new(pathname)
-          rescue Errno::ENOENT
-            next
-          end
-          watched_file = WatchedFile.new(pathname, path_stat, @settings)
-          new_discovery = true
+    # @return the number of files matched, including the ones already watched
+    def discover_any_files(paths, ongoing)
+      new_files, found = @path_finder.find(paths, @watched_files_collection)
+      logger.trace("discover_files", :count => found, :new => new_files.size)
+      new_files.each do |file|
+        # found on startup, discovered in its turn
+        next if @deferred.key?(file)
+        discover_file(file, ongoing)
+      end
+      found
+    end
+
+    def discover_file(file, ongoing)
+      new_discovery = false
+      watched_file = @watched_files_collection.get(file)
+      if watched_file.nil?
+        pathname = Pathname.new(file)
+        begin
+          path_stat = Stat.create(pathname, @settings)
+        rescue Errno::ENOENT
+          return
         end
-        # if it already unwatched or its excluded then we can skip
-        next if watched_file.unwatched? || can_exclude?(watched_file, new_discovery)
-
-        logger.trace? && logger.trace("handling:", :new_discovery => new_discovery, :watched_file => watched_file.details)
-
-        if new_discovery
-          watched_file.initial_completed if ongoing
-          # initially when the sincedb collection is filled with records from the persistence file
-          # each value is not associated with a watched file
-          # a sincedb_value can be:
-          #   unassociated
-          #   associated with this watched_file
-          #   associated with a different watched_file
-          if @sincedb_collection.associate(watched_file)
-            if watched_file.file_ignorable?
-              logger.trace("skipping file because it was last modified more than #{@settings.ignore_older} seconds ago", :path => file)
-              # on discovery ignorable watched_files are put into the ignored state and that
-              # updates the size from the internal stat
-              # so the existing contents are not read.
-              # because, normally, a newly discovered file will
-              # have a watched_file size of zero
-              # they are still added to the collection so we know they are there for the next periodic discovery
-              watched_file.ignore_as_unread
-            end
-            # now add the discovered file to the watched_files collection and adjust the sincedb collections
-            @watched_files_collection.add(watched_file)
+        # too short to be fingerprinted, it is picked up by a later discovery once it grew
+        return if path_stat.pending?
+        watched_file = WatchedFile.new(pathname, path_stat, @settings)
+        new_discovery = true
+      end
+      # if it already unwatched or its excluded then we can skip
+      return if watched_file.unwatched? || can_exclude?(watched_file, new_discovery)
+
+      logger.trace? && logger.trace("handling:", :new_discovery => new_discovery, :watched_file => watched_file.details)
+
+      if new_discovery
+        watched_file.initial_completed if ongoing
+        # initially when the sincedb collection is filled with records from the persistence file
+        # each value is not associated with a watched file
+        # a sincedb_value can be:
+        #   unassociated
+        #   associated with this watched_file
+        #   associated with a different watched_file
+        if @sincedb_collection.associate(watched_file)
+          if watched_file.file_ignorable?
+            logger.trace("skipping file because it was last modified more than #{@settings.ignore_older} seconds ago", :path => file)
+            # on discovery ignorable watched_files are put into the ignored state and that
+            # updates the size from the internal stat
+            # so the existing contents are not read.
+            # because, normally, a newly discovered file will
+            # have a watched_file size of zero
+            # they are still added to the collection so we know they are there for the next periodic discovery
+            watched_file.ignore_as_unread
           end
+          # now add the discovered file to the watched_files collection and adjust the sincedb collections
+          @watched_files_collection.add(watched_file)
         end
-        # at this point the watched file is created, is in the db but not yet opened or being processed
       end
+      # at this point the watched file is created, is in the db but not yet opened or being processed
     end
   end
 end
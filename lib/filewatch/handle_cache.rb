@@ -0,0 +1,76 @@
+# encoding: utf-8
+
+module FileWatch
+  # Limits the files kept open in tail mode when `max_open_files_policy` is "lru" (see Settings).
+  #
+  # All the files are active, only their descriptors are limited to `capacity`: the least recently read files are
+  # closed to make room, they stay active and keep their position, and a closed file that changed gets a descriptor
+  # back and resumes from its position (a seek). Files that have been read fully are closed first. When more files
+  # changed than there are descriptors, the ones read the longest ago are read first so that each gets its turn.
+  #
+  # Only used from the watch loop (thread).
+  class HandleCache
+    attr_reader :capacity
+
+    def initialize(capacity, metrics)
+      @capacity = capacity
+      @metrics = metrics
+      # the files opened, the least recently read first
+      @open = {}.compare_by_identity
+    end
+
+    # called before a file is opened (by the create handlers)
+    def admit(watched_file)
+      make_room(1, nil)
+      @open[watched_file] = true
+    end
+
+    # @param changed [Array<WatchedFile>] the active files to read from this round
+    # @yield each of the files to read that has no descriptor, to be (re)opened
+    # @yieldreturn whether it got opened
+    # @return the files that can be read from (at most capacity of them)
+    def reserve(changed)
+      @open.delete_if { |watched_file, _| !watched_file.file_open? }
+      selected = changed.size > @capacity ? changed.sort_by(&:accessed_at).first(@capacity) : changed
+      closed = selected.reject(&:file_open?)
+      make_room(closed.size, selected) unless closed.empty?
+      closed.each { |watched_file| @open[watched_file] = true if yield(watched_file) }
+      selected.select(&:file_open?)
+    end
+
+    # marks a file as the most recently read
+    def touch(watched_file)
+      return unless @open.delete(watched_file)
+      @open[watched_file] = true
+    end
+
+    def size
+      @open.size
+    end
+
+    private
+
+    def make_room(count, keep)
+      excess = @open.size + count - @capacity
+      return if excess <= 0
+      kept = keep.nil? ? {} : keep.each_with_object({}.compare_by_identity) { |watched_file, set| set[watched_file] = true }
+      # the files read fully go first, files with unread content only if there is no other way
+      [true, false].each do |all_read|
+        evicted = []
+        @open.each_key do |watched_file|
+          break if evicted.size == excess
+          next if kept.key?(watched_file) || (all_read && !watched_file.all_read?)
+          evicted << watched_file
+        end
+        evicted.each do |watched_file|
+          @open.delete(watched_file)
+          next unless watched_file.file_open? # closed in between
+          watched_file.file_close
+          @metrics.increment(:"handles.evicted")
+        end
+        excess -= evicted.size
+        break if excess <= 0
+      end
+    end
+  end
+end
@@ -15,6 +15,7 @@
 #   process_watched(watched_files) - provide specific processing of watched_files in the watched state
 #   process_active(watched_files)  - provide specific processing of watched_files in the active state
 #      These methods can call "handler" methods that delegate to the specific Handler classes.
+#   shutdown - called when the watch loop ends, a Processor stops its ReaderPool (read_workers > 1)
 # TailMode::Handlers module namespace
 #   contains the Handler classes that deals with Tail mode file lifecycle "events".
 #   The TailMode::Handlers::Base
@@ -69,6 +70,11 @@ module FileWatch
       @watch.watch(path)
     end
 
+    # per file lag (bytes not read yet), e.g. when reading is limited by `file_read_budget`
+    def read_lag
+      @watch.read_lag
+    end
+
     def sincedb_write(reason=nil)
       # can be invoked from the file input
       @sincedb_collection.write(reason)
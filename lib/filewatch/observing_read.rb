@@ -10,6 +10,7 @@ module FileWatch
     def subscribe(observer)
       # observer here is the file input
       watch.subscribe(observer, sincedb_collection)
+      sincedb_collection.close
       sincedb_collection.write("read mode subscribe complete - shutting down")
     end
 
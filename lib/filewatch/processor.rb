@@ -1,16 +1,28 @@
 # encoding: utf-8
 require "logstash/util/loggable"
 require 'concurrent/atomic/atomic_reference'
+require 'concurrent/array'
 
 module FileWatch
   class Processor
     include LogStash::Util::Loggable
 
+    # the upper bounds of the read lag buckets, files further behind are counted as over_16mb
+    LAG_BUCKETS = [
+      [64 * 1024, :"lag.files_up_to_64kb"],
+      [1024 * 1024, :"lag.files_up_to_1mb"],
+      [16 * 1024 * 1024, :"lag.files_up_to_16mb"],
+    ].freeze
+
     attr_reader :watch
 
+    # @return [Hash] path => bytes not yet read, for the active files that were behind in the last round
+    attr_reader :read_lag
+
     def initialize(settings)
       @settings = settings
-      @deletable_paths = Concurrent::AtomicReference.new []
+      @deletable_paths = Concurrent::AtomicReference.new Concurrent::Array.new
+      @read_lag = {}.freeze
     end
 
     def add_watch(watch)
@@ -18,24 +30,77 @@ module FileWatch
       self
     end
 
+    # called when the watch loop ends, a processor might need to release resources (e.g. threads)
+    def shutdown
+    end
+
+    # @return true if files were left behind in the last round (which made progress), no need to wait for changes
+    def backlog?
+      @backlog == true
+    end
+
     def clear_deletable_paths
-      @deletable_paths.get_and_set []
+      @deletable_paths.get_and_set Concurrent::Array.new
     end
 
     def add_deletable_path(path)
       @deletable_paths.get << path
     end
 
+    # @return [Array<WatchedFile>] the (ordered) files in the given state
+    def files_with_state(state)
+      @watch.watched_files_collection.files_with_state(state)
+    end
+
+    def metrics
+      @settings.metrics
+    end
+
+    # a histogram (gauges) of the bytes not yet read from the active files, the files behind are kept (read_lag)
+    def record_read_lag(watched_files)
+      buckets = Array.new(LAG_BUCKETS.size + 1, 0)
+      total = max = 0
+      behind = {}
+      watched_files.each do |watched_file|
+        next unless watched_file.active?
+        lag = watched_file.bytes_unread
+        next unless lag > 0
+        behind[watched_file.path] = lag
+        total += lag
+        max = lag if lag > max
+        buckets[LAG_BUCKETS.index { |(bound, _)| lag <= bound } || LAG_BUCKETS.size] += 1
+      end
+      metrics.gauge(:"lag.files", buckets.inject(:+))
+      metrics.gauge(:"lag.bytes", total)
+      metrics.gauge(:"lag.max_bytes", max)
+      LAG_BUCKETS.each_with_index { |(_, name), i| metrics.gauge(name, buckets[i]) }
+      metrics.gauge(:"lag.files_over_16mb", buckets.last)
+      @read_lag = behind.freeze
+    end
+
     def restat(watched_file)
       changed = watched_file.restat!
       if changed
         # the collection (when sorted by modified_at) needs to re-sort every time watched-file is modified,
         # we can perform these update operation while processing files (stat interval) instead of having to
         # re-sort the whole collection every time an entry is accessed
-        @watch.watched_files_collection.update(watched_file)
+        if @resort_pending.nil?
+          @watch.watched_files_collection.update(watched_file)
+        else
+          @resort_pending << watched_file
+        end
       end
     end
 
+    # the files modified while restat-ing in the block are re-sorted at once, after the block
+    def resort_after
+      @resort_pending = []
+      yield
+    ensure
+      pending, @resort_pending = @resort_pending, nil
+      @watch.watched_files_collection.update_all(pending) unless pending.nil? || pending.empty?
+    end
+
     private
 
     def error_details(error, watched_file)
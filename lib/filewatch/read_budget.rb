@@ -0,0 +1,39 @@
+# encoding: utf-8
+
+module FileWatch
+  # Splits the bytes read in a round (tail mode with `file_read_sizing => "adaptive"`) over the files that are behind.
+  # Each file first gets what it recently grew by in a `stat_interval` (see WatchedFile#growth) so that it does not
+  # fall further behind, what is left goes to the backlogs. In both steps the files are served from the smallest
+  # demand up, each getting at most an even share of what is left: small demands are met at once, large ones split
+  # the rest evenly (max-min fairness).
+  class ReadBudget
+    attr_reader :total
+
+    def initialize(total)
+      @total = total
+    end
+
+    # sets the read_budget of each file (0 when the file is not behind or the round's budget ran out)
+    # @return [Boolean] true if the files are further behind than the budget of a round
+    def allocate(watched_files, total = @total)
+      unread = watched_files.map(&:bytes_unread)
+      keep_up, left = fill(watched_files.each_with_index.map { |watched_file, i| [unread[i], watched_file.growth].min }, total)
+      backlog, left = fill(unread.each_with_index.map { |bytes, i| bytes - keep_up[i] }, left)
+      watched_files.each_with_index { |watched_file, i| watched_file.read_budget = keep_up[i] + backlog[i] }
+      left.zero? && unread.inject(0, :+) > total
+    end
+
+    private
+
+    # @return [Array] the bytes given for each demand and the bytes left
+    def fill(demands, available)
+      given = Array.new(demands.size, 0)
+      order = (0...demands.size).select { |i| demands[i] > 0 }.sort_by { |i| demands[i] }
+      order.each_with_index do |i, served|
+        given[i] = [demands[i], available / (order.size - served)].min
+        available -= given[i]
+      end
+      [given, available]
+    end
+  end
+end
@@ -7,20 +7,27 @@ module FileWatch module ReadMode module Handlers
     private
     def seek_to_furthest_position(watched_file)
       previous_pos = sincedb_collection.find(watched_file).position
-      watched_file.file_seek([watched_file.bytes_read, previous_pos].max)
+      position = [watched_file.bytes_read, previous_pos].max
+      watched_file.file_seek(position)
+      position
     end
 
     public
     def handle_specifically(watched_file)
       if open_file(watched_file)
         add_or_update_sincedb_collection(watched_file) unless sincedb_collection.member?(watched_file.sincedb_key)
-        seek_to_furthest_position(watched_file)
-        loop do
-          break if quit?
-          loop_control = watched_file.loop_control_adjusted_for_stat_size
-          controlled_read(watched_file, loop_control)
-          sincedb_collection.request_disk_flush
-          break unless loop_control.keep_looping?
+        position = seek_to_furthest_position(watched_file)
+        if @settings.file_read_mmap
+          watched_file.update_bytes_read(position)
+          mapped_read(watched_file)
+        else
+          loop do
+            break if quit?
+            loop_control = watched_file.loop_control_adjusted_for_stat_size
+            controlled_read(watched_file, loop_control)
+            sincedb_collection.request_disk_flush
+            break unless loop_control.keep_looping?
+          end
         end
         if watched_file.all_read?
           # flush the buffer now in case there is no final delimiter
@@ -49,12 +56,12 @@ module FileWatch module ReadMode module Handlers
         begin
           result = watched_file.read_extract_lines(loop_control.size) # expect BufferExtractResult
           logger.info(result.warning, result.additional) unless result.warning.empty?
-          result.lines.each do |line|
-            watched_file.listener.accept(line)
-            # sincedb position is independent from the watched_file bytes_read
-            delta = line.bytesize + @settings.delimiter_byte_size
+          accepted = result.lines.empty? ? 0 : watched_file.listener.accept_lines(result.lines) { quit? }
+          # sincedb position is independent from the watched_file bytes_read
+          # it is advanced once per batch, by the lines accepted (we might have quit in the middle)
+          unless accepted.zero?
+            delta = result.bytes_consumed_by(accepted, @settings.delimiter_byte_size)
             sincedb_collection.increment(watched_file.sincedb_key, delta)
-            break if quit?
           end
         rescue EOFError => e
           log_error("controlled_read: eof error reading file", watched_file, e)
@@ -74,6 +81,26 @@ module FileWatch module ReadMode module Handlers
       end
     end
 
+    # the file does not change while being read, instead of reading chunks we map (large) windows of it
+    # the sincedb position is advanced (and possibly flushed) after each window
+    def mapped_read(watched_file)
+      logger.trace? && logger.trace("reading (memory mapped)...", :filename => watched_file.filename, :window_size => FILE_MAP_SIZE)
+      until quit? || watched_file.all_read?
+        begin
+          delta = watched_file.read_mapped_lines(FILE_MAP_SIZE) { quit? }
+          sincedb_collection.increment(watched_file.sincedb_key, delta) unless delta.zero?
+          sincedb_collection.request_disk_flush
+        rescue EOFError => e
+          log_error("mapped_read: eof error reading file", watched_file, e)
+          break
+        rescue => e
+          log_error("mapped_read: general error reading file", watched_file, e)
+          watched_file.listener.error
+          break
+        end
+      end
+    end
+
     def log_error(msg, watched_file, error)
       details = { :path => watched_file.path,
                   :exception => error.class,
@@ -3,63 +3,77 @@ require 'java'
 
 module FileWatch module ReadMode module Handlers
 
-  java_import java.io.InputStream
-  java_import java.io.InputStreamReader
-  java_import java.io.FileInputStream
-  java_import java.io.BufferedReader
-  java_import java.util.zip.GZIPInputStream
+  java_import java.io.EOFException
   java_import java.util.zip.ZipException
 
   class ReadZipFile < Base
+
+    # While an archive is being read its sincedb position holds the (negated) number of decompressed bytes consumed by
+    # the accepted lines. A negative position can't be mistaken for the (compressed) size of a fully read archive, so
+    # the archive is picked up again and reading resumes from the checkpoint (e.g. after a pipeline reload).
+    def self.checkpoint_position(inflated_offset)
+      -(inflated_offset + 1)
+    end
+
+    # @return the decompressed offset to resume reading from
+    def self.inflated_offset(position)
+      position < 0 ? -(position + 1) : 0
+    end
+
     def handle_specifically(watched_file)
       add_or_update_sincedb_collection(watched_file) unless sincedb_collection.member?(watched_file.sincedb_key)
-      # can't really stripe read a zip file, its all or nothing.
       watched_file.listener.opened
-      # what do we do about quit when we have just begun reading the zipped file (e.g. pipeline reloading)
-      # should we track lines read in the sincedb and
-      # fast forward through the lines until we reach unseen content?
-      # meaning that we can quit in the middle of a zip file
       key = watched_file.sincedb_key
 
-      if @settings.check_archive_validity && corrupted?(watched_file)
-        watched_file.unwatch
-      else
-        begin
-          file_stream = FileInputStream.new(watched_file.path)
-          gzip_stream = GZIPInputStream.new(file_stream)
-          decoder = InputStreamReader.new(gzip_stream, "UTF-8")
-          buffered = BufferedReader.new(decoder)
-          while (line = buffered.readLine())
-            watched_file.listener.accept(line)
-            # can't quit, if we did then we would incorrectly write a 'completed' sincedb entry
-            # what do we do about quit when we have just begun reading the zipped file (e.g. pipeline reloading)
-            # should we track lines read in the sincedb and
-            # fast forward through the lines until we reach unseen content?
-            # meaning that we can quit in the middle of a zip file
-          end
-          watched_file.listener.eof
-        rescue ZipException => e
-          logger.error("Cannot decompress the gzip file at path: #{watched_file.path}", :exception => e.class,
-                       :message => e.message, :backtrace => e.backtrace)
-          watched_file.listener.error
-        else
-          sincedb_collection.store_last_read(key, watched_file.last_stat_size)
-          sincedb_collection.request_disk_flush
-          watched_file.listener.deleted
+      begin
+        reader = GzipReader.new(watched_file.path, @settings.delimiter)
+        offset = self.class.inflated_offset(sincedb_collection.get(key).position)
+        if @settings.check_archive_validity && corrupted?(watched_file, reader, offset)
           watched_file.unwatch
-        ensure
-          # rescue each close individually so all close attempts are tried
-          close_and_ignore_ioexception(buffered) unless buffered.nil?
-          close_and_ignore_ioexception(decoder) unless decoder.nil?
-          close_and_ignore_ioexception(gzip_stream) unless gzip_stream.nil?
-          close_and_ignore_ioexception(file_stream) unless file_stream.nil?
+        else
+          completed = read_archive(watched_file, reader, offset)
+          if completed
+            sincedb_collection.store_last_read(key, watched_file.last_stat_size)
+            sincedb_collection.request_disk_flush
+            watched_file.listener.deleted
+            watched_file.unwatch
+          end
         end
+      rescue ZipException, EOFException => e
+        logger.error("Cannot decompress the gzip file at path: #{watched_file.path}", :exception => e.class,
+                     :message => e.message, :backtrace => e.backtrace)
+        watched_file.listener.error
+      ensure
+        close_and_ignore_ioexception(reader) unless reader.nil?
       end
-      sincedb_collection.clear_watched_file(key)
+      # when quit in the middle of the archive the value stays associated, so its path is written with the checkpoint
+      sincedb_collection.clear_watched_file(key) unless completed == false
     end
 
     private
 
+    # lines are handed to the listener while the archive is being inflated,
+    # the position is checkpointed every `ARCHIVE_CHECKPOINT_SIZE` (decompressed) bytes
+    # @return true if the whole archive was read, false when quit in the middle of it
+    def read_archive(watched_file, reader, offset)
+      key = watched_file.sincedb_key
+      if offset > reader.position
+        logger.debug("resuming the read of an archive", :path => watched_file.path, :offset => offset)
+        reader.skip(offset)
+      end
+      until quit? || reader.eof?
+        offset += reader.read_lines(ARCHIVE_CHECKPOINT_SIZE, watched_file.listener) { quit? }
+        sincedb_collection.store_last_read(key, self.class.checkpoint_position(offset))
+        sincedb_collection.request_disk_flush
+      end
+      return false unless reader.eof?
+      # flush the buffer now in case there is no final delimiter
+      line = reader.flush
+      watched_file.listener.accept(line) unless line.empty?
+      watched_file.listener.eof
+      true
+    end
+
     def close_and_ignore_ioexception(closeable)
       begin
         closeable.close
@@ -69,23 +83,20 @@ module FileWatch module ReadMode module Handlers
       end
     end
 
-    def corrupted?(watched_file)
+    # the archive is inflated (from the offset on) only once if it fits in the `ARCHIVE_SPOOL_SIZE`,
+    # otherwise it is inflated to be validated and inflated again to be read
+    def corrupted?(watched_file, reader, offset)
       begin
         start = Time.new
-        file_stream = FileInputStream.new(watched_file.path)
-        gzip_stream = GZIPInputStream.new(file_stream)
-        buffer = Java::byte[8192].new
-        until gzip_stream.read(buffer) == -1
-        end
+        reader.skip(offset)
+        spooled = reader.validate(ARCHIVE_SPOOL_SIZE)
+        logger.trace? && logger.trace("validated archive", :path => watched_file.path, :spooled => spooled)
         return false
-      rescue ZipException, Java::JavaIo::EOFException => e
+      rescue ZipException, EOFException => e
         duration = Time.now - start
         logger.warn("Detected corrupted archive #{watched_file.path} file won't be processed", :message => e.message,
                     :duration => duration.round(3))
         return true
-      ensure
-        close_and_ignore_ioexception(gzip_stream) unless gzip_stream.nil?
-        close_and_ignore_ioexception(file_stream) unless file_stream.nil?
       end
     end
   end
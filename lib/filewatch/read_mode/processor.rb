@@ -15,6 +15,12 @@ module FileWatch module ReadMode
       # by adding a reference to self so we can read the quit flag during a (depth first) read loop
       @read_file = Handlers::ReadFile.new(self, sincedb_collection, observer, @settings)
       @read_zip_file = Handlers::ReadZipFile.new(self, sincedb_collection, observer, @settings)
+      # with more than one worker the active files are read at the same time
+      @reader_pool = ReaderPool.new(@settings.read_workers) if @settings.read_workers > 1
+    end
+
+    def shutdown
+      @reader_pool.shutdown unless @reader_pool.nil?
     end
 
     def read_file(watched_file)
@@ -26,9 +32,10 @@ module FileWatch module ReadMode
     end
 
     def process_all_states(watched_files)
-      process_watched(watched_files)
+      # no new files are opened while the queue is full (see Backpressure)
+      metrics.time(:"phases.process_watched") { process_watched(files_with_state(:watched)) } unless @settings.backpressure.throttled?
       return if watch.quit?
-      process_active(watched_files)
+      metrics.time(:"phases.process_active") { process_active(files_with_state(:active)) }
     end
 
     private
@@ -40,9 +47,10 @@ module FileWatch module ReadMode
       #   move to the active state
       #   should never have been active before
       # how much of the max active window is available
-      to_take = @settings.max_active - watched_files.count { |wf| wf.active? }
+      to_take = @settings.max_active - watch.watched_files_collection.count_with_state(:active)
       if to_take > 0
-        watched_files.select(&:watched?).take(to_take).each do |watched_file|
+        watched_files.take(to_take).each do |watched_file|
+          next unless watched_file.watched?
           begin
             restat(watched_file)
             watched_file.activate
@@ -58,7 +66,7 @@ module FileWatch module ReadMode
       else
         now = Time.now.to_i
         if (now - watch.lastwarn_max_files) > MAX_FILES_WARN_INTERVAL
-          waiting = watched_files.size - @settings.max_active
+          waiting = watch.watched_files_collection.size - @settings.max_active
           logger.warn("#{@settings.max_warn_msg}, files yet to open: #{waiting}")
           watch.lastwarn_max_files = now
         end
@@ -70,31 +78,48 @@ module FileWatch module ReadMode
     def process_active(watched_files)
       logger.trace(__method__.to_s)
       # Handles watched_files in the active state.
-      watched_files.each do |watched_file|
-        next unless watched_file.active?
-
-        begin
-          restat(watched_file)
-        rescue Errno::ENOENT
-          common_deleted_reaction(watched_file, __method__)
-          next
-        rescue => e
-          common_error_reaction(watched_file, e, __method__)
-          next
-        end
-        break if watch.quit?
-
-        if watched_file.compressed?
-          read_zip_file(watched_file)
-        else
-          read_file(watched_file)
+      if @reader_pool.nil?
+        watched_files.each do |watched_file|
+          next unless watched_file.active?
+          next unless restat_active(watched_file)
+          break if watch.quit?
+          read_active(watched_file)
         end
-        
-        if @settings.exit_after_read
-          common_detach_when_allread(watched_file)
+      else
+        # restat is done up front (on this thread) then the files are read in parallel,
+        # we wait for all of them before moving on so state transitions stay in between rounds
+        readable = watched_files.select { |watched_file| watched_file.active? && restat_active(watched_file) }
+        return if watch.quit?
+        @reader_pool.each(readable) do |watched_file|
+          read_active(watched_file) unless watch.quit?
         end
-        # handlers take care of closing and unwatching
       end
+      record_read_lag(watched_files)
+    end
+
+    # @return false if the file could not be restat-ed
+    def restat_active(watched_file)
+      restat(watched_file)
+      true
+    rescue Errno::ENOENT
+      common_deleted_reaction(watched_file, :process_active)
+      false
+    rescue => e
+      common_error_reaction(watched_file, e, :process_active)
+      false
+    end
+
+    def read_active(watched_file)
+      if watched_file.compressed?
+        read_zip_file(watched_file)
+      else
+        read_file(watched_file)
+      end
+
+      if @settings.exit_after_read
+        common_detach_when_allread(watched_file)
+      end
+      # handlers take care of closing and unwatching
     end
 
     def common_detach_when_allread(watched_file)
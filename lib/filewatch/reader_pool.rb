@@ -0,0 +1,44 @@
+# encoding: utf-8
+require "logstash/util/loggable"
+require "concurrent"
+
+module FileWatch
+  # Reads several watched files at the same time using a fixed pool of worker threads.
+  # A watched file is only ever handled by one worker at a time so reading order is kept within a file,
+  # there is no ordering across files.
+  # Each worker reads into its own (thread local) buffer, see `FileWatch::LineReader`.
+  class ReaderPool
+    include LogStash::Util::Loggable
+
+    attr_reader :size
+
+    def initialize(size)
+      @size = size
+      @executor = Concurrent::FixedThreadPool.new(size)
+    end
+
+    # Hands each of the watched files to a worker and waits until all of them have been handled.
+    def each(watched_files, &block)
+      return if watched_files.empty?
+      latch = Concurrent::CountDownLatch.new(watched_files.size)
+      watched_files.each do |watched_file|
+        @executor.post do
+          begin
+            block.call(watched_file)
+          rescue Exception => e
+            logger.error("reader pool: unexpected error handling file", :path => watched_file.path,
+                         :exception => e.class, :message => e.message, :backtrace => e.backtrace)
+          ensure
+            latch.count_down
+          end
+        end
+      end
+      latch.wait
+    end
+
+    def shutdown
+      @executor.shutdown
+      @executor.wait_for_termination(10) || @executor.kill
+    end
+  end
+end
@@ -3,13 +3,19 @@
 module FileWatch
   class Settings
     attr_reader :delimiter, :close_older, :ignore_older, :delimiter_byte_size
-    attr_reader :max_active, :max_warn_msg, :lastwarn_max_files
+    attr_reader :max_active, :max_open_files_policy, :max_warn_msg, :lastwarn_max_files
     attr_reader :sincedb_write_interval, :stat_interval, :discover_interval
     attr_reader :exclude, :start_new_files_at, :file_chunk_count, :file_chunk_size
-    attr_reader :sincedb_path, :sincedb_expiry_duration
+    attr_reader :sincedb_path, :sincedb_expiry_duration, :sincedb_format
+    attr_reader :sincedb_write_async, :sincedb_fsync, :warm_start
     attr_reader :file_sort_by, :file_sort_direction
     attr_reader :exit_after_read
     attr_reader :check_archive_validity
+    attr_reader :file_read_mmap
+    attr_reader :read_workers, :file_read_budget, :file_read_sizing
+    attr_reader :discovery_backend, :shared_scans
+    attr_reader :file_identity, :fingerprint_bytes, :fingerprint_short_files
+    attr_reader :metrics, :backpressure
 
     def self.from_options(opts)
       new.add_options(opts)
@@ -20,6 +26,7 @@ module FileWatch
         :delimiter => "\n",
         :file_chunk_size => FILE_READ_SIZE,
         :max_open_files => 4095,
+        :max_open_files_policy => "window",
         :file_chunk_count => MAX_ITERATIONS,
         :sincedb_clean_after => 14,
         :exclude => [],
@@ -27,6 +34,15 @@ module FileWatch
         :discover_interval => 5,
         :file_sort_by => "last_modified",
         :file_sort_direction => "asc",
+        :read_workers => 1,
+        :file_read_sizing => "fixed",
+        :sincedb_format => "text",
+        :sincedb_write_async => false,
+        :sincedb_fsync => false,
+        :warm_start => false,
+        :discovery_backend => "glob",
+        :file_identity => "inode",
+        :fingerprint_bytes => FINGERPRINT_SIZE,
       }
       @opts = {}
       @lastwarn_max_files = 0
@@ -36,6 +52,7 @@ module FileWatch
     def add_options(opts)
       @opts.update(opts)
       self.max_open_files = @opts[:max_open_files]
+      @max_open_files_policy = @opts[:max_open_files_policy]
       @delimiter = @opts[:delimiter]
       @delimiter_byte_size = @delimiter.bytesize
       @file_chunk_size = @opts[:file_chunk_size]
@@ -49,13 +66,54 @@ module FileWatch
       @sincedb_path = @opts[:sincedb_path]
       @sincedb_write_interval = @opts[:sincedb_write_interval]
       @sincedb_expiry_duration =  @opts.fetch(:sincedb_clean_after)
+      @sincedb_format = @opts[:sincedb_format]
+      @sincedb_write_async = @opts[:sincedb_write_async]
+      @sincedb_fsync = @opts[:sincedb_fsync]
+      @warm_start = @opts[:warm_start]
       @file_sort_by = @opts[:file_sort_by]
       @file_sort_direction = @opts[:file_sort_direction]
       @exit_after_read = @opts[:exit_after_read]
       @check_archive_validity = @opts[:check_archive_validity]
+      @file_read_mmap = @opts[:file_read_mmap]
+      self.read_workers = @opts[:read_workers]
+      self.file_read_budget = @opts[:file_read_budget]
+      @file_read_sizing = @opts[:file_read_sizing]
+      @discovery_backend = @opts[:discovery_backend]
+      @shared_scans = @opts[:shared_scans]
+      @file_identity = @opts[:file_identity]
+      @fingerprint_bytes = @opts[:fingerprint_bytes]
+      @fingerprint_short_files = @opts[:fingerprint_short_files]
+      # collected all along, the file input publishes them (see FileWatch::Metrics)
+      @metrics = @opts[:metrics] || @metrics || Metrics.new
+      # the input reports the pushes that blocked on a full queue
+      @backpressure = @opts[:backpressure] || @backpressure || Backpressure.new
       self
     end
 
+    def read_workers=(value)
+      val = value.to_i
+      @read_workers = val < 1 ? 1 : val
+    end
+
+    # nil (not set) means no budget, unless several workers read at the same time
+    def file_read_budget=(value)
+      val = value.to_i
+      if value.nil? || val <= 0
+        @file_read_budget = @read_workers > 1 ? FILE_READ_BUDGET : nil
+      else
+        @file_read_budget = val
+      end
+    end
+
+    # all files are active, their descriptors are limited (see HandleCache)
+    def handle_cache?
+      @max_open_files_policy == "lru"
+    end
+
+    def adaptive_read?
+      @file_read_sizing == "adaptive"
+    end
+
     def max_open_files=(value)
       val = value.to_i
       val = 4095 if value.nil? || val <= 0
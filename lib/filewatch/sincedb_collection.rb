@@ -1,10 +1,18 @@
 # encoding: utf-8
 require "logstash/util/loggable"
+require "monitor"
+require "set"
+require "stringio"
 
 module FileWatch
   # this KV collection has a watched_file storage_key (an InodeStruct) as the key
   # and a SincedbValue as the value.
   # the SincedbValues are built by reading the sincedb file.
+  # values not associated with a watched file are packed (see `FileWatch::SincedbIndex`) to save memory.
+  # access to the collection is synchronized, files might be read by several threads (read_workers).
+  # a write takes the records (a snapshot) holding the lock, they're serialized and written after releasing it,
+  # one write at a time. with `sincedb_write_async` the file is written by a SincedbFlusher instead of the thread
+  # that requested it.
   class SincedbCollection
     include LogStash::Util::Loggable
 
@@ -14,13 +22,28 @@ module FileWatch
     def initialize(settings)
       @settings = settings
       @sincedb_last_write = 0
-      @sincedb = {}
+      @sincedb = SincedbIndex.new
+      @sincedb_last_pack = 0
+      @lock = Monitor.new
       @serializer = SincedbRecordSerializer.new(@settings.sincedb_expiry_duration)
       @path = Pathname.new(@settings.sincedb_path)
       @write_method = LogStash::Environment.windows? || @path.chardev? || @path.blockdev? ? method(:non_atomic_write) : method(:atomic_write)
       @full_path = @path.to_path
       FileUtils.touch(@full_path)
       @write_requested = false
+      if @settings.sincedb_format == "binary"
+        if FileHelper.device?(@full_path)
+          logger.info("sincedb_path is a device, the binary sincedb format is not used", :sincedb_path => @full_path)
+        else
+          @journal = SincedbJournal.new(@full_path, @settings.sincedb_fsync)
+          @deleted_keys = Set.new # deletes not yet written to the journal
+          @write_method = method(:journal_write)
+        end
+      end
+      @write_lock = Mutex.new # one snapshot written at a time (the journal is not thread-safe)
+      if @settings.sincedb_write_async
+        @flusher = SincedbFlusher.new(@settings.sincedb_write_interval, @settings.metrics) { write_exclusively }
+      end
     end
 
     def write_requested?
@@ -28,24 +51,28 @@ module FileWatch
     end
 
     def request_disk_flush
-      @write_requested = true
+      synchronize { @write_requested = true }
       flush_at_interval
     end
 
     def write_if_requested
-      if write_requested?
-        flush_at_interval
-      end
+      flush_at_interval if write_requested?
     end
 
     def write(reason=nil)
       logger.trace("caller requested sincedb write (#{reason})")
-      sincedb_write
+      write_exclusively
+    end
+
+    # stops the flusher thread (if any), a write in progress is completed
+    def close
+      @flusher.stop if @flusher
     end
 
     def open
       @time_sdb_opened = Time.now.to_f
       begin
+        return if open_journal
         path.open do |file|
           logger.debug("open: reading from #{path}")
           @serializer.deserialize(file) do |key, value|
@@ -53,7 +80,7 @@ module FileWatch
             set_key_value(key, value)
           end
         end
-        logger.trace("open: count of keys read: #{@sincedb.keys.size}")
+        logger.trace("open: count of keys read: #{keys.size}")
       rescue => e
         #No existing sincedb to load
         logger.debug("open: error opening #{path}", :exception => e.class, :message => e.message)
@@ -115,79 +142,114 @@ module FileWatch
     end
 
     def member?(key)
-      @sincedb.member?(key)
+      synchronize { @sincedb.member?(key) }
     end
 
     def get(key)
-      @sincedb[key]
+      synchronize { @sincedb[key] }
     end
 
     def set(key, value)
-      @sincedb[key] = value
+      synchronize do
+        @deleted_keys.delete(key) unless @journal.nil?
+        @sincedb[key] = value
+      end
       value
     end
 
     def delete(key)
-      @sincedb.delete(key)
+      synchronize do
+        @deleted_keys << key unless @journal.nil?
+        @sincedb.delete(key)
+      end
     end
 
     def last_read(key)
-      @sincedb[key].position
+      synchronize { @sincedb[key].position }
     end
 
     def rewind(key)
-      @sincedb[key].update_position(0)
+      synchronize { @sincedb[key].update_position(0) }
     end
 
     def increment(key, amount)
-      @sincedb[key].increment_position(amount)
+      synchronize { @sincedb[key].increment_position(amount) }
     end
 
     def set_watched_file(key, watched_file)
-      @sincedb[key].set_watched_file(watched_file)
+      synchronize { @sincedb[key].set_watched_file(watched_file) }
     end
 
     def watched_file_deleted(watched_file)
-      value = @sincedb[watched_file.sincedb_key]
+      value = get(watched_file.sincedb_key)
       value.unset_watched_file if value
     end
 
     def store_last_read(key, pos)
-      @sincedb[key].update_position(pos)
+      synchronize { @sincedb[key].update_position(pos) }
     end
 
     def clear_watched_file(key)
-      @sincedb[key].clear_watched_file
+      synchronize { @sincedb[key].clear_watched_file }
     end
 
     def reading_completed(key)
-      @sincedb[key].reading_completed
+      synchronize { @sincedb[key].reading_completed }
     end
 
     def clear
-      @sincedb.clear
+      synchronize do
+        @deleted_keys.merge(@sincedb.keys) unless @journal.nil?
+        @sincedb.clear
+      end
     end
 
     def keys
-      @sincedb.keys
+      synchronize { @sincedb.keys }
+    end
+
+    # packs the values that are not associated with a watched file (at most once per sincedb_write_interval)
+    # NOTE: a packed value is a different object once looked up again, this should be called when no handler
+    # holds on to a value e.g. in between watch loop iterations.
+    def pack_at_interval
+      synchronize do
+        now = Time.now.to_i
+        return if now - @sincedb_last_pack < @settings.sincedb_write_interval
+        @sincedb_last_pack = now
+        packed = @sincedb.pack
+        logger.trace? && logger.trace("pack_at_interval: packed #{packed} values", :size => @sincedb.size)
+      end
     end
 
     def watched_file_unset?(key)
-      return false unless member?(key)
-      get(key).watched_file.nil?
+      value = get(key)
+      return false if value.nil?
+      value.watched_file.nil?
     end
 
     def flush_at_interval
-      now = Time.now
-      delta = now.to_i - @sincedb_last_write
-      if delta >= @settings.sincedb_write_interval
-        logger.debug("writing sincedb (delta since last write = #{delta})")
-        sincedb_write(now)
+      # the flusher writes at most once per interval
+      return @flusher.request if @flusher
+      # a thread finding another one writing does not wait, the other write is as recent
+      return unless @write_lock.try_lock
+      begin
+        now = Time.now
+        delta = now.to_i - @sincedb_last_write
+        if delta >= @settings.sincedb_write_interval
+          logger.debug("writing sincedb (delta since last write = #{delta})")
+          sincedb_write(now)
+        end
+      ensure
+        @write_lock.unlock
       end
     end
 
     private
 
+    def synchronize(&block)
+      @lock.synchronize(&block)
+    end
+
     def handle_association(sincedb_value, watched_file)
       watched_file.update_bytes_read(sincedb_value.position)
       sincedb_value.set_watched_file(watched_file)
@@ -198,54 +260,142 @@ module FileWatch
       end
     end
 
+    # @return false if the record has expired
     def set_key_value(key, value)
       if @time_sdb_opened < value.last_changed_at_expires(@settings.sincedb_expiry_duration)
         set(key, value)
+        true
       else
         logger.debug("set_key_value: record has expired, skipping: #{key.inspect} => #{value.inspect}")
+        false
       end
     end
 
+    # reads a binary sincedb (also when the text format is configured, the next write converts the file back)
+    # @return false if the file is not a binary sincedb
+    def open_journal
+      return false if FileHelper.device?(@full_path)
+      journal = @journal || SincedbJournal.new(@full_path)
+      loaded = journal.load do |inode, maj, min, position, last_changed_at, path_in_sincedb|
+        key = InodeStruct.new(inode, maj, min)
+        value = SincedbValue.new(position, last_changed_at).add_path_in_sincedb(path_in_sincedb).mark_clean
+        logger.trace? && logger.trace("open: importing #{key.inspect} => #{value.inspect}")
+        journal.delete(inode, maj, min) unless set_key_value(key, value)
+      end
+      if loaded
+        logger.debug("open: read binary sincedb #{path}, count of keys read: #{keys.size}")
+      elsif !@journal.nil?
+        logger.debug("open: #{path} is not a binary sincedb, it will be converted on the next write")
+      end
+      loaded
+    end
+
+    # the flusher thread or a caller that has to wait for the write (e.g. on shutdown)
+    def write_exclusively
+      @write_lock.synchronize { sincedb_write }
+    end
+
+    # only the snapshot is taken holding the lock, to be called holding the write lock
     def sincedb_write(time = Time.now)
       logger.trace? && logger.trace("sincedb_write: #{path} (time = #{time})")
       begin
-        expired_keys = @write_method.call(time)
-        expired_keys.each do |key|
-          @sincedb[key].unset_watched_file
-          delete(key)
-          logger.trace? && logger.trace("sincedb_write: cleaned", :key => key)
+        @settings.metrics.time(:"sincedb.write") do
+          writer = synchronize { snapshot(time) }
+          writer.call
         end
-        @sincedb_last_write = time.to_i
-        @write_requested = false
+        synchronize { record_size }
       rescue Errno::EACCES => e
         # no file handles free perhaps - maybe it will work next time
+        synchronize { @write_requested = true }
         logger.debug("sincedb_write: #{path} error:", :exception => e.class, :message => e.message)
       end
     end
 
-    # @return expired keys
+    # takes the records to write and cleans the expired ones, to be called holding the lock
+    # @return [Proc] serializes and writes the records taken
+    def snapshot(time)
+      expired_keys, writer = @write_method.call(time)
+      forget(expired_keys)
+      @sincedb_last_write = time.to_i
+      @write_requested = false
+      writer
+    end
+
+    def forget(expired_keys)
+      expired_keys.each do |key|
+        @sincedb[key].unset_watched_file
+        delete(key)
+        logger.trace? && logger.trace("sincedb_write: cleaned", :key => key)
+      end
+    end
+
+    def record_size
+      metrics = @settings.metrics
+      metrics.gauge(:"sincedb.entries", @sincedb.size)
+      metrics.gauge(:"sincedb.size_in_bytes", File.size(@full_path)) if File.file?(@full_path)
+    end
+
+    # @return [expired keys, writer]
     def atomic_write(time)
-      logger.trace? && logger.trace("non_atomic_write: ", :time => time)
-      begin
-        FileHelper.write_atomically(@full_path) do |io|
-          @serializer.serialize(@sincedb, io, time.to_f)
-        end
-      rescue Errno::EPERM, Errno::EACCES => e
-        logger.warn("sincedb_write: unable to write atomically due to permissions error, falling back to non-atomic write: #{path} error:", :exception => e.class, :message => e.message)
-        @write_method = method(:non_atomic_write)
-        non_atomic_write(time)
-      rescue => e
-        logger.warn("sincedb_write: unable to write atomically, attempting non-atomic write: #{path} error:", :exception => e.class, :message => e.message)
-        non_atomic_write(time)
+      logger.trace? && logger.trace("atomic_write: ", :time => time)
+      expired_keys, records = @sincedb.records(time.to_f, @settings.sincedb_expiry_duration)
+      [expired_keys, lambda { write_atomically(serialize(records)) }]
+    end
+
+    def write_atomically(content)
+      SincedbFile.write_atomically(@full_path, content, @settings.sincedb_fsync)
+    rescue Errno::EPERM, Errno::EACCES => e
+      logger.warn("sincedb_write: unable to write atomically due to permissions error, falling back to non-atomic write: #{path} error:", :exception => e.class, :message => e.message)
+      @write_method = method(:non_atomic_write)
+      write_non_atomically(content)
+    rescue => e
+      logger.warn("sincedb_write: unable to write atomically, attempting non-atomic write: #{path} error:", :exception => e.class, :message => e.message)
+      write_non_atomically(content)
+    end
+
+    # only the values that changed since the last write (see SincedbIndex#changes) and the keys deleted are
+    # appended to the journal, it is rewritten from the index once it holds too many stale records
+    # (binary records always carry the device numbers, a nil one is written as 0)
+    # @return [expired keys, writer]
+    def journal_write(time)
+      logger.trace? && logger.trace("journal_write: ", :time => time)
+      expired_keys, changed = @sincedb.changes(time.to_f, @settings.sincedb_expiry_duration)
+      forget(expired_keys) # deleted keys, journaled below
+      changed.each do |inode, maj, min, position, last_changed_at, path|
+        @journal.put(inode, maj.to_i, min.to_i, position, last_changed_at, path)
       end
+      @deleted_keys.each { |key| @journal.delete(key.inode, key.maj.to_i, key.min.to_i) }
+      @deleted_keys.clear
+      @journal.compact_from(@sincedb)
+      [[], method(:commit_journal)]
     end
 
-    # @return expired keys
+    def commit_journal
+      @journal.commit
+    rescue IOError => e
+      # the journal is re-written as a whole next time
+      logger.warn("sincedb_write: unable to write binary sincedb: #{path} error:", :exception => e.class, :message => e.message)
+    end
+
+    # @return [expired keys, writer]
     def non_atomic_write(time)
       logger.trace? && logger.trace("non_atomic_write: ", :time => time)
+      expired_keys, records = @sincedb.records(time.to_f, @settings.sincedb_expiry_duration)
+      [expired_keys, lambda { write_non_atomically(serialize(records)) }]
+    end
+
+    def write_non_atomically(content)
       File.open(@full_path, "w+") do |io|
-        @serializer.serialize(@sincedb, io, time.to_f)
+        io.write(content)
+        io.fsync if @settings.sincedb_fsync && !FileHelper.device?(@full_path)
       end
     end
+
+    # @return the records as written to the file
+    def serialize(records)
+      io = StringIO.new
+      @serializer.write_records(records, io)
+      io.string
+    end
   end
 end
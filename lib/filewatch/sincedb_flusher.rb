@@ -0,0 +1,90 @@
+# encoding: utf-8
+require "logstash/util/loggable"
+
+module FileWatch
+  # Writes the sincedb on a thread of its own (`sincedb_write_async`), the threads reading files only request a write.
+  #
+  # Requests are coalesced: however many come in, the sincedb is written at most once per `sincedb_write_interval`,
+  # a request made in between is served once the interval has elapsed. A position is therefore on disk at most
+  # `sincedb_write_interval` (plus the time a write takes) after it was requested, how long it actually took is
+  # reported as the `sincedb.staleness_in_millis` gauge.
+  #
+  # The write itself is given as a block (see SincedbCollection#write_exclusively).
+  class SincedbFlusher
+    include LogStash::Util::Loggable
+
+    def initialize(interval, metrics, &write)
+      @interval = interval.to_f
+      @metrics = metrics
+      @write = write
+      @mutex = Mutex.new
+      @cond = ConditionVariable.new
+      @requested_at = nil # the oldest request not written yet
+      @written_at = 0.0
+      @stopped = false
+      @thread = nil
+    end
+
+    # does not block, the thread is started on the first request
+    def request
+      @mutex.synchronize do
+        @requested_at ||= now
+        @stopped = false
+        if @thread.nil? || !@thread.alive?
+          @thread = Thread.new { run }
+        else
+          @cond.signal
+        end
+      end
+    end
+
+    def pending?
+      @mutex.synchronize { !@requested_at.nil? }
+    end
+
+    # waits for a write in progress, pending requests are dropped (the caller writes synchronously afterwards)
+    def stop
+      thread = @mutex.synchronize do
+        @stopped = true
+        @requested_at = nil
+        @cond.signal
+        @thread
+      end
+      thread.join unless thread.nil? || thread.equal?(Thread.current)
+    end
+
+    private
+
+    def run
+      Thread.current.name = "[file]<sincedb" if Thread.current.respond_to?(:name=)
+      loop do
+        requested_at = @mutex.synchronize do
+          @cond.wait(@mutex) while @requested_at.nil? && !@stopped
+          # requests coming in while waiting for the interval to elapse are served by the same write
+          while !@stopped && (wait = @written_at + @interval - now) > 0
+            @cond.wait(@mutex, wait)
+          end
+          return if @stopped
+          taken = @requested_at
+          @requested_at = nil
+          taken
+        end
+        flush(requested_at)
+      end
+    end
+
+    def flush(requested_at)
+      @write.call
+      @written_at = now
+      @metrics.gauge(:"sincedb.staleness_in_millis", ((@written_at - requested_at) * 1000).round)
+    rescue => e
+      # the positions are written again with the next request
+      logger.warn("sincedb flush failed", :exception => e.class, :message => e.message)
+      @written_at = now
+    end
+
+    def now
+      Process.clock_gettime(Process::CLOCK_MONOTONIC)
+    end
+  end
+end
@@ -13,15 +13,33 @@ module FileWatch
 
     # @return Array expired keys (ones that were not written to the file)
     def serialize(db, io, as_of = Time.now.to_f)
-      expired_keys = []
+      records, expired_keys = records(db, as_of)
+      write_records(records, io)
+      expired_keys
+    end
+
+    # takes what is to be written from the db, the records are turned into text by #write_records
+    # (the db might be changing by then), see also SincedbIndex#records
+    # @return [records, expired keys]
+    def records(db, as_of = Time.now.to_f)
+      records, expired_keys = [], []
       db.each do |key, value|
         if as_of > value.last_changed_at_expires(@sincedb_value_expiry)
           expired_keys << key
           next
         end
-        io.write(serialize_record(key, value))
+        records << [key.inode, key.maj, key.min, value.position, value.last_changed_at, value.path]
+      end
+      [records, expired_keys]
+    end
+
+    # @param records [Array] of [inode, maj, min, position, last_changed_at, path]
+    def write_records(records, io)
+      records.each do |inode, maj, min, position, last_changed_at, path|
+        record = "#{inode} #{maj} #{min} #{position} #{last_changed_at}"
+        record.concat(" ").concat(path) unless path.nil?
+        io.write(record.concat("\n"))
       end
-      expired_keys
     end
 
     def deserialize(io)
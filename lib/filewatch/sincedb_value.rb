@@ -16,13 +16,30 @@ module FileWatch
       @last_changed_at = last_changed_at
       @watched_file = watched_file
       touch if @last_changed_at.nil? || @last_changed_at.zero?
+      @dirty = true
     end
 
     def add_path_in_sincedb(path)
       @path_in_sincedb = path # can be nil
+      @dirty = true
       self
     end
 
+    # whether the value changed since it was last written (binary sincedb only writes changed values)
+    def dirty?
+      @dirty
+    end
+
+    def mark_clean
+      @dirty = false
+      self
+    end
+
+    # @return the path of the watched file or the path last written to the sincedb (can be nil)
+    def path
+      @watched_file.nil? ? @path_in_sincedb : @watched_file.path
+    end
+
     def last_changed_at_expires(duration)
       @last_changed_at + duration
     end
@@ -48,21 +65,20 @@ module FileWatch
     end
 
     def touch
+      @dirty = true
       @last_changed_at = Time.now.to_f
     end
 
     def to_s
       # consider serializing the watched_file state as well
       "#{position} #{last_changed_at}".tap do |s|
-        if @watched_file.nil?
-          s.concat(" ").concat(@path_in_sincedb) unless @path_in_sincedb.nil?
-        else
-          s.concat(" ").concat(@watched_file.path)
-        end
+        path = self.path
+        s.concat(" ").concat(path) unless path.nil?
       end
     end
 
     def clear_watched_file
+      @dirty = true
       @watched_file = nil
     end
 
@@ -86,6 +102,7 @@ module FileWatch
       return if @watched_file.nil?
       wf = @watched_file
       @watched_file = nil
+      @dirty = true
       @position = wf.bytes_read
     end
   end
@@ -0,0 +1,58 @@
+# encoding: utf-8
+
+module FileWatch module Stat
+  # identifies a file by (a hash of) its first bytes instead of its inode, see the `file_identity` setting
+  # sizes and times come from the wrapped (path based) stat
+  class Fingerprint
+
+    attr_reader :inode, :modified_at, :size, :inode_struct
+
+    def initialize(source, stat, length, short_files)
+      @source = source # Pathname
+      @stat = stat
+      @length = length
+      @short_files = short_files # whether a file shorter than length is hashed as is
+      fingerprint
+      # (re)created while pending e.g. on rotation, the inode is the best we have
+      @inode_struct ||= @stat.inode_struct
+      update
+    end
+
+    def restat
+      identity = @stat.inode_struct
+      @stat.restat
+      # a file growing keeps its key, the content is only hashed again once the file got replaced
+      fingerprint if @pending || !@stat.inode_struct.equal?(identity)
+      # while the new content can not be told apart, the previous values are kept (no rotation is detected)
+      update unless @pending
+    end
+
+    # @return true if the file is too short to be fingerprinted (yet)
+    def pending?
+      @pending
+    end
+
+    def windows?
+      @stat.windows?
+    end
+
+    def inspect
+      "<#{self.class.name} size=#{@size}, modified_at=#{@modified_at}, inode='#{@inode}', inode_struct=#{@inode_struct}, pending=#{@pending}>"
+    end
+
+    private
+
+    def fingerprint
+      hash, hashed = FileWatch::Fingerprint.of(@source.to_path, @length)
+      @pending = hashed < @length && !@short_files
+      return if @pending
+      @inode_struct = InodeStruct.new(hash, 0, hashed)
+    end
+
+    def update
+      @inode = @stat.inode
+      @modified_at = @stat.modified_at
+      @size = @stat.size
+    end
+  end
+end end
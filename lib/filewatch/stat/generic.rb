@@ -12,10 +12,18 @@ module FileWatch module Stat
 
     def restat
       stat = @source.stat
-      @inode = stat.ino.to_s
       @modified_at = stat.mtime.to_f
       @size = stat.size
-      @inode_struct = InodeStruct.new(@inode, stat.dev_major, stat.dev_minor)
+      ino, dev_major, dev_minor = stat.ino, stat.dev_major, stat.dev_minor
+      # the identity rarely changes, keep the same (sincedb key) struct until it does
+      return if ino == @ino && @inode_struct.maj == dev_major && @inode_struct.min == dev_minor
+      @ino = ino
+      @inode = ino.to_s
+      @inode_struct = InodeStruct.new(@inode, dev_major, dev_minor)
+    end
+
+    def pending?
+      false
     end
 
     def windows?
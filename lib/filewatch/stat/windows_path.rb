@@ -19,6 +19,10 @@ module FileWatch module Stat
       @size = stat.size
     end
 
+    def pending?
+      false
+    end
+
     def windows?
       true
     end
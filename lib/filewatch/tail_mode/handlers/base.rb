@@ -52,11 +52,10 @@ module FileWatch module TailMode module Handlers
           result = watched_file.read_extract_lines(loop_control.size) # expect BufferExtractResult
           logger.trace(result.warning, result.additional) unless result.warning.empty?
           changed = true
-          result.lines.each do |line|
-            watched_file.listener.accept(line)
-            # sincedb position is now independent from the watched_file bytes_read
-            sincedb_collection.increment(watched_file.sincedb_key, line.bytesize + @settings.delimiter_byte_size)
-          end
+          watched_file.listener.accept_lines(result.lines) unless result.lines.empty?
+          # sincedb position is now independent from the watched_file bytes_read
+          # it is advanced once for the whole batch of lines
+          sincedb_collection.increment(watched_file.sincedb_key, result.bytes_consumed) unless result.lines.empty?
         rescue EOFError => e
           # it only makes sense to signal EOF in "read" mode not "tail"
           logger.debug(__method__.to_s, exception_details(watched_file.path, e, false))
@@ -82,6 +81,7 @@ module FileWatch module TailMode module Handlers
       return true if watched_file.file_open?
       logger.trace? && logger.trace("open_file", :filename => watched_file.filename)
       begin
+        @processor.admit_handle(watched_file)
         watched_file.open
       rescue => e
         # don't emit this message too often. if a file that we can't
@@ -4,10 +4,28 @@ module FileWatch module TailMode module Handlers
   class Grow < Base
     def handle_specifically(watched_file)
       watched_file.file_seek(watched_file.bytes_read)
+      # a rotated file must be read fully while its handle is still open, it gets no budget
+      # otherwise less is read while the queue is full, at least a chunk
+      if watched_file.rotation_in_progress?
+        budget = nil
+      elsif @settings.adaptive_read?
+        # the file's share of the round's budget, that budget is already cut (see Processor#allocate_read_budget)
+        budget = watched_file.read_budget || 0
+        budget = [budget, ADAPTIVE_CHUNK_MIN].max if @settings.backpressure.throttled?
+        watched_file.set_adaptive_read_loop(budget)
+      else
+        budget = @settings.backpressure.read_budget(@settings.file_read_budget, watched_file.read_chunk_size)
+      end
       loop do
         break if quit?
-        loop_control = watched_file.loop_control_adjusted_for_stat_size
+        loop_control = watched_file.loop_control_adjusted_for_stat_size(budget)
+        bytes_read = watched_file.bytes_read
         controlled_read(watched_file, loop_control)
+        unless budget.nil?
+          budget -= watched_file.bytes_read - bytes_read
+          # the rest is read in a later round, other files get their turn first
+          break if budget <= 0
+        end
         break unless loop_control.keep_looping?
       end
     end
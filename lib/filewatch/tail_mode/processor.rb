@@ -29,6 +29,21 @@ module FileWatch module TailMode
       @delete = Handlers::Delete.new(self, sincedb_collection, observer, @settings)
       @timeout = Handlers::Timeout.new(self, sincedb_collection, observer, @settings)
       @unignore = Handlers::Unignore.new(self, sincedb_collection, observer, @settings)
+      # with more than one worker the grown files are read at the same time, each within its `file_read_budget`
+      @reader_pool = ReaderPool.new(@settings.read_workers) if @settings.read_workers > 1
+      # stats all files at once, only the ones that changed (or changed state) need a restat
+      @stat_service = StatService.new(@settings.shared_scans)
+      @read_budget = ReadBudget.new(ADAPTIVE_READ_BUDGET) if @settings.adaptive_read?
+      @handle_cache = HandleCache.new(@settings.max_active, @settings.metrics) if @settings.handle_cache?
+    end
+
+    # called before a file gets opened
+    def admit_handle(watched_file)
+      @handle_cache.admit(watched_file) unless @handle_cache.nil?
+    end
+
+    def shutdown
+      @reader_pool.shutdown unless @reader_pool.nil?
     end
 
     def create(watched_file)
@@ -60,19 +75,32 @@ module FileWatch module TailMode
     end
 
     def process_all_states(watched_files)
-      process_closed(watched_files)
-      return if watch.quit?
-      process_ignored(watched_files)
-      return if watch.quit?
-      process_delayed_delete(watched_files)
-      return if watch.quit?
-      process_restat_for_watched_and_active(watched_files)
+      # a closed, ignored, watched or active file that did not change since the last round
+      # would be restat-ed to the same values (and end up in the same state), skip those
+      # while the queue is full only the active files are looked at (see Backpressure)
+      throttled = @settings.backpressure.throttled?
+      watched_files = files_with_state(:active) if throttled
+      changed_files = metrics.time(:"phases.stat") { @stat_service.changed(watched_files) }
+      # the order of the collection only matters from process_watched on
+      resort_after do
+        unless throttled
+          metrics.time(:"phases.process_closed") { process_closed(changed_files) }
+          return if watch.quit?
+          metrics.time(:"phases.process_ignored") { process_ignored(changed_files) }
+          return if watch.quit?
+          metrics.time(:"phases.process_delayed_delete") { process_delayed_delete(files_with_state(:delayed_delete)) }
+          return if watch.quit?
+        end
+        metrics.time(:"phases.process_restat_for_watched_and_active") { process_restat_for_watched_and_active(changed_files) }
+      end
       return if watch.quit?
-      process_rotation_in_progress(watched_files)
+      # the remaining phases only go over the files in their state (as of the start of the phase)
+      metrics.time(:"phases.process_rotation_in_progress") { process_rotation_in_progress(files_with_state(:rotation_in_progress)) }
       return if watch.quit?
-      process_watched(watched_files)
+      # no new files are opened while throttled
+      metrics.time(:"phases.process_watched") { process_watched(files_with_state(:watched)) } unless throttled
       return if watch.quit?
-      process_active(watched_files)
+      metrics.time(:"phases.process_active") { process_active(files_with_state(:active)) }
     end
 
     private
@@ -199,10 +227,15 @@ module FileWatch module TailMode
       #   some have never been active and some have
       #   those that were active before but are watched now were closed under constraint
       logger.trace(__method__.to_s)
-      # how much of the max active window is available
-      to_take = @settings.max_active - watched_files.count(&:active?)
+      # how much of the max active window is available, there is no window when descriptors are cached
+      if @handle_cache.nil?
+        to_take = @settings.max_active - watch.watched_files_collection.count_with_state(:active)
+      else
+        to_take = watched_files.size
+      end
       if to_take > 0
-        watched_files.select(&:watched?).take(to_take).each do |watched_file|
+        watched_files.take(to_take).each do |watched_file|
+          next unless watched_file.watched?
           watched_file.activate
           if watched_file.initial?
             create_initial(watched_file)
@@ -211,10 +244,10 @@ module FileWatch module TailMode
           end
           break if watch.quit?
         end
-      else
+      elsif @handle_cache.nil?
         now = Time.now.to_i
         if (now - watch.lastwarn_max_files) > MAX_FILES_WARN_INTERVAL
-          waiting = watched_files.size - @settings.max_active
+          waiting = watch.watched_files_collection.size - @settings.max_active
           logger.warn("#{@settings.max_warn_msg}, files yet to open: #{waiting}")
           watch.lastwarn_max_files = now
         end
@@ -225,13 +258,24 @@ module FileWatch module TailMode
       logger.trace(__method__.to_s)
       # Handles watched_files in the active state.
       # files have been opened at this point
+      grown = []
+      behind = allocate_read_budget(watched_files) unless @read_budget.nil?
+      readable = reserve_handles(watched_files) unless @handle_cache.nil?
       watched_files.each do |watched_file|
         next unless watched_file.active?
         break if watch.quit?
+        # changed but no descriptor left this round, it gets its turn in a later round
+        next if readable && (watched_file.grown? || watched_file.shrunk?) && !readable.key?(watched_file)
         path = watched_file.filename
         if watched_file.grown?
           logger.trace("#{__method__} file grew: new size is #{watched_file.last_stat_size}, bytes read #{watched_file.bytes_read}", :path => path)
-          grow(watched_file)
+          if @reader_pool.nil?
+            grow(watched_file)
+            @handle_cache.touch(watched_file) unless @handle_cache.nil?
+          else
+            grown << watched_file
+            next # grown files are read (and checked for expiry) below, all at once
+          end
         elsif watched_file.shrunk?
           if watched_file.bytes_unread > 0
             logger.warn("potential data loss, file truncate detected with #{watched_file.bytes_unread} unread bytes", :path => path)
@@ -250,6 +294,62 @@ module FileWatch module TailMode
           watched_file.close
         end
       end
+      process_grown(grown) unless grown.empty?
+      # the next round starts right away while the backlog is being worked off
+      @backlog = behind && watched_files.inject(0) { |sum, watched_file| sum + watched_file.bytes_read } > behind
+      metrics.increment(:"read.backlog_rounds") if @backlog
+      record_read_lag(watched_files)
+      log_read_lag
+    end
+
+    def process_grown(watched_files)
+      return if watch.quit?
+      # each file is read by one worker, the round ends when all files have been read up to their budget
+      @reader_pool.each(watched_files) do |watched_file|
+        grow(watched_file) unless watch.quit?
+      end
+      watched_files.each do |watched_file|
+        @handle_cache.touch(watched_file) unless @handle_cache.nil?
+        if watched_file.file_closable?
+          logger.trace("process_active file expired", :path => watched_file.filename)
+          timeout(watched_file)
+          watched_file.close
+        end
+      end
+    end
+
+    # @return the (identity) set of changed files that have a descriptor to be read from this round
+    def reserve_handles(watched_files)
+      changed = watched_files.select { |watched_file| watched_file.active? && (watched_file.grown? || watched_file.shrunk?) }
+      readable = @handle_cache.reserve(changed) { |watched_file| reopen(watched_file) }
+      metrics.gauge(:"handles.open", @handle_cache.size)
+      readable.each_with_object({}.compare_by_identity) { |watched_file, set| set[watched_file] = true }
+    end
+
+    # a file closed to make room resumes from its position, reading seeks there
+    def reopen(watched_file)
+      watched_file.open
+      metrics.increment(:"handles.reopened")
+      true
+    rescue => e
+      logger.debug("process_active: failed to reopen file", :path => watched_file.path, :exception => e.class, :message => e.message)
+      false
+    end
+
+    # @return the bytes read from the files so far if they are further behind than a round's budget, nil otherwise
+    def allocate_read_budget(watched_files)
+      active = watched_files.select(&:active?)
+      at = Process.clock_gettime(Process::CLOCK_MONOTONIC)
+      active.each { |watched_file| watched_file.observe_growth(at) }
+      return nil unless @read_budget.allocate(active, @settings.backpressure.read_budget(@read_budget.total))
+      watched_files.inject(0) { |sum, watched_file| sum + watched_file.bytes_read }
+    end
+
+    def log_read_lag
+      return unless logger.debug? && !@settings.file_read_budget.nil?
+      read_lag.each do |path, bytes_behind|
+        logger.debug("process_active: file read is behind", :path => path, :bytes_behind => bytes_behind)
+      end
     end
 
     def common_restat_with_delay(watched_file, action, &block)
@@ -0,0 +1,91 @@
+# encoding: utf-8
+require "logstash/util/loggable"
+
+module FileWatch
+  # The watched files of an input as they were when it stopped (`warm_start`), kept next to the sincedb.
+  #
+  # On startup the files the first discovery finds that are in the snapshot are not set up right away (a stat, a
+  # sincedb lookup and possibly an ignore for each of them), only the ones that are not (new since the input
+  # stopped) are. The others are discovered WARM_START_BATCH at a time in the following rounds, the files that were
+  # being read (or had content left to read) first. Each of them is verified (stat-ed and associated with its sincedb
+  # record) when discovered, as on a cold start, the snapshot only decides when.
+  #
+  # A line per file: inode maj min size mtime position state path
+  class WarmStart
+    include LogStash::Util::Loggable
+
+    Entry = Struct.new(:inode, :maj, :min, :size, :mtime, :position, :state) do
+      # the files that were being read, or had unread content, come first
+      def priority
+        return 0 if state == :active || state == :watched
+        position < size ? 1 : 2
+      end
+    end
+
+    attr_reader :path
+
+    def initialize(sincedb_path)
+      @path = "#{sincedb_path}.files"
+      @entries = nil
+    end
+
+    # @return [Hash] path => Entry, read once (empty if there is no snapshot)
+    def entries
+      @entries ||= read
+    end
+
+    # @return the paths not in the snapshot, the others are given in the order they are to be discovered
+    def split(paths)
+      return [paths, []] if entries.empty?
+      fresh, known = paths.partition { |path| !entries.key?(path) }
+      [fresh, known.each_with_index.sort_by { |path, index| [entries[path].priority, index] }.map(&:first)]
+    end
+
+    # once all the files found on startup are discovered the entries are not needed anymore
+    def discovered
+      @entries = {}
+    end
+
+    # @param watched_files [Enumerable<WatchedFile>]
+    # @param deferred [Enumerable<String>] paths from the snapshot not discovered yet
+    def write(watched_files, deferred)
+      content = String.new
+      watched_files.each do |watched_file|
+        key = watched_file.sincedb_key
+        next if key.nil? || watched_file.unwatched?
+        line(content, watched_file.path, key.inode, key.maj, key.min, watched_file.last_stat_size,
+             watched_file.modified_at, watched_file.bytes_read, watched_file.state)
+      end
+      deferred.each do |path|
+        entry = entries[path]
+        line(content, path, *entry.to_a) unless entry.nil?
+      end
+      SincedbFile.write_atomically(@path, content, false)
+      logger.debug("write: watched files snapshot written", :path => @path, :bytes => content.bytesize)
+    rescue => e
+      # the next start is a cold one
+      logger.warn("write: unable to write the watched files snapshot", :path => @path, :exception => e.class, :message => e.message)
+    end
+
+    private
+
+    def line(content, path, inode, maj, min, size, mtime, position, state)
+      content << "#{inode} #{maj} #{min} #{size} #{mtime} #{position} #{state} #{path}\n"
+    end
+
+    def read
+      entries = {}
+      return entries unless File.file?(@path)
+      File.foreach(@path) do |line|
+        inode, maj, min, size, mtime, position, state, path = line.chomp.split(" ", 8)
+        next if path.nil? || path.empty?
+        entries[path] = Entry.new(inode, maj.to_i, min.to_i, size.to_i, mtime.to_f, position.to_i, state.to_sym)
+      end
+      logger.debug("read: watched files snapshot", :path => @path, :files => entries.size)
+      entries
+    rescue => e
+      logger.warn("read: unable to read the watched files snapshot, starting cold", :path => @path, :exception => e.class, :message => e.message)
+      {}
+    end
+  end
+end
@@ -39,24 +39,38 @@ module FileWatch
 
       glob = 0
       interval = @settings.discover_interval
+      # with event driven discovery globbing is a safety net (e.g. events got lost), done less often
+      interval *= DISCOVER_EVENTS_GLOB_FACTOR if @discoverer.event_driven?
       reset_quit
+      backpressure = @settings.backpressure
       until quit?
+        backpressure.update
         iterate_on_state
         # Don't discover new files when files to read are known at the beginning
         break if quit?
         sincedb_collection.write_if_requested
         glob += 1
-        if glob == interval && !@settings.exit_after_read
+        # files known from the warm start snapshot are discovered a batch per round
+        @discoverer.discover_deferred unless backpressure.throttled?
+        if backpressure.throttled? || @settings.exit_after_read
+          # discovery is paused while the queue is full, a due glob is done once it drained
+        elsif glob >= interval
           discover
           glob = 0
+        else
+          @discoverer.discover_events
         end
         break if quit?
+        report_metrics(observer)
         # NOTE: maybe the plugin should validate stat_interval <= sincedb_write_interval <= sincedb_clean_after
-        sleep(@settings.stat_interval)
+        sleep(@settings.stat_interval) unless (@processor.backlog? || @discoverer.deferred?) && !backpressure.throttled?
         # we need to check potential expired keys (sincedb_clean_after) periodically
         sincedb_collection.flush_at_interval
+        sincedb_collection.pack_at_interval
       end
       sincedb_collection.write_if_requested # does nothing if no requests to write were lodged.
+      @processor.shutdown
+      @discoverer.close
       @watched_files_collection.close_all
     end # def subscribe
 
@@ -67,22 +81,38 @@ module FileWatch
       begin
         # creates this snapshot of watched_file values just once
         watched_files = @watched_files_collection.values
-        @processor.process_all_states(watched_files)
+        @settings.metrics.time(:tick) { @processor.process_all_states(watched_files) }
       ensure
         @watched_files_collection.remove_paths(@processor.clear_deletable_paths)
       end
     end
 
+    # @return [Hash] path => bytes not yet read, for the active files that were behind as of the last round
+    def read_lag
+      @processor.read_lag
+    end
+
     def quit
       @quit.make_true
     end
 
     def quit?
-      @quit.true? || (@settings.exit_after_read && @watched_files_collection.empty?)
+      @quit.true? || (@settings.exit_after_read && @watched_files_collection.empty? && !@discoverer.deferred?)
     end
 
     private
 
+    # the observer (the file input) publishes the metrics, once per round
+    def report_metrics(observer)
+      metrics = @settings.metrics
+      metrics.gauge(:"files.total", @watched_files_collection.size)
+      metrics.gauge(:"files.active", @watched_files_collection.count_with_state(:active))
+      # the files that are yet to be opened (e.g. because of max_open_files)
+      metrics.gauge(:"files.waiting", @watched_files_collection.count_with_state(:watched))
+      metrics.gauge(:throttled, @settings.backpressure.level)
+      observer.report_metrics(metrics) if observer.respond_to?(:report_metrics)
+    end
+
     def reset_quit
       @quit.make_false
     end
@@ -10,6 +10,10 @@ module FileWatch
     attr_reader :listener, :read_loop_count, :read_chunk_size, :stat
     attr_reader :loop_count_type, :loop_count_mode
     attr_accessor :last_open_warning_at
+    # the bytes that may be read in this round, see ReadBudget
+    attr_accessor :read_budget
+    # set when added to a collection, which indexes files by their state
+    attr_accessor :watched_files_collection
 
     # this class represents a file that has been discovered
     # path based stat is taken at discovery
@@ -27,7 +31,7 @@ module FileWatch
     def full_state_reset(this_stat = nil)
       if this_stat.nil?
         begin
-          this_stat = PathStatClass.new(pathname)
+          this_stat = Stat.create(pathname, @settings)
         rescue Errno::ENOENT
           delay_delete
           return
@@ -62,7 +66,7 @@ module FileWatch
         # so no reset
         other.full_state_reset
       end
-      set_stat PathStatClass.new(pathname)
+      set_stat Stat.create(pathname, @settings)
       ignore
     end
 
@@ -84,7 +88,7 @@ module FileWatch
       # and we should read from the beginning if necessary
       @initial = false
       @recent_states = [] # keep last 8 states, managed in set_state
-      set_stat(PathStatClass.new(pathname))
+      set_stat(Stat.create(pathname, @settings))
       reopen
       watch
     end
@@ -195,7 +199,7 @@ module FileWatch
     end
 
     def compressed?
-      @path.end_with?('.gz','.gzip')
+      @path.end_with?('.gz','.gzip','.bgz')
     end
 
     def reopen
@@ -211,10 +215,11 @@ module FileWatch
 
     def file_add_opened(rubyfile)
       @file = rubyfile
-      @buffer = BufferedTokenizer.new(@settings.delimiter) if @buffer.nil?
+      @buffer = LineReader.new(@settings.delimiter) if @buffer.nil?
     end
 
     def file_close
+      @buffer.release unless @buffer.nil? # the channel and window mapped by read_mapped_lines
       return if @file.nil? || @file.closed?
       @file.close
       @file = nil
@@ -224,11 +229,6 @@ module FileWatch
       @file.sysseek(amount, whence)
     end
 
-    def file_read(amount = nil)
-      set_accessed_at
-      @file.sysread(amount || @read_chunk_size)
-    end
-
     def file_open?
       !@file.nil? && !@file.closed?
     end
@@ -237,16 +237,18 @@ module FileWatch
       @buffer.flush
     end
 
+    # reading and splitting into lines is done natively (see `FileWatch::LineReader`)
+    # @return [BufferExtractResult] lines read along with the bytes they consumed
     def read_extract_lines(amount)
-      data = file_read(amount)
-      result = buffer_extract(data)
-      increment_bytes_read(data.bytesize)
+      set_accessed_at
+      lines, bytes_read, bytes_consumed = @buffer.read_lines(@file, amount || @read_chunk_size)
+      result = buffer_extract_result(lines, bytes_read, bytes_consumed)
+      increment_bytes_read(bytes_read)
       result
     end
 
-    def buffer_extract(data)
+    def buffer_extract_result(lines, bytes_read, bytes_consumed)
       warning, additional = "", {}
-      lines = @buffer.extract(data)
       if lines.empty?
         warning.concat("buffer_extract: a delimiter can't be found in current chunk")
         warning.concat(", maybe there are no more delimiters or the delimiter is incorrect")
@@ -254,11 +256,23 @@ module FileWatch
         warning.concat(", if this message is logged often try increasing the `file_chunk_size` setting.")
         additional["delimiter"] = @settings.delimiter
         additional["read_position"] = @bytes_read
-        additional["bytes_read_count"] = data.bytesize
+        additional["bytes_read_count"] = bytes_read
         additional["last_known_file_size"] = last_stat_size
         additional["file_path"] = @path
       end
-      BufferExtractResult.new(lines, warning, additional)
+      BufferExtractResult.new(lines, warning, additional, bytes_consumed)
+    end
+    private :buffer_extract_result
+
+    # memory maps (a window of) the file from the bytes_read position, lines are handed to the listener directly
+    # @see FileWatch::LineReader#map_lines
+    # @return [Integer] bytes consumed by the lines accepted (0 when the window is empty)
+    def read_mapped_lines(amount, &stop)
+      set_accessed_at
+      bytes_read, bytes_consumed = @buffer.map_lines(@path, @bytes_read, amount, @listener, &stop)
+      raise EOFError if bytes_read.zero?
+      increment_bytes_read(bytes_read)
+      bytes_consumed
     end
 
     def increment_bytes_read(delta)
@@ -270,7 +284,9 @@ module FileWatch
 
     def update_bytes_read(total_bytes_read)
       return if total_bytes_read.nil?
-      @bytes_read = total_bytes_read
+      # a negative (sincedb) position is an archive checkpoint, only ReadZipFile resumes from it
+      # the decompressed offset says nothing of the compressed bytes read
+      @bytes_read = total_bytes_read < 0 ? 0 : total_bytes_read
       update_bytes_unread
       @bytes_read
     end
@@ -355,6 +371,34 @@ module FileWatch
       @standard_loop_max_bytes = @read_loop_count * @read_chunk_size
     end
 
+    # sized for what is read in this round (`file_read_sizing => "adaptive"`): about 4 chunks, within bounds
+    def set_adaptive_read_loop(budget)
+      size = ADAPTIVE_CHUNK_MIN
+      size <<= 1 while size < ADAPTIVE_CHUNK_MAX && size * 4 < budget
+      @read_loop_count = FileWatch::MAX_ITERATIONS
+      @read_chunk_size = size
+      @standard_loop_max_bytes = @read_loop_count * @read_chunk_size
+    end
+
+    # what the file grows by in a `stat_interval` (see ReadBudget), from its recent growth rate
+    # rounds are shorter than the interval while a backlog is read (no sleep), the rate is measured by elapsed time
+    # so that it does not depend on how often the file is observed
+    def growth
+      @growth_rate.nil? ? 0 : (@growth_rate * @settings.stat_interval).round
+    end
+
+    # @param at [Float] monotonic seconds, the same for all files observed in a round
+    def observe_growth(at = Process.clock_gettime(Process::CLOCK_MONOTONIC))
+      size = current_size
+      unless @observed_at.nil? || at <= @observed_at
+        grown = size < @observed_size ? 0 : size - @observed_size
+        rate = grown / (at - @observed_at) # bytes per second
+        @growth_rate = @growth_rate.nil? ? rate : (@growth_rate * 3 + rate) / 4
+      end
+      @observed_size = size
+      @observed_at = at
+    end
+
     def set_maximum_read_loop
       # used to quickly fully read an open file when rotation is detected
       @read_loop_count = FileWatch::MAX_ITERATIONS
@@ -362,9 +406,11 @@ module FileWatch
       @standard_loop_max_bytes = @read_loop_count * @read_chunk_size
     end
 
-    def loop_control_adjusted_for_stat_size
+    # @param max_bytes [Integer, nil] limits how much is read (a per round budget)
+    def loop_control_adjusted_for_stat_size(max_bytes = nil)
       more = false
       to_read = current_size - @bytes_read
+      to_read = max_bytes if !max_bytes.nil? && max_bytes < to_read
       return LoopControlResult.new(0, 0, more) if to_read < 1
       return LoopControlResult.new(1, to_read, more) if to_read < @read_chunk_size
       # set as if to_read is greater than or equal to max_bytes
@@ -392,6 +438,7 @@ module FileWatch
       @recent_states.shift if @recent_states.size == 8
       @recent_states << @state unless @state.nil?
       @state = value
+      @watched_files_collection.update_state(self, value) unless @watched_files_collection.nil?
     end
 
     def recent_state_history
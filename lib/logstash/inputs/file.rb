@@ -11,6 +11,7 @@ require "concurrent/atomic/atomic_reference"
 
 require_relative "file/patch"
 require_relative "file_listener"
+require_relative "file_metrics"
 require_relative "delete_completed_file_handler"
 require_relative "log_completed_file_handler"
 require_relative "friendly_durations"
@@ -120,6 +121,15 @@ class File < LogStash::Inputs::Base
   # `path` option to discover new files to watch.
   config :discover_interval, :validate => :number, :default => 15
 
+  # How new files are discovered. With `glob` the filename patterns are expanded every `discover_interval`.
+  # With `watch_service` the directories are watched for new files (inotify on Linux) and the
+  # filename patterns are only expanded every 10 x `discover_interval`, as a safety net.
+  config :discovery_backend, :validate => ["glob", "watch_service"], :default => "glob"
+
+  # Share directory listings and file stats with the other file inputs (that set it) of the same Logstash
+  # process, a directory (or file) watched by several inputs is then listed (stat-ed) about once per interval.
+  config :shared_scans, :validate => :boolean, :default => false
+
   # Path of the sincedb database file (keeps track of the current
   # position of monitored log files) that will be written to disk.
   # The default will write sincedb files to `<path.data>/plugins/inputs/file`
@@ -169,6 +179,11 @@ class File < LogStash::Inputs::Base
   # The default of 4095 is set in filewatch.
   config :max_open_files, :validate => :number
 
+  # How `max_open_files` is enforced in tail mode. With `window` only that many files are active, the others
+  # wait until active files get closed by `close_older`. With `lru` all files are active and only the descriptors
+  # are limited: the least recently read files are closed to make room and resume from their position once they change.
+  config :max_open_files_policy, :validate => ["window", "lru"], :default => "window"
+
   # What mode do you want the file input to operate in.
   # Tail a few files or read many content-complete files
   # The default is tail
@@ -198,6 +213,37 @@ class File < LogStash::Inputs::Base
   # This option protects against the well known inode recycling problem. (add reference)
   config :sincedb_clean_after, :validate => [FriendlyDurations, "days"], :default => "14 days" # days
 
+  # The format of the sincedb file. The `binary` format only appends the records that changed
+  # since the last write and is compacted from time to time, instead of re-writing all records.
+  # An existing sincedb file is converted (to either format) when it is written to.
+  config :sincedb_format, :validate => ["text", "binary"], :default => "text"
+
+  # Write the sincedb on a separate thread: reading is not held up while the file is written,
+  # requests to write are coalesced to at most one write per `sincedb_write_interval`.
+  config :sincedb_write_async, :validate => :boolean, :default => false
+
+  # Force the sincedb to disk (fsync) on every write, before the previous content is replaced.
+  config :sincedb_fsync, :validate => :boolean, :default => false
+
+  # Keep a snapshot of the watched files next to the sincedb (`<sincedb_path>.files`) when stopping.
+  # On the next start the files in the snapshot are set up a batch at a time while reading,
+  # the new files first, instead of all of them before the first line is read.
+  config :warm_start, :validate => :boolean, :default => false
+
+  # How a file is identified in the sincedb. With `inode` by its inode and device numbers,
+  # with `fingerprint` by a hash of its first `fingerprint_bytes` bytes, for file systems
+  # (e.g. NFS, overlay) where inodes are reused or not stable.
+  config :file_identity, :validate => ["inode", "fingerprint"], :default => "inode"
+
+  # The number of bytes, from the start of a file, hashed when `file_identity` is `fingerprint`.
+  # In tail mode shorter files are only picked up once they grew, in read mode their whole content is hashed.
+  config :fingerprint_bytes, :validate => :number, :default => FileWatch::FINGERPRINT_SIZE
+
+  # How much is read from a file in a round (tail mode). With `fixed` it is set by `file_chunk_size`,
+  # `file_chunk_count` and `file_read_budget`. With `adaptive` the chunk size and the bytes read from each
+  # file are derived from how fast the file grows and how far behind it is, within a budget for all files.
+  config :file_read_sizing, :validate => ["fixed", "adaptive"], :default => "fixed"
+
   # File content is read off disk in blocks or chunks, then using whatever the set delimiter
   # is, lines are extracted from the chunk. Specify the size in bytes of each chunk.
   # See `file_chunk_count` to see why and when to change this from the default.
@@ -236,6 +282,18 @@ class File < LogStash::Inputs::Base
   # If not specified to true, and the file is corrupted, could end in cyclic processing of the broken file.
   config :check_archive_validity, :validate => :boolean, :default => false
 
+  # When in 'read' mode - read uncompressed files using memory mapped windows instead of chunks.
+  # Meant for large files that do not change while being read (e.g. batch exports).
+  config :file_read_mmap, :validate => :boolean, :default => false
+
+  # How many files are read at the same time.
+  # With the default of 1 active files are read one after the other on the plugin thread.
+  config :read_workers, :validate => :number, :default => 1
+
+  # When in 'tail' mode - the maximum number of bytes read from one file before moving on to the next file,
+  # what is left is read in the next round. Not set by default, unless `read_workers` is greater than 1.
+  config :file_read_budget, :validate => :number
+
   public
 
   class << self
@@ -267,18 +325,33 @@ class File < LogStash::Inputs::Base
       :exclude => @exclude,
       :stat_interval => @stat_interval,
       :discover_interval => @discover_interval,
+      :discovery_backend => @discovery_backend,
+      :shared_scans => @shared_scans,
       :sincedb_write_interval => @sincedb_write_interval,
       :delimiter => @delimiter,
       :ignore_older => @ignore_older,
       :close_older => @close_older,
       :max_open_files => @max_open_files,
+      :max_open_files_policy => @max_open_files_policy,
       :sincedb_clean_after => @sincedb_clean_after,
+      :sincedb_format => @sincedb_format,
+      :sincedb_write_async => @sincedb_write_async,
+      :sincedb_fsync => @sincedb_fsync,
+      :warm_start => @warm_start,
+      :file_identity => @file_identity,
+      :fingerprint_bytes => @fingerprint_bytes,
       :file_chunk_count => @file_chunk_count,
       :file_chunk_size => @file_chunk_size,
       :file_sort_by => @file_sort_by,
       :file_sort_direction => @file_sort_direction,
       :exit_after_read => @exit_after_read,
       :check_archive_validity => @check_archive_validity,
+      :file_read_mmap => @file_read_mmap,
+      :read_workers => @read_workers,
+      :file_read_budget => @file_read_budget,
+      :file_read_sizing => @file_read_sizing,
+      :metrics => @watch_metrics = FileWatch::Metrics.new,
+      :backpressure => @backpressure = FileWatch::Backpressure.new,
     }
 
     @path.each do |path|
@@ -301,6 +374,8 @@ class File < LogStash::Inputs::Base
     @filewatch_config[:sincedb_path] = @sincedb_path
 
     @filewatch_config[:start_new_files_at] = @start_position.to_sym
+    # files being read are complete, a short one can be told apart by its whole content
+    @filewatch_config[:fingerprint_short_files] = read_mode?
 
     if @file_completed_action.include?('log')
       if @file_completed_log_path.nil?
@@ -317,6 +392,10 @@ class File < LogStash::Inputs::Base
       end
     end
 
+    if @fingerprint_bytes < 1
+      raise ArgumentError.new('The "fingerprint_bytes" setting must be a positive number')
+    end
+
     if tail_mode?
       if @exit_after_read
         raise ArgumentError.new('The "exit_after_read" setting only works when the "mode" is set to "read"')
@@ -326,6 +405,7 @@ class File < LogStash::Inputs::Base
       @watcher_class = FileWatch::ObservingRead
     end
     @codec = LogStash::Codecs::IdentityMapCodec.new(@codec)
+    @file_metrics = FileMetrics.new(metric)
     @completely_stopped = Concurrent::AtomicBoolean.new
     @queue = Concurrent::AtomicReference.new
 
@@ -374,13 +454,21 @@ class File < LogStash::Inputs::Base
   end # def run
 
   def post_process_this(event, path)
-    event.set("[@metadata][path]", path)
-    event.set("[@metadata][host]", @host)
-    attempt_set(event, @source_host_field, @host)
-    attempt_set(event, @source_path_field, path) if path
+    add_metadata(event, path)
+    timed_push { @queue.get << event }
+  end
 
-    decorate(event)
-    @queue.get << event
+  # pushes the events decoded from (the lines of) a chunk at once
+  def post_process_batch(events, path)
+    events.each { |event| add_metadata(event, path) }
+    queue = @queue.get
+    timed_push do
+      if queue.respond_to?(:push_batch)
+        queue.push_batch(events)
+      else
+        events.each { |event| queue << event }
+      end
+    end
   end
 
   def handle_deletable_path(path)
@@ -394,6 +482,11 @@ class File < LogStash::Inputs::Base
     @logger.debug? && @logger.debug("Received line", :path => path, :text => line)
   end
 
+  # The watch loop calls back here every round (`stat_interval`)
+  def report_metrics(metrics)
+    @file_metrics.report(metrics.snapshot)
+  end
+
   def stop
     unless @watcher.nil?
       @codec.close
@@ -401,6 +494,9 @@ class File < LogStash::Inputs::Base
     end
   end
 
+  # lines and bytes are counted by the listeners (see FileListener)
+  attr_reader :watch_metrics
+
   # @private used in specs
   def queue
     @queue.get
@@ -416,6 +512,15 @@ class File < LogStash::Inputs::Base
     end
   end
 
+  def add_metadata(event, path)
+    event.set("[@metadata][path]", path)
+    event.set("[@metadata][host]", @host)
+    attempt_set(event, @source_host_field, @host)
+    attempt_set(event, @source_path_field, path) if path
+
+    decorate(event)
+  end
+
   # Attempt to set an event's field to the provided value
   # without overwriting an existing value or producing an error
   def attempt_set(event, field_reference, value)
@@ -427,6 +532,14 @@ class File < LogStash::Inputs::Base
     false
   end
 
+  # a push blocks while the queue is full, the time it took is reported to the watch (see FileWatch::Backpressure)
+  def timed_push
+    started = Process.clock_gettime(Process::CLOCK_MONOTONIC, :nanosecond)
+    yield
+  ensure
+    @backpressure.blocked(Process.clock_gettime(Process::CLOCK_MONOTONIC, :nanosecond) - started) if @backpressure && started
+  end
+
   def build_sincedb_base_from_env
     # This section is going to be deprecated eventually, as path.data will be
     # the default, not an environment variable (SINCEDB_DIR or LOGSTASH_HOME)
@@ -37,15 +37,72 @@ module LogStash module Inputs
       # and push transient data filled dup listener downstream
       input.log_line_received(path, data)
       input.codec.accept(self.class.new(path, input, data))
+      count_lines(1, data.bytesize)
+    end
+
+    # Accepts the lines of a chunk at once, one listener is passed to the codec for all of them and the events
+    # decoded are pushed to the queue together.
+    # The (optional) block is called after every line to check whether to stop.
+    # @return the number of lines accepted
+    def accept_lines(lines)
+      batch = BatchListener.new(path, input)
+      accepted = bytes = 0
+      lines.each do |line|
+        input.log_line_received(path, line)
+        batch.data = line
+        input.codec.accept(batch)
+        accepted += 1
+        bytes += line.bytesize
+        break if block_given? && yield
+      end
+      accepted
+    ensure
+      batch.flush_events
+      count_lines(accepted, bytes)
     end
 
     def process_event(event)
       input.post_process_this(event, path)
     end
 
+    private
+
+    def count_lines(lines, bytes)
+      metrics = input.watch_metrics
+      return if metrics.nil? || lines.nil? || lines.zero?
+      metrics.increment(:lines, lines)
+      metrics.increment(:bytes, bytes)
+    end
   end
 
   class FlushableListener < FileListener
     attr_writer :path
   end
+
+  # Re-used for the lines of a batch (see FileListener#accept_lines), the events decoded are collected and handed to
+  # the input once the batch is done. Events flushed later on (e.g. a multiline codec's auto flush) on another thread
+  # go to the queue directly.
+  class BatchListener < FileListener
+    attr_writer :data
+
+    def initialize(path, input)
+      super
+      @events = []
+      @thread = Thread.current
+    end
+
+    def process_event(event)
+      if @thread.equal?(Thread.current)
+        @events << event
+      else
+        super
+      end
+    end
+
+    def flush_events
+      @thread = nil
+      input.post_process_batch(@events, path) unless @events.empty?
+      @events = []
+    end
+  end
 end end
@@ -0,0 +1,45 @@
+# encoding: utf-8
+
+module LogStash module Inputs
+  # Publishes the metrics collected by FileWatch (see FileWatch::Metrics) through the plugin metrics API.
+  # The segments of a dotted name are namespaces e.g. "phases.process_active.duration_in_millis" is published as
+  # duration_in_millis under phases / process_active. The lines and bytes counters are also published as rates.
+  class FileMetrics
+    RATES = { "lines" => :lines_per_second, "bytes" => :bytes_per_second }.freeze
+
+    def initialize(metric)
+      @metric = metric
+      @targets = {} # name => [namespaced metric, key]
+      @previous = {}
+      @previous_at = nil
+    end
+
+    def report(snapshot, now = Time.now.to_f)
+      snapshot.each do |name, value|
+        namespace, key = target(name)
+        namespace.gauge(key, value)
+      end
+      report_rates(snapshot, now)
+    end
+
+    private
+
+    # per second, since the previous report
+    def report_rates(snapshot, now)
+      elapsed = @previous_at.nil? ? 0 : now - @previous_at
+      RATES.each do |name, key|
+        value = snapshot.fetch(name, 0)
+        @metric.gauge(key, ((value - @previous.fetch(name, 0)) / elapsed).round) if elapsed > 0
+        @previous[name] = value
+      end
+      @previous_at = now
+    end
+
+    def target(name)
+      @targets[name] ||= begin
+        *path, key = name.split(".")
+        [path.inject(@metric) { |metric, namespace| metric.namespace(namespace.to_sym) }, key.to_sym]
+      end
+    end
+  end
+end end
@@ -4,10 +4,13 @@ module LogStash module Inputs
   class LogCompletedFileHandler
     def initialize(log_completed_file_path)
       @log_completed_file_path = Pathname.new(log_completed_file_path)
+      @lock = Mutex.new # files might complete on different threads (read_workers)
     end
 
     def handle(path)
-      @log_completed_file_path.open("a") { |fd| fd.puts(path) }
+      @lock.synchronize do
+        @log_completed_file_path.open("a") { |fd| fd.puts(path) }
+      end
     end
   end
 end end
@@ -0,0 +1,92 @@
+# encoding: utf-8
+require 'stud/temporary'
+require_relative 'spec_helper'
+
+module FileWatch
+  describe Backpressure do
+    let(:second) { 1_000_000_000 }
+
+    it "throttles once pushes were blocked for a part of the round" do
+      subject.blocked(second)
+      expect(subject.update).to eq(1)
+      expect(subject).to be_throttled
+    end
+
+    it "ignores pushes that did not block" do
+      subject.blocked(1_000)
+      expect(subject.update).to eq(0)
+      expect(subject).not_to be_throttled
+    end
+
+    it "throttles up to a maximum and comes back down one level per round" do
+      (Backpressure::MAX_LEVEL + 2).times do
+        subject.blocked(second)
+        subject.update
+      end
+      expect(subject.level).to eq(Backpressure::MAX_LEVEL)
+      expect(subject.update).to eq(Backpressure::MAX_LEVEL - 1)
+    end
+
+    it "halves what is read for every level" do
+      expect(subject.read_budget(1024)).to eq(1024)
+      expect(subject.read_budget(nil)).to be_nil
+      2.times do
+        subject.blocked(second)
+        subject.update
+      end
+      expect(subject.read_budget(1024)).to eq(256)
+      expect(subject.read_budget(nil)).to eq(FILE_READ_BUDGET / 2)
+    end
+
+    it "still reads a chunk however throttled" do
+      Backpressure::MAX_LEVEL.times do
+        subject.blocked(second)
+        subject.update
+      end
+      expect(subject.read_budget(12, 32)).to eq(12)
+      expect(subject.read_budget(64, 32)).to eq(32)
+      expect(subject.read_budget(0, 32)).to eq(0)
+      expect(subject.read_budget(10)).to eq(1)
+    end
+  end
+
+  describe TailMode::Processor do
+    let(:second) { 1_000_000_000 }
+    let(:directory) { Stud::Temporary.directory }
+    let(:path) { ::File.join(directory, "1.log") }
+    let(:backpressure) { Backpressure.new }
+    let(:settings) do
+      Settings.from_options(:sincedb_path => File::NULL, :sincedb_write_interval => 0, :delimiter => "\n",
+                            :file_read_sizing => "adaptive", :backpressure => backpressure)
+    end
+    let(:sdb_collection) { SincedbCollection.new(settings) }
+    let(:observer) { TestObserver.new }
+    let(:watch) { double("watch", :quit? => false) }
+    let(:watched_file) { WatchedFile.new(Pathname.new(path), PathStatClass.new(Pathname.new(path)), settings) }
+    subject { described_class.new(settings).add_watch(watch) }
+
+    before do
+      stub_const("FileWatch::ADAPTIVE_READ_BUDGET", 64 * 1024)
+      ::File.write(path, ("x" * 1023 + "\n") * 256) # a 256KB backlog
+      subject.initialize_handlers(sdb_collection, observer)
+      sdb_collection.set(watched_file.sincedb_key, SincedbValue.new(0, nil, watched_file))
+      watched_file.restat!
+      watched_file.open
+      watched_file.activate
+    end
+
+    after { FileUtils.rm_rf(directory) }
+
+    it "reads the round's budget halved for every level, once" do
+      2.times do
+        backpressure.blocked(second)
+        backpressure.update
+      end
+      subject.send(:allocate_read_budget, [watched_file])
+      expect(watched_file.read_budget).to eq(16 * 1024)
+      subject.grow(watched_file)
+      expect(watched_file.bytes_read).to eq(16 * 1024)
+      expect(observer.listener_for(path).lines.size).to eq(16)
+    end
+  end
+end
@@ -0,0 +1,104 @@
+# encoding: utf-8
+require 'stud/temporary'
+require_relative 'spec_helper'
+
+module FileWatch
+  describe Fingerprint do
+    let(:directory) { Stud::Temporary.directory }
+    let(:file_path) { ::File.join(directory, "1.log") }
+
+    after(:each) { FileUtils.rm_rf(directory) }
+
+    it "hashes the first bytes of a file with xxHash64" do
+      File.write(file_path, "Nobody inspects the spammish repetition")
+      expect(described_class.of(file_path, 1024)).to eq(["fbcea83c8a378bf1", 39])
+      expect(described_class.of(file_path, 3)).to eq(described_class.of(file_path, 3))
+      File.write(file_path, "abc")
+      expect(described_class.of(file_path, 1024)).to eq(["44bc2cf5ad770999", 3])
+    end
+
+    it "raises when the file does not exist" do
+      expect { described_class.of(file_path, 16) }.to raise_error(Errno::ENOENT)
+    end
+  end
+
+  describe Fnv do
+    it "computes the same hashes as the arbitrary precision arithmetic" do
+      data = (0..255).map(&:chr).join * 4
+      fnv32 = data.each_byte.inject(0x811c9dc5) { |hash, byte| ((hash ^ byte) * 0x01000193) % 2**32 }
+      fnv64 = data.each_byte.inject(0xcbf29ce484222325) { |hash, byte| ((hash ^ byte) * 0x100000001b3) % 2**64 }
+      expect(described_class.new(data).fnv1a32).to eq(fnv32)
+      expect(described_class.new(data).fnv1a64).to eq(fnv64)
+      expect(described_class.new("foobar").fnv1a64).to eq(0x85944171f73967e8)
+    end
+  end
+
+  describe Stat::Fingerprint do
+    let(:directory) { Stud::Temporary.directory }
+    let(:file_path) { ::File.join(directory, "1.log") }
+    let(:settings) { Settings.from_options(:file_identity => "fingerprint", :fingerprint_bytes => 16) }
+    let(:stat) { Stat.create(Pathname.new(file_path), settings) }
+
+    after(:each) { FileUtils.rm_rf(directory) }
+
+    it "keys a file on its content" do
+      File.write(file_path, "line1\nline2\nline3\n")
+      expect(stat.inode_struct).to eq(InodeStruct.new(Fingerprint.of(file_path, 16).first, 0, 16))
+      other_path = ::File.join(directory, "2.log")
+      File.write(other_path, "line1\nline2\nline3\n")
+      expect(Stat.create(Pathname.new(other_path), settings).inode_struct).to eq(stat.inode_struct)
+    end
+
+    it "keeps the key while the file grows" do
+      File.write(file_path, "line1\nline2\nline3\n")
+      key = stat.inode_struct
+      File.open(file_path, "a") { |file| file.write("line4\n") }
+      stat.restat
+      expect(stat.inode_struct).to eq(key)
+      expect(stat.size).to eq(24)
+    end
+
+    context "when the file is shorter than fingerprint_bytes" do
+      before(:each) { File.write(file_path, "line1\n") }
+
+      it "is pending until it grew" do
+        expect(stat).to be_pending
+        File.open(file_path, "a") { |file| file.write("line2\nline3\n") }
+        stat.restat
+        expect(stat).not_to be_pending
+        expect(stat.inode_struct.inode).to eq(Fingerprint.of(file_path, 16).first)
+      end
+
+      context "and files are read" do
+        let(:settings) { Settings.from_options(:file_identity => "fingerprint", :fingerprint_bytes => 16, :fingerprint_short_files => true) }
+
+        it "is keyed on its whole content" do
+          expect(stat).not_to be_pending
+          expect(stat.inode_struct).to eq(InodeStruct.new(Fingerprint.of(file_path, 16).first, 0, 6))
+        end
+      end
+    end
+
+    context "when the file is replaced" do
+      before(:each) { File.write(file_path, "line1\nline2\nline3\n") }
+
+      it "keeps the previous key and size until the new file can be told apart" do
+        key = stat.inode_struct
+        FileUtils.mv(file_path, "#{file_path}.1")
+        File.write(file_path, "new1\n")
+        stat.restat
+        expect(stat.inode_struct).to eq(key)
+        expect(stat.size).to eq(18)
+        File.open(file_path, "a") { |file| file.write("new2\nnew3\nnew4\n") }
+        stat.restat
+        expect(stat.inode_struct).not_to eq(key)
+        expect(stat.size).to eq(20)
+      end
+    end
+
+    it "is not used by default" do
+      File.write(file_path, "line1\n")
+      expect(Stat.create(Pathname.new(file_path), Settings.new)).to be_a(PathStatClass)
+    end
+  end
+end
@@ -0,0 +1,51 @@
+# encoding: utf-8
+require_relative 'spec_helper'
+
+module FileWatch
+  describe HandleCache do
+    let(:cached_file) do
+      Class.new do
+        attr_reader :accessed_at
+        attr_writer :all_read
+
+        def initialize(accessed_at, open = true)
+          @accessed_at, @open, @all_read = accessed_at, open, true
+        end
+
+        def file_open?; @open; end
+        def file_close; @open = false; end
+        def open; @open = true; end
+        def all_read?; @all_read; end
+      end
+    end
+
+    let(:metrics) { Metrics.new }
+    subject { described_class.new(2, metrics) }
+
+    it "closes the least recently read file to make room" do
+      first, second, third = cached_file.new(1), cached_file.new(2), cached_file.new(3)
+      subject.admit(first)
+      subject.admit(second)
+      subject.touch(first)
+      subject.admit(third)
+      expect([first, second, third].map(&:file_open?)).to eq([true, false, true])
+      expect(metrics.snapshot["handles.evicted"]).to eq(1)
+    end
+
+    it "closes the files read fully first" do
+      first, second, third = cached_file.new(1), cached_file.new(2), cached_file.new(3)
+      subject.admit(first)
+      subject.admit(second)
+      first.all_read = false
+      subject.admit(third)
+      expect([first, second].map(&:file_open?)).to eq([true, false])
+    end
+
+    it "reopens the changed files, the ones read the longest ago first" do
+      files = [cached_file.new(3, false), cached_file.new(1, false), cached_file.new(2, false)]
+      readable = subject.reserve(files) { |file| file.open }
+      expect(readable.map(&:accessed_at)).to eq([1, 2])
+      expect(subject.size).to eq(2)
+    end
+  end
+end
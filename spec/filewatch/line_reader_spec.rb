@@ -0,0 +1,108 @@
+# encoding: utf-8
+require 'stud/temporary'
+require_relative 'spec_helper'
+
+describe FileWatch::LineReader do
+  subject { described_class.new("\n") }
+
+  context "when extracting from data" do
+    it "splits the lines correctly" do
+      expect(subject.extract("hello\nworld\n").to_a).to eq ["hello", "world"]
+    end
+
+    it "holds partial lines back until a delimiter is found" do
+      expect(subject.extract("hello\nwor").to_a).to eq ["hello"]
+      expect(subject.extract("ld\n").to_a).to eq ["world"]
+      expect(subject.empty?).to be true
+    end
+
+    it "returns the held back partial line on flush" do
+      subject.extract("hello\nwor")
+      expect(subject.flush).to eq "wor"
+      expect(subject.flush).to eq ""
+    end
+  end
+
+  context "when passing a multi-byte delimiter" do
+    subject { described_class.new("\r\n") }
+
+    it "splits the lines correctly" do
+      expect(subject.extract("hello\r\nworld\r\n").to_a).to eq ["hello", "world"]
+    end
+
+    it "detects a delimiter split across chunks" do
+      expect(subject.extract("hello\r").to_a).to eq []
+      expect(subject.extract("\nworld\r").to_a).to eq ["hello"]
+      expect(subject.extract("\r\n").to_a).to eq ["world\r"]
+    end
+  end
+
+  context "when reading from a file" do
+    let(:file_path) { Stud::Temporary.pathname }
+    let(:io) { File.open(file_path) }
+
+    before(:each) { File.write(file_path, "line1\nline2\nline3") }
+
+    after(:each) do
+      io.close unless io.closed?
+      FileUtils.rm_f(file_path)
+    end
+
+    it "returns the lines with the bytes read and consumed" do
+      lines, bytes_read, bytes_consumed = subject.read_lines(io, 8)
+      expect(lines).to eq ["line1"]
+      expect(bytes_read).to eq 8
+      expect(bytes_consumed).to eq 6
+      lines, bytes_read, bytes_consumed = subject.read_lines(io, 32)
+      expect(lines).to eq ["line2"]
+      expect(bytes_read).to eq 9
+      expect(bytes_consumed).to eq 6
+      expect(subject.flush).to eq "line3"
+    end
+
+    it "reads from the current file position" do
+      io.sysseek(6)
+      lines, _, _ = subject.read_lines(io, 32)
+      expect(lines).to eq ["line2"]
+    end
+
+    it "raises EOFError at the end of the file" do
+      subject.read_lines(io, 32)
+      expect { subject.read_lines(io, 32) }.to raise_error(EOFError)
+    end
+  end
+
+  context "when memory mapping a file" do
+    let(:file_path) { Stud::Temporary.pathname }
+    let(:listener) { double("listener", :accept_lines => nil) }
+    let(:accepted) { [] }
+
+    before(:each) do
+      File.write(file_path, "line1\nline2\nline3\n")
+      allow(listener).to receive(:accept_lines) { |lines| accepted.concat(lines); lines.size }
+    end
+
+    after(:each) do
+      subject.release
+      FileUtils.rm_f(file_path)
+    end
+
+    def mapped?
+      File.readlines("/proc/self/maps").any? { |line| line.chomp.end_with?(file_path) }
+    end
+
+    it "moves the window forward over the file" do
+      expect(subject.map_lines(file_path, 0, 9, listener)).to eq [9, 6]
+      expect(subject.map_lines(file_path, 9, 9, listener)).to eq [9, 12]
+      expect(subject.map_lines(file_path, 18, 9, listener)).to eq [0, 0]
+      expect(accepted).to eq ["line1", "line2", "line3"]
+    end
+
+    it "releases the mapping", :if => File.exist?("/proc/self/maps") && FileWatch::LineReader.unmap_supported? do
+      subject.map_lines(file_path, 0, 18, listener)
+      expect(mapped?).to be true
+      subject.release
+      expect(mapped?).to be false
+    end
+  end
+end
@@ -0,0 +1,61 @@
+# encoding: utf-8
+require 'stud/temporary'
+require_relative 'spec_helper'
+require 'filewatch/observing_tail'
+
+module FileWatch
+  describe Metrics do
+    it "counts, keeps the last gauge value and times blocks" do
+      subject.increment(:lines, 10)
+      subject.increment("lines")
+      subject.gauge(:"files.waiting", 3)
+      subject.gauge(:"files.waiting", 2)
+      expect(subject.time(:tick) { 42 }).to eq(42)
+      expect { subject.time(:tick) { raise ArgumentError } }.to raise_error(ArgumentError)
+      snapshot = subject.snapshot
+      expect(snapshot).to include("lines" => 11, "files.waiting" => 2, "tick.count" => 2)
+      expect(snapshot.keys).to include("tick.duration_in_millis", "tick.last_duration_in_millis")
+    end
+
+    it "counts from several threads" do
+      4.times.map { Thread.new { 1000.times { subject.increment(:bytes, 2) } } }.each(&:join)
+      expect(subject.snapshot["bytes"]).to eq(8000)
+    end
+
+    context "when tailing" do
+      let(:directory) { Stud::Temporary.directory }
+      let(:watch_dir) { ::File.join(directory, "*.log") }
+      let(:observer) { TestObserver.new }
+      let(:opts) do
+        { :sincedb_path => ::File.join(directory, "tailing.sdb"), :stat_interval => 0.05, :discover_interval => 1,
+          :start_new_files_at => :beginning, :max_open_files => 1 }
+      end
+      let(:tailing) { ObservingTail.new(opts) }
+      let(:reports) { [] }
+      let(:actions) do
+        RSpec::Sequencing.run_after(0.5, "quit after a short time") { tailing.quit }
+      end
+
+      before(:each) do
+        File.write(::File.join(directory, "1.log"), "line1\n")
+        File.write(::File.join(directory, "2.log"), "line2\n")
+        collected = reports
+        observer.define_singleton_method(:report_metrics) { |metrics| collected << metrics.snapshot }
+      end
+
+      after(:each) { FileUtils.rm_rf(directory) }
+
+      it "reports the metrics of every round to the observer" do
+        actions.activate_quietly
+        tailing.watch_this(watch_dir)
+        tailing.subscribe(observer)
+        actions.assert_no_errors
+        expect(reports).not_to be_empty
+        expect(reports.last).to include("files.total" => 2, "files.active" => 1, "files.waiting" => 1)
+        expect(reports.last.keys).to include("tick.count", "phases.stat.count", "phases.process_active.count",
+                                             "discovery.glob.count", "lag.files", "lag.max_bytes")
+        expect(tailing.settings.metrics.snapshot["sincedb.write.count"]).to be >= 1
+      end
+    end
+  end
+end
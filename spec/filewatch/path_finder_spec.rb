@@ -0,0 +1,77 @@
+# encoding: utf-8
+require 'stud/temporary'
+require_relative 'spec_helper'
+
+module FileWatch
+  describe PathFinder do
+    let(:directory) { Stud::Temporary.directory }
+    let(:settings) { Settings.new }
+    let(:watched_files) { WatchedFilesCollection.new(settings) }
+    let(:files) { %w(1.log 2.log .hidden.log skip.log a/3.log a/b/4.log a/.c/5.log d/6.txt) }
+    subject { described_class.new(["skip*"]) }
+
+    before(:each) do
+      files.each do |file|
+        path = ::File.join(directory, file)
+        FileUtils.mkdir_p(::File.dirname(path))
+        File.write(path, "line\n")
+      end
+    end
+    after(:each) { FileUtils.rm_rf(directory) }
+
+    def find(*globs)
+      subject.find(globs.map { |glob| ::File.join(directory, glob) }, watched_files)
+    end
+
+    def names(paths)
+      paths.map { |path| path.sub("#{directory}/", "") }
+    end
+
+    it "matches files the way Dir.glob does" do
+      %w(*.log **/*.log a/**/*.log */*.{log,txt} [12].log ?.log .*.log).each do |glob|
+        expected = Dir.glob(::File.join(directory, glob)).select { |path| File.file?(path) && !path.end_with?("skip.log") }
+        expect(find(glob).first.sort).to eq(expected.sort)
+      end
+    end
+
+    it "leaves out excluded files but counts them" do
+      paths, found = find("*.log")
+      expect(names(paths)).to eq(%w(1.log 2.log))
+      expect(found).to eq(3)
+    end
+
+    it "walks the globs of a directory once and returns each file once" do
+      paths, found = find("*.log", "1.*", "a/*.log")
+      expect(names(paths)).to eq(%w(1.log 2.log a/3.log))
+      expect(found).to eq(4)
+    end
+
+    it "leaves out the files that are already watched" do
+      pathname = Pathname.new(::File.join(directory, "1.log"))
+      watched_files.add(WatchedFile.new(pathname, PathStatClass.new(pathname), settings))
+      expect(names(find("*.log").first)).to eq(%w(2.log))
+    end
+
+    it "finds nothing under a missing directory" do
+      expect(find("missing/*.log")).to eq([[], 0])
+    end
+
+    context "when sharing scans" do
+      subject { described_class.new(["skip*"], true) }
+      before(:each) { ScanCache.clear }
+      after(:each) { ScanCache.clear }
+
+      it "stats the paths without wildcards, their directories are not listed" do
+        paths, found = find("a/3.log", "missing.log", "a", "1.log")
+        expect(names(paths)).to eq(%w(a/3.log 1.log))
+        expect(found).to eq(2)
+        expect(ScanCache.size).to eq(0)
+      end
+    end
+
+    it "matches the file names ignoring case on Windows only" do
+      expected = LogStash::Environment.windows? ? %w(1.log 2.log) : []
+      expect(names(find("[12].LOG").first)).to eq(expected)
+    end
+  end
+end
@@ -0,0 +1,53 @@
+# encoding: utf-8
+require_relative 'spec_helper'
+
+module FileWatch
+  describe ReadBudget do
+    let(:file) { Struct.new(:bytes_unread, :growth, :read_budget) }
+    subject { described_class.new(100) }
+
+    it "reads small backlogs at once and splits the rest evenly" do
+      files = [file.new(10, 0), file.new(1000, 0), file.new(500, 0)]
+      expect(subject.allocate(files)).to be_truthy
+      expect(files.map(&:read_budget)).to eq([10, 45, 45])
+    end
+
+    it "gives each file its backlog when the budget allows" do
+      files = [file.new(10, 0), file.new(20, 0), file.new(0, 0)]
+      expect(subject.allocate(files)).to be_falsey
+      expect(files.map(&:read_budget)).to eq([10, 20, 0])
+    end
+
+    it "gives what a file grows by before working off backlogs" do
+      files = [file.new(1000, 80), file.new(1000, 0)]
+      subject.allocate(files)
+      expect(files.map(&:read_budget)).to eq([90, 10])
+    end
+  end
+
+  describe WatchedFile do
+    let(:pathname) { Pathname.new(__FILE__) }
+    subject { WatchedFile.new(pathname, PathStatClass.new(pathname), Settings.new) }
+
+    it "sizes adaptive chunks to what is read in a round" do
+      subject.set_adaptive_read_loop(100)
+      expect(subject.read_chunk_size).to eq(ADAPTIVE_CHUNK_MIN)
+      subject.set_adaptive_read_loop(400_000)
+      expect(subject.read_chunk_size).to eq(128 * 1024)
+      subject.set_adaptive_read_loop(100 * 1024 * 1024)
+      expect(subject.read_chunk_size).to eq(ADAPTIVE_CHUNK_MAX)
+    end
+
+    it "measures growth per stat_interval whatever the time between observations" do
+      size = 0
+      allow(subject).to receive(:current_size) { size }
+      subject.observe_growth(10.0)
+      size += 100
+      subject.observe_growth(10.1) # a short (backlog) round
+      expect(subject.growth).to eq(1000) # 1000 bytes/s and a 1 second stat_interval
+      size += 2000
+      subject.observe_growth(12.1)
+      expect(subject.growth).to eq(1000)
+    end
+  end
+end
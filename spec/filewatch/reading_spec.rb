@@ -2,6 +2,7 @@
 require 'stud/temporary'
 require_relative 'spec_helper'
 require 'filewatch/observing_read'
+require 'zlib'
 
 module FileWatch
   describe Watch do
@@ -150,6 +151,187 @@ module FileWatch
       end
     end
 
+    context "when reading memory mapped files" do
+      let(:opts) { super().merge(:file_read_mmap => true) }
+      let(:actions) do
+        RSpec::Sequencing.run("create file") do
+          File.open(file_path, "wb") { |file|  file.write("line1\nline2\nline3") }
+        end
+        .then("watch") do
+          reading.watch_this(watch_dir)
+        end
+        .then("wait") do
+          wait(2).for{listener1.calls.last}.to eq(:delete)
+        end
+        .then("quit") do
+          reading.quit
+        end
+      end
+      it "the file is read and the sincedb position is at the end" do
+        actions.activate_quietly
+        reading.subscribe(observer)
+        actions.assert_no_errors
+        expect(listener1.calls).to eq([:open, :accept, :accept, :accept, :eof, :delete])
+        expect(listener1.lines).to eq(%w(line1 line2 line3))
+        sincedb_record_fields = File.read(sincedb_path).split(" ")
+        position_field_index = 3
+        expect(sincedb_record_fields[position_field_index]).to eq("17")
+      end
+    end
+
+    context "when reading files with several read_workers" do
+      let(:file_path2) { ::File.join(directory, "2.log") }
+      let(:file_path3) { ::File.join(directory, "3.log") }
+      let(:opts) { super().merge(:read_workers => 3, :max_open_files => 3) }
+      let(:listener2) { observer.listener_for(file_path2) }
+      let(:listener3) { observer.listener_for(file_path3) }
+      let(:actions) do
+        RSpec::Sequencing.run("create files") do
+          File.open(file_path,  "w") { |file| file.write("string11\nstring12\n") }
+          File.open(file_path2, "w") { |file| file.write("string21\nstring22\n") }
+          File.open(file_path3, "w") { |file| file.write("string31\nstring32\n") }
+        end
+        .then("watch") do
+          reading.watch_this(watch_dir)
+        end
+        .then("wait") do
+          wait(2).for { [listener1, listener2, listener3].all? { |listener| listener.calls.last == :delete } }.to eq(true)
+        end
+        .then("quit") do
+          reading.quit
+        end
+      end
+
+      it "reads all files keeping the order of lines within a file" do
+        actions.activate_quietly
+        reading.subscribe(observer)
+        actions.assert_no_errors
+        expect(listener1.lines).to eq %w(string11 string12)
+        expect(listener2.lines).to eq %w(string21 string22)
+        expect(listener3.lines).to eq %w(string31 string32)
+      end
+    end
+
+    context "when several read_workers read files that take a while" do
+      let(:file_path2) { ::File.join(directory, "2.log") }
+      let(:opts) { super().merge(:read_workers => 2, :file_chunk_size => 16, :sincedb_write_interval => 0) }
+      let(:listener2) { observer.listener_for(file_path2) }
+      let(:content) { (1..40).map { |i| format("line%03d", i) } }
+      let(:accepted_at) { Concurrent::Hash.new }
+      let(:actions) do
+        RSpec::Sequencing.run("create files") do
+          File.open(file_path,  "w") { |file| file.write(content.join("\n") + "\n") }
+          File.open(file_path2, "w") { |file| file.write(content.join("\n") + "\n") }
+        end
+        .then("watch") do
+          reading.watch_this(watch_dir)
+        end
+        .then("wait") do
+          wait(10).for { [listener1, listener2].all? { |listener| listener.calls.last == :delete } }.to eq(true)
+        end
+        .then("quit") do
+          reading.quit
+        end
+      end
+
+      before do
+        [listener1, listener2].each do |listener|
+          times = accepted_at[listener.path] = Concurrent::Array.new
+          # a slow consumer, each file takes a while to read (the sincedb is written after every chunk)
+          allow(listener).to receive(:accept_lines).and_wrap_original do |accept_lines, lines, &block|
+            times << Time.now.to_f
+            sleep(0.01)
+            accept_lines.call(lines, &block)
+          end
+        end
+      end
+
+      it "reads the files concurrently" do
+        actions.activate_quietly
+        reading.subscribe(observer)
+        actions.assert_no_errors
+        expect(listener1.lines).to eq content
+        expect(listener2.lines).to eq content
+        first1, last1 = accepted_at[file_path].minmax
+        first2, last2 = accepted_at[file_path2].minmax
+        # the reads overlap, neither worker waits for the other one's file (or sincedb writes) to complete
+        expect(first1).to be < last2
+        expect(first2).to be < last1
+      end
+    end
+
+    context "when resuming a compressed file from a checkpoint" do
+      let(:watch_dir) { ::File.join(directory, "*.gz") }
+      let(:file_path) { ::File.join(directory, "1.log.gz") }
+      let(:actions) do
+        RSpec::Sequencing.run("create file and sincedb") do
+          Zlib::GzipWriter.open(file_path) { |gz| gz.write("line1\nline2\nline3") }
+          key = PathStatClass.new(Pathname.new(file_path)).inode_struct
+          checkpoint = ReadMode::Handlers::ReadZipFile.checkpoint_position("line1\n".bytesize)
+          File.write(sincedb_path, "#{key} #{checkpoint} #{Time.now.to_f} #{file_path}\n")
+        end
+        .then("watch") do
+          reading.watch_this(watch_dir)
+        end
+        .then("wait") do
+          wait(2).for { listener1.calls.last }.to eq(:delete)
+        end
+        .then("quit") do
+          reading.quit
+        end
+      end
+
+      it "reads the lines after the checkpoint" do
+        actions.activate_quietly
+        reading.subscribe(observer)
+        actions.assert_no_errors
+        expect(listener1.lines).to eq(%w(line2 line3))
+        expect(File.read(sincedb_path).split(" ")[3].to_i).to eq(File.size(file_path))
+      end
+
+      context "and the archive is validated" do
+        let(:opts) { super().merge(:check_archive_validity => true) }
+
+        it "reads the lines after the checkpoint" do
+          actions.activate_quietly
+          reading.subscribe(observer)
+          actions.assert_no_errors
+          expect(listener1.calls).to eq([:open, :accept, :accept, :eof, :delete])
+          expect(listener1.lines).to eq(%w(line2 line3))
+        end
+      end
+    end
+
+    context "when reading a BGZF compressed file" do
+      let(:watch_dir) { ::File.join(directory, "*.gz") }
+      let(:file_path) { ::File.join(directory, "1.log.gz") }
+      let(:content) { (1..2000).map { |i| "line#{i}\n" }.join }
+      let(:actions) do
+        RSpec::Sequencing.run("create file and sincedb") do
+          FileWatch.write_bgzf(file_path, content, 1000)
+          key = PathStatClass.new(Pathname.new(file_path)).inode_struct
+          checkpoint = ReadMode::Handlers::ReadZipFile.checkpoint_position(content.index("line1500\n"))
+          File.write(sincedb_path, "#{key} #{checkpoint} #{Time.now.to_f} #{file_path}\n")
+        end
+        .then("watch") do
+          reading.watch_this(watch_dir)
+        end
+        .then("wait") do
+          wait(2).for { listener1.calls.last }.to eq(:delete)
+        end
+        .then("quit") do
+          reading.quit
+        end
+      end
+
+      it "reads the members in order from the checkpoint" do
+        actions.activate_quietly
+        reading.subscribe(observer)
+        actions.assert_no_errors
+        expect(listener1.lines).to eq((1500..2000).map { |i| "line#{i}" })
+      end
+    end
+
     context "when watching directory with files and adding a new file" do
       let(:file_path2) { ::File.join(directory, "2.log") }
       let(:file_path3) { ::File.join(directory, "3.log") }
@@ -0,0 +1,48 @@
+# encoding: utf-8
+require 'stud/temporary'
+require_relative 'spec_helper'
+
+module FileWatch
+  describe ScanCache do
+    let(:directory) { Stud::Temporary.directory }
+    let(:settings) { Settings.new }
+    let(:file_path) { ::File.join(directory, "1.log") }
+    let(:glob) { ::File.join(directory, "*.log") }
+
+    before(:each) do
+      described_class.clear
+      File.write(file_path, "line1\n")
+    end
+    after(:each) do
+      described_class.clear
+      FileUtils.rm_rf(directory)
+    end
+
+    it "shares directory listings between the finders that share scans" do
+      first = PathFinder.new([], true)
+      second = PathFinder.new([], true)
+      expect(first.find([glob], WatchedFilesCollection.new(settings)).first).to eq([file_path])
+      File.write(::File.join(directory, "2.log"), "line1\n")
+      # listed after the second finder was created, the listing is used as is
+      expect(second.find([glob], WatchedFilesCollection.new(settings)).first).to eq([file_path])
+      # listed before its previous find, the directory is listed again
+      expect(second.find([glob], WatchedFilesCollection.new(settings)).first.size).to eq(2)
+    end
+
+    it "is not used by the finders that do not share scans" do
+      PathFinder.new([]).find([glob], WatchedFilesCollection.new(settings))
+      expect(described_class.size).to eq(0)
+    end
+
+    it "shares file stats between the stat services that share scans" do
+      pathname = Pathname.new(file_path)
+      watched_file = WatchedFile.new(pathname, PathStatClass.new(pathname), settings)
+      first = StatService.new(true)
+      second = StatService.new(true)
+      expect(first.changed([watched_file])).to eq([watched_file])
+      expect(described_class.size).to eq(1)
+      expect(second.changed([watched_file])).to eq([watched_file])
+      expect(second.changed([watched_file])).to be_empty
+    end
+  end
+end
@@ -9,6 +9,17 @@ describe FileWatch::Settings do
 
       expect(res.sincedb_expiry_duration).to eq 1 * 24 * 3600
     end
+
+    it "has no read budget with a single read worker" do
+      expect(FileWatch::Settings.from_options({}).file_read_budget).to be_nil
+    end
+
+    it "uses the default read budget with several read workers" do
+      res = FileWatch::Settings.from_options({:read_workers => 4})
+      expect(res.file_read_budget).to eq FileWatch::FILE_READ_BUDGET
+      res = FileWatch::Settings.from_options({:read_workers => 4, :file_read_budget => 1024})
+      expect(res.file_read_budget).to eq 1024
+    end
   end
 
 end
@@ -0,0 +1,57 @@
+# encoding: utf-8
+require_relative 'spec_helper'
+
+module FileWatch
+  describe SincedbFlusher do
+    let(:metrics) { Metrics.new }
+    let(:writes) { Queue.new }
+    let(:interval) { 0.5 }
+
+    subject { described_class.new(interval, metrics) { writes << Time.now } }
+
+    after(:each) { subject.stop }
+
+    it "writes on the first request without blocking the caller" do
+      subject.request
+      expect(writes.pop).to be_a(Time)
+      expect(subject.pending?).to be false
+      expect(metrics.snapshot["sincedb.staleness_in_millis"]).to be >= 0
+    end
+
+    it "coalesces the requests made within the interval into one write" do
+      subject.request
+      first = writes.pop
+      10.times { subject.request }
+      second = writes.pop
+      expect(second - first).to be >= interval * 0.9
+      sleep(interval * 1.5)
+      expect(writes).to be_empty
+    end
+
+    it "drops pending requests when stopped" do
+      subject.request
+      writes.pop
+      subject.request
+      subject.stop
+      expect(subject.pending?).to be false
+      sleep(interval * 1.5)
+      expect(writes).to be_empty
+    end
+
+    it "keeps running after a failed write" do
+      failures = 0
+      flusher = described_class.new(0.1, metrics) do
+        if failures.zero?
+          failures += 1
+          raise IOError, "disk full"
+        end
+        writes << Time.now
+      end
+      flusher.request
+      sleep(0.2)
+      flusher.request
+      expect(writes.pop).to be_a(Time)
+      flusher.stop
+    end
+  end
+end
@@ -0,0 +1,95 @@
+# encoding: utf-8
+require_relative 'spec_helper'
+
+module FileWatch
+  describe SincedbIndex do
+    let(:key1) { InodeStruct.new("5391297", 1, 4) }
+    let(:key2) { InodeStruct.new("6391297-17-3", 0, 0) } # a Windows like identifier
+    let(:now) { Time.now.to_f }
+
+    before(:each) do
+      subject[key1] = SincedbValue.new(12, now).add_path_in_sincedb("/a/path/to/1.log")
+      subject[key2] = SincedbValue.new(99, now)
+    end
+
+    it "behaves like a Hash" do
+      expect(subject.size).to eq(2)
+      expect(subject.keys).to eq([key1, key2])
+      expect(subject.member?(key1)).to be true
+      expect(subject[InodeStruct.new("5391297", 1, 5)]).to be_nil
+      expect(subject.delete(key1).position).to eq(12)
+      expect(subject.keys).to eq([key2])
+    end
+
+    it "packs values that are not associated with a watched file" do
+      watched_file = WatchedFile.new(Pathname.new(__FILE__), PathStatClass.new(Pathname.new(__FILE__)), Settings.new)
+      subject[key2].set_watched_file(watched_file)
+      expect(subject.pack).to eq(1)
+      expect(subject.packed_size).to eq(1)
+      expect(subject[key2].watched_file).to equal(watched_file)
+    end
+
+    it "unpacks a value once looked up" do
+      subject.pack
+      value = subject[InodeStruct.new("5391297", 1, 4)]
+      expect(value.position).to eq(12)
+      expect(value.last_changed_at).to eq(now)
+      expect(value.path_in_sincedb).to eq("/a/path/to/1.log")
+      value.increment_position(30)
+      expect(subject.packed_size).to eq(1)
+      expect(subject[key1].position).to eq(42)
+    end
+
+    it "yields all entries in insertion order" do
+      subject.pack
+      entries = []
+      subject.each { |key, value| entries << [key, value.position] }
+      expect(entries).to eq([[key1, 12], [key2, 99]])
+    end
+
+    it "keeps a nil device number of a key" do
+      key = InodeStruct.new("7391297", nil, nil)
+      subject[key] = SincedbValue.new(1, now)
+      subject.pack
+      expect(subject.keys.last).to eq(key)
+      expect(subject[InodeStruct.new("7391297", 0, 0)]).to be_nil
+      expect(subject[key].position).to eq(1)
+    end
+
+    it "gives the records to write without the expired ones" do
+      subject[InodeStruct.new("7391297", 1, 4)] = SincedbValue.new(7, now - 100)
+      subject.pack
+      expired, records = subject.records(now, 50)
+      expect(expired).to eq([InodeStruct.new("7391297", 1, 4)])
+      expect(records).to eq([["5391297", 1, 4, 12, now, "/a/path/to/1.log"], ["6391297-17-3", 0, 0, 99, now, nil]])
+    end
+
+    context "when asked for the changes" do
+      let(:expiry) { 3600 }
+
+      it "gives the changed records once" do
+        _, records = subject.changes(now, expiry)
+        expect(records.map(&:first)).to eq(["5391297", "6391297-17-3"])
+        expect(subject.changes(now, expiry)).to eq([[], []])
+      end
+
+      it "gives the records changed since, packed or not" do
+        subject.changes(now, expiry)
+        subject[key1].increment_position(30)
+        subject.pack
+        subject[key2].increment_position(1)
+        _, records = subject.changes(now, expiry)
+        expect(records.map { |record| record[0, 4] }).to eq([["5391297", 1, 4, 42], ["6391297-17-3", 0, 0, 100]])
+        expect(subject.changes(now, expiry)).to eq([[], []])
+      end
+
+      it "gives the expired keys" do
+        subject[InodeStruct.new("7391297", 1, 4)] = SincedbValue.new(7, now - 2 * expiry)
+        subject.pack
+        expired, records = subject.changes(now, expiry)
+        expect(expired).to eq([InodeStruct.new("7391297", 1, 4)])
+        expect(records.size).to eq(2)
+      end
+    end
+  end
+end
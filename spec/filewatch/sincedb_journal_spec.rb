@@ -0,0 +1,108 @@
+# encoding: utf-8
+require 'stud/temporary'
+require_relative 'spec_helper'
+
+module FileWatch
+  describe SincedbJournal do
+    let(:directory) { Stud::Temporary.directory }
+    let(:sincedb_path) { ::File.join(directory, "journal.sdb") }
+    let(:key) { InodeStruct.new("5391297", 1, 4) }
+
+    subject { described_class.new(sincedb_path) }
+
+    after(:each) { FileUtils.rm_rf(directory) }
+
+    def loaded_records(path = sincedb_path)
+      records = []
+      journal = described_class.new(path)
+      expect(journal.load { |*record| records << record }).to be true
+      records
+    end
+
+    it "is not loaded from a file in the text format" do
+      File.write(sincedb_path, "5391297 1 4 12\n")
+      expect(subject.load).to be false
+    end
+
+    it "reads back the records put" do
+      now = Time.now.to_f
+      subject.load
+      subject.put("5391297", 1, 4, 12, now, "/a/path/to/log log.log")
+      subject.put("5391298", 1, 4, 99, now, nil)
+      subject.commit
+      expect(loaded_records).to eq([["5391297", 1, 4, 12, now, "/a/path/to/log log.log"], ["5391298", 1, 4, 99, now, nil]])
+    end
+
+    it "only appends the records that changed" do
+      subject.load
+      subject.put("5391297", 1, 4, 12, 1.0, nil)
+      subject.put("5391298", 1, 4, 99, 1.0, nil)
+      subject.commit
+      size = File.size(sincedb_path)
+      subject.commit
+      expect(File.size(sincedb_path)).to eq(size)
+      subject.put("5391297", 1, 4, 20, 2.0, nil)
+      subject.delete("5391298", 1, 4)
+      subject.commit
+      expect(File.size(sincedb_path)).to be > size
+      expect(loaded_records).to eq([["5391297", 1, 4, 20, 2.0, nil]])
+    end
+
+    it "ignores a partially written record" do
+      subject.load
+      subject.put("5391297", 1, 4, 12, 1.0, nil)
+      subject.commit
+      File.open(sincedb_path, "ab") { |file| file.write("\x00\x00\x00\x30torn") }
+      expect(loaded_records).to eq([["5391297", 1, 4, 12, 1.0, nil]])
+    end
+
+    context "when used by the sincedb collection" do
+      let(:settings) { Settings.from_options(:sincedb_path => sincedb_path, :sincedb_format => "binary") }
+      let(:collection) { SincedbCollection.new(settings) }
+
+      it "converts a sincedb in the text format" do
+        File.write(sincedb_path, "5391297 1 4 12 #{Time.now.to_f} /a/path/to/1.log\n")
+        collection.open
+        expect(collection.get(key).position).to eq(12)
+        collection.increment(key, 30)
+        collection.write("test")
+        expect(File.binread(sincedb_path)).not_to start_with("5391297")
+        reopened = SincedbCollection.new(settings)
+        reopened.open
+        expect(reopened.get(key).position).to eq(42)
+        expect(reopened.get(key).path_in_sincedb).to eq("/a/path/to/1.log")
+      end
+
+      it "appends only the records changed or deleted" do
+        key2, key3 = InodeStruct.new("5391298", 1, 4), InodeStruct.new("5391299", 1, 4)
+        [key, key2, key3].each { |k| collection.set(k, SincedbValue.new(0)) }
+        collection.write("test")
+        size = File.size(sincedb_path)
+        collection.write("test")
+        expect(File.size(sincedb_path)).to eq(size)
+        collection.increment(key2, 10)
+        collection.delete(key3)
+        collection.write("test")
+        expect(File.size(sincedb_path)).to be < 2 * size
+        reopened = SincedbCollection.new(settings)
+        reopened.open
+        expect(reopened.keys).to eq([key, key2])
+        expect(reopened.get(key2).position).to eq(10)
+      end
+
+      it "is rewritten from the collection once it holds mostly stale records" do
+        collection.set(key, SincedbValue.new(0))
+        collection.write("test")
+        size = File.size(sincedb_path)
+        2000.times do
+          collection.increment(key, 1)
+          collection.write("test")
+        end
+        expect(File.size(sincedb_path)).to be < 1100 * size
+        reopened = SincedbCollection.new(settings)
+        reopened.open
+        expect(reopened.get(key).position).to eq(2000)
+      end
+    end
+  end
+end
@@ -95,6 +95,20 @@ module FileWatch
     ::File.utime(time, time, path)
   end
 
+  # writes the content as a BGZF archive (gzip members of up to block_size bytes, with their size in an extra field)
+  def self.write_bgzf(path, content, block_size = 65280)
+    ::File.open(path, "wb") do |file|
+      blocks = (0...content.bytesize).step(block_size).map { |i| content.byteslice(i, block_size) }
+      (blocks << "").each do |block| # the last block is an empty (EOF marker) member
+        deflate = Zlib::Deflate.new(Zlib::DEFAULT_COMPRESSION, -Zlib::MAX_WBITS)
+        deflated = deflate.deflate(block, Zlib::FINISH)
+        deflate.close
+        header = [0x1f, 0x8b, 8, 4, 0, 0, 0, 0, 0, 0xff, 6, 0, 66, 67, 2, 0].pack("C*")
+        file.write(header + [deflated.bytesize + 25].pack("v") + deflated + [Zlib.crc32(block), block.bytesize].pack("VV"))
+      end
+    end
+  end
+
   class TracerBase
     def initialize
       @tracer = Concurrent::Array.new
@@ -130,6 +144,16 @@ module FileWatch
         @calls << :accept
       end
 
+      def accept_lines(lines)
+        accepted = 0
+        lines.each do |line|
+          accept(line)
+          accepted += 1
+          break if block_given? && yield
+        end
+        accepted
+      end
+
       def deleted
         @calls << :delete
       end
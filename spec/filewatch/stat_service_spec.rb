@@ -0,0 +1,44 @@
+# encoding: utf-8
+require 'stud/temporary'
+require_relative 'spec_helper'
+
+module FileWatch
+  describe StatService do
+    let(:directory) { Stud::Temporary.directory }
+    let(:file_path) { ::File.join(directory, "1.log") }
+    let(:watched_file) do
+      pathname = Pathname.new(file_path)
+      WatchedFile.new(pathname, PathStatClass.new(pathname), Settings.new)
+    end
+
+    before(:each) { File.write(file_path, "line1\n") }
+    after(:each) { FileUtils.rm_rf(directory) }
+
+    it "reports a file only when it changed" do
+      expect(subject.changed([watched_file])).to eq([watched_file])
+      expect(subject.changed([watched_file])).to be_empty
+      File.open(file_path, "a") { |file| file.write("line2\n") }
+      expect(subject.changed([watched_file])).to eq([watched_file])
+      expect(subject.changed([watched_file])).to be_empty
+    end
+
+    it "reports a file that changed state" do
+      subject.changed([watched_file])
+      watched_file.activate
+      expect(subject.changed([watched_file])).to eq([watched_file])
+    end
+
+    it "always reports a file that can not be stat-ed" do
+      subject.changed([watched_file])
+      FileUtils.rm(file_path)
+      expect(subject.changed([watched_file])).to eq([watched_file])
+      expect(subject.changed([watched_file])).to eq([watched_file])
+    end
+
+    it "forgets the files no longer given" do
+      subject.changed([watched_file])
+      subject.changed([])
+      expect(subject.size).to eq(0)
+    end
+  end
+end
@@ -317,6 +317,35 @@ module FileWatch
       end
     end
 
+    context "when watching a directory with the watch_service discovery backend and a file is added" do
+      let(:suffix) { "IE" }
+      let(:discover_interval) { 1000 } # the glob would only find the new file much later
+      let(:opts) { super().merge(:discovery_backend => "watch_service", :start_new_files_at => :beginning) }
+      let(:actions) do
+        RSpec::Sequencing
+          .run("start watching") do
+            tailing.watch_this(watch_dir)
+          end
+          .then_after(0.25, "create a file") do
+            File.open(file_path, "wb") { |file| file.write("line1\nline2\n") }
+          end
+          .then("wait for the lines") do
+            wait(2).for { listener1.lines.size }.to eq(2)
+          end
+          .then("quit") do
+            tailing.quit
+          end
+      end
+
+      it "the new file is discovered from the directory events" do
+        actions.activate_quietly
+        tailing.subscribe(observer)
+        actions.assert_no_errors
+        expect(listener1.calls).to eq([:open, :accept, :accept])
+        expect(listener1.lines).to eq(["line1", "line2"])
+      end
+    end
+
     context "when watching a directory with files and data is appended" do
       let(:suffix) { "I" }
       let(:actions) do
@@ -345,6 +374,112 @@ module FileWatch
       end
     end
 
+    context "when several read workers read appended data within a budget" do
+      let(:suffix) { "IW" }
+      let(:opts) { super().merge(:read_workers => 2, :file_read_budget => 12, :file_chunk_size => 12, :start_new_files_at => :beginning) }
+      let(:lines) { Concurrent::Array.new }
+      let(:observer) { TestObserver.new(lines) } # the lines of both files, in the order accepted
+      let(:actions) do
+        RSpec::Sequencing
+          .run("files created") do
+            File.open(file_path, "wb")  { |file| file.write((1..20).map { |i| "line-#{'%02d' % i}\n" }.join) }
+            File.open(file_path2, "wb") { |file| file.write("line-A\nline-B\n") }
+          end
+          .then("start watching") do
+            tailing.watch_this(watch_dir)
+          end
+          .then("wait for all lines") do
+            wait(2).for { lines.size }.to eq(22)
+          end
+          .then("quit") do
+            tailing.quit
+          end
+      end
+
+      it "reads every file in order without a busy file holding back the others" do
+        actions.activate_quietly
+        tailing.subscribe(observer)
+        actions.assert_no_errors
+        expect(lines.grep(/line-\d/)).to eq((1..20).map { |i| "line-#{'%02d' % i}" })
+        expect(lines.grep(/line-[A-Z]/)).to eq(["line-A", "line-B"])
+        # the small file is read within the first rounds, while the busy file's backlog is being worked off
+        expect(lines.index("line-B")).to be < lines.index("line-10")
+        expect(tailing.read_lag).to be_empty
+      end
+    end
+
+    context "when warm starting from a snapshot of the watched files" do
+      let(:suffix) { "WS" }
+      let(:file_path4) { ::File.join(directory, "4#{suffix}.log") }
+      let(:discover_interval) { 1 } # a glob every round, while the snapshot's files are still being discovered
+      let(:opts) { super().merge(:warm_start => true, :start_new_files_at => :beginning) }
+      let(:lines) { Concurrent::Array.new }
+      let(:observer) { TestObserver.new(lines) }
+      let(:actions) do
+        RSpec::Sequencing
+          .run("wait for all lines") do
+            wait(2).for { lines.size }.to eq(4)
+          end
+          .then("quit") do
+            tailing.quit
+          end
+      end
+
+      before do
+        stub_const("FileWatch::WARM_START_BATCH", 1)
+        settings = Settings.from_options(opts)
+        files = [file_path, file_path2, file_path3].map do |path|
+          File.open(path, "wb") { |file| file.write("#{::File.basename(path, '.log')}\n") }
+          WatchedFile.new(path, PathStatClass.new(Pathname.new(path)), settings)
+        end
+        # the previous run read 1 fully, had 2 left to read and was watching 3
+        files[0].update_bytes_read(4)
+        files[0].ignore
+        files[1].ignore
+        WarmStart.new(sincedb_path).write(files, [])
+        File.open(file_path4, "wb") { |file| file.write("4#{suffix}\n") }
+      end
+
+      it "reads the new file first, then the snapshot's files a batch per round, however often it globs" do
+        # as the input does, the paths are added before the first round, the snapshot's files are deferred
+        tailing.watch_this(watch_dir)
+        actions.activate_quietly
+        tailing.subscribe(observer)
+        actions.assert_no_errors
+        # by path (file_sort_by) had the glob discovered the deferred files
+        expect(lines).to eq(%w(4WS 3WS 2WS 1WS))
+      end
+    end
+
+    context "when warm starting and sincedb_path is /dev/null" do
+      let(:suffix) { "WN" }
+      let(:sincedb_path) { File::NULL }
+      let(:opts) { super().merge(:warm_start => true, :start_new_files_at => :beginning) }
+      let(:actions) do
+        RSpec::Sequencing
+          .run("file created") do
+            File.open(file_path, "wb") { |file| file.write("line1\n") }
+          end
+          .then("start watching") do
+            tailing.watch_this(watch_dir)
+          end
+          .then("wait for the line") do
+            wait(2).for { listener1.lines }.to eq(["line1"])
+          end
+          .then("quit") do
+            tailing.quit
+          end
+      end
+
+      it "the file is read without a snapshot" do
+        expect(WarmStart).not_to receive(:new)
+        actions.activate_quietly
+        tailing.subscribe(observer)
+        actions.assert_no_errors
+        expect(listener1.lines).to eq(["line1"])
+      end
+    end
+
     context "when close older expiry is enabled" do
       let(:opts) { super().merge(:close_older => 1) }
       let(:suffix) { "J" }
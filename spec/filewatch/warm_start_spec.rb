@@ -0,0 +1,59 @@
+# encoding: utf-8
+require 'stud/temporary'
+require_relative 'spec_helper'
+
+module FileWatch
+  describe WarmStart do
+    let(:directory) { Stud::Temporary.directory }
+    let(:sincedb_path) { ::File.join(directory, "sincedb") }
+    let(:settings) { Settings.from_options(:sincedb_path => sincedb_path) }
+
+    subject { described_class.new(sincedb_path) }
+
+    after(:each) { FileUtils.rm_rf(directory) }
+
+    def watched_file(name, content)
+      path = ::File.join(directory, name)
+      ::File.write(path, content)
+      WatchedFile.new(path, PathStatClass.new(Pathname.new(path)), settings)
+    end
+
+    it "has no entries without a snapshot" do
+      expect(subject.entries).to be_empty
+      expect(subject.split(["/a.log"])).to eq([["/a.log"], []])
+    end
+
+    it "writes the watched files next to the sincedb" do
+      read, unread = watched_file("read.log", "line\n"), watched_file("unread.log", "line\n")
+      read.update_bytes_read(5)
+      read.ignore
+      subject.write([read, unread], [])
+      expect(::File.file?("#{sincedb_path}.files")).to be true
+      entries = described_class.new(sincedb_path).entries
+      expect(entries.keys).to eq([read.path, unread.path])
+      expect(entries[read.path].to_a).to eq([read.sincedb_key.inode, read.sincedb_key.maj, read.sincedb_key.min,
+                                              5, read.modified_at, 5, :ignored])
+      expect(entries[unread.path].state).to eq(:watched)
+    end
+
+    it "splits the new paths from the known ones, the files that were being read first" do
+      read, unread = watched_file("read.log", "line\n"), watched_file("unread.log", "line\n")
+      read.update_bytes_read(5)
+      read.ignore
+      unread.ignore
+      subject.write([read, unread], [])
+      fresh, known = described_class.new(sincedb_path).split(["/new.log", read.path, unread.path])
+      expect(fresh).to eq(["/new.log"])
+      expect(known).to eq([unread.path, read.path])
+    end
+
+    it "keeps the entries of the paths not discovered yet" do
+      file = watched_file("a.log", "line\n")
+      subject.write([file], [])
+      snapshot = described_class.new(sincedb_path)
+      snapshot.split([file.path])
+      snapshot.write([], [file.path])
+      expect(described_class.new(sincedb_path).entries.keys).to eq([file.path])
+    end
+  end
+end
@@ -65,5 +65,20 @@ module FileWatch
         expect( file.modified_at(true) ).to be > mtime
       end
     end
+
+    context 'associated with an archive checkpoint' do
+      let(:settings) { Settings.from_options(:sincedb_path => File::NULL, :sincedb_write_interval => 0) }
+      let(:sincedb_collection) { SincedbCollection.new(settings) }
+      let(:checkpoint) { ReadMode::Handlers::ReadZipFile.checkpoint_position(100) }
+
+      it 'counts nothing as read, the sincedb keeps the checkpoint' do
+        file = WatchedFile.new(pathname, PathStatClass.new(pathname), settings)
+        sincedb_collection.set(file.sincedb_key, SincedbValue.new(checkpoint))
+        sincedb_collection.associate(file)
+        expect(file.bytes_read).to eq(0)
+        expect(file.bytes_unread).to eq(file.last_stat_size)
+        expect(sincedb_collection.get(file.sincedb_key).position).to eq(checkpoint)
+      end
+    end
   end
 end
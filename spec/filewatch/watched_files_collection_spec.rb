@@ -143,6 +143,43 @@ module FileWatch
         collection.add(wf4)
         expect(collection.files).to eq([wf3, wf4, wf2, wf1])
       end
+
+      it "updates several entries at once" do
+        collection = described_class.new(Settings.from_options(:file_sort_by => sort_by, :file_sort_direction => sort_direction))
+        collection.add(wf1)
+        collection.add(wf2)
+        collection.add(wf3)
+
+        wf1.send(:set_stat, re_stat1)
+        wf2.send(:set_stat, re_stat2)
+        collection.update_all([wf2, wf1])
+        expect(collection.files).to eq([wf3, wf2, wf1])
+        expect(collection.files_with_state(:watched)).to eq([wf3, wf2, wf1])
+      end
+    end
+
+    context "files_with_state" do
+      let(:sort_by) { "last_modified" }
+      let(:sort_direction) { "asc" }
+
+      it "indexes the files by their state" do
+        collection = described_class.new(Settings.from_options(:file_sort_by => sort_by, :file_sort_direction => sort_direction))
+        collection.add(wf3)
+        collection.add(wf1)
+        collection.add(wf2)
+        expect(collection.files_with_state(:watched)).to eq([wf1, wf2, wf3])
+        wf2.activate
+        wf1.activate
+        expect(collection.files_with_state(:watched)).to eq([wf3])
+        expect(collection.files_with_state(:active)).to eq([wf1, wf2])
+        expect(collection.count_with_state(:active)).to eq 2
+        expect(collection.count_with_state(:closed)).to eq 0
+
+        collection.remove_paths([filepath1])
+        expect(collection.files_with_state(:active)).to eq([wf2])
+        wf1.close
+        expect(collection.count_with_state(:closed)).to eq 0
+      end
     end
 
   end
@@ -224,6 +224,22 @@ describe LogStash::Inputs::File do
       end
     end
 
+    context "when the lines of a chunk are accepted at once" do
+      let(:name) { "F" }
+      let(:queue) { double("queue") }
+      subject { LogStash::Inputs::File.new("path" => path_path, "sincedb_path" => sincedb_path) }
+
+      it "pushes the decoded events to the queue in one batch" do
+        subject.register
+        subject.instance_variable_get(:@queue).set(queue)
+        expect(queue).to receive(:push_batch).once do |events|
+          expect(events.map { |event| event.get("message") }).to eq(%w(line1 line2))
+          expect(events.map { |event| event.get("[@metadata][path]") }).to eq([tmpfile_path] * 2)
+        end
+        expect(subject.listener_for(tmpfile_path).accept_lines(%w(line1 line2))).to eq(2)
+      end
+    end
+
   end
 
   describe "testing with new, register, run and stop" do
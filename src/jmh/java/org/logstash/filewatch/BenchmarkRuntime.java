@@ -0,0 +1,57 @@
+package org.logstash.filewatch;
+
+import org.jruby.Ruby;
+import org.jruby.RubyInstanceConfig;
+import org.jruby.runtime.builtin.IRubyObject;
+
+import java.nio.file.Paths;
+import java.util.Collections;
+
+/**
+ * A JRuby runtime with the FileWatch (Java) classes loaded, for benchmarks that go through the Ruby interfaces.
+ *
+ * The plugin's lib directory (the `filewatch.lib` system property, `lib` by default) is on the load path so plain
+ * Ruby parts (e.g. the sincedb serializer) can be required. Files and settings are stood in by simple structs.
+ */
+final class BenchmarkRuntime {
+
+    private static final String PRELUDE = String.join("\n",
+            "module FileWatch",
+            "  InodeStruct = Struct.new(:inode, :maj, :min) do",
+            "    def to_s",
+            "      to_a.join(' ')",
+            "    end",
+            "  end unless const_defined?(:InodeStruct)",
+            "  BenchmarkSettings = Struct.new(:file_sort_by, :file_sort_direction)",
+            "  class BenchmarkFile",
+            "    attr_reader :path, :state",
+            "    attr_accessor :watched_files_collection",
+            "    def initialize(path, modified_at, state = :watched)",
+            "      @path, @modified_at, @state = path.freeze, modified_at, state",
+            "    end",
+            "    def modified_at(update = false)",
+            "      @modified_at",
+            "    end",
+            "    def touch(modified_at)",
+            "      @modified_at = modified_at",
+            "    end",
+            "  end",
+            "end");
+
+    private BenchmarkRuntime() {
+        // no instances
+    }
+
+    static Ruby create() {
+        final RubyInstanceConfig config = new RubyInstanceConfig();
+        config.setLoadPaths(Collections.singletonList(Paths.get(System.getProperty("filewatch.lib", "lib")).toAbsolutePath().toString()));
+        final Ruby runtime = Ruby.newInstance(config);
+        new JrubyFileWatchLibrary().load(runtime, false);
+        runtime.evalScriptlet(PRELUDE);
+        return runtime;
+    }
+
+    static IRubyObject eval(final Ruby runtime, final String script) {
+        return runtime.evalScriptlet(script);
+    }
+}
@@ -0,0 +1,87 @@
+package org.logstash.filewatch;
+
+import org.jruby.Ruby;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Discovers the files of a synthetic directory tree (the `path` glob) and stats them all (FileWatch::StatService),
+ * which is what every discovery and stat interval goes through.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DiscoveryBenchmark {
+
+    @Param({"10", "100"})
+    public int directories;
+
+    @Param({"100", "1000"})
+    public int filesPerDirectory;
+
+    private Path root;
+    private Ruby runtime;
+    private IRubyObject globber; // a lambda globbing the tree
+    private IRubyObject pattern;
+    private IRubyObject statService;
+    private IRubyObject watchedFiles;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("discovery-benchmark");
+        for (int d = 0; d < directories; d++) {
+            final Path directory = Files.createDirectory(root.resolve("app-" + d));
+            for (int f = 0; f < filesPerDirectory; f++) {
+                Files.createFile(directory.resolve("file-" + f + ".log"));
+                Files.createFile(directory.resolve("file-" + f + ".log.1")); // not matching
+            }
+        }
+        runtime = BenchmarkRuntime.create();
+        globber = BenchmarkRuntime.eval(runtime, "lambda { |pattern| Dir.glob(pattern) }");
+        pattern = runtime.newString(root.toString() + "/*/*.log");
+        watchedFiles = BenchmarkRuntime.eval(runtime, "lambda { |paths| paths.map { |path| FileWatch::BenchmarkFile.new(path, 0.0) } }")
+                .callMethod(runtime.getCurrentContext(), "call", glob());
+        statService = BenchmarkRuntime.eval(runtime, "FileWatch::StatService.new");
+        statAll(); // the first call reports all files (as new)
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public IRubyObject glob() {
+        return globber.callMethod(runtime.getCurrentContext(), "call", pattern);
+    }
+
+    // none of the files changed
+    @Benchmark
+    public IRubyObject statAll() {
+        return statService.callMethod(runtime.getCurrentContext(), "changed", watchedFiles);
+    }
+}
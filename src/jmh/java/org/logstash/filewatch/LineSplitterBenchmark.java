@@ -0,0 +1,81 @@
+package org.logstash.filewatch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits 16MB of (log like) lines fed in chunks of the given size, the throughput is reported per MB.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LineSplitterBenchmark {
+
+    private static final int MB = 1024 * 1024;
+    private static final int SIZE = 16 * MB;
+
+    @Param({"4096", "32768", "1048576"})
+    public int chunkSize;
+
+    @Param({"LF", "CRLF", "PIPE"})
+    public String delimiter;
+
+    private byte[] data;
+    private byte[] delimiterBytes;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        delimiterBytes = delimiterBytes(delimiter);
+        final Random random = new Random(42);
+        final ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+        long i = 0;
+        while (true) {
+            final byte[] line = ("2024-01-01T00:00:00.000Z INFO [worker-" + random.nextInt(16) + "] request " + (i++) +
+                    " completed in " + random.nextInt(1000) + "ms status=" + (200 + random.nextInt(4) * 100)).getBytes(StandardCharsets.UTF_8);
+            if (buffer.remaining() < line.length + delimiterBytes.length) break;
+            buffer.put(line).put(delimiterBytes);
+        }
+        data = new byte[buffer.position()];
+        System.arraycopy(buffer.array(), 0, data, 0, data.length);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE / MB)
+    public long split(final Blackhole blackhole) {
+        final LineSplitter splitter = new LineSplitter(delimiterBytes);
+        long consumed = 0;
+        for (int offset = 0; offset < data.length; offset += chunkSize) {
+            consumed += splitter.split(data, offset, Math.min(chunkSize, data.length - offset), blackhole::consume);
+        }
+        return consumed;
+    }
+
+    private static byte[] delimiterBytes(final String name) {
+        switch (name) {
+            case "LF": return new byte[] { '\n' };
+            case "CRLF": return new byte[] { '\r', '\n' };
+            case "PIPE": return "|||".getBytes(StandardCharsets.UTF_8);
+            default: throw new IllegalArgumentException(name);
+        }
+    }
+}
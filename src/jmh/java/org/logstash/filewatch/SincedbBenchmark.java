@@ -0,0 +1,133 @@
+package org.logstash.filewatch;
+
+import org.jruby.Ruby;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Writes and reads back sincedb records, in the binary (SincedbLog) and in the text (Ruby serializer) format.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SincedbBenchmark {
+
+    @Param({"10000", "100000"})
+    public int entries;
+
+    private Path directory;
+    private Path loadPath;
+    private Path writePath;
+    private SincedbLog.Record[] records;
+    private SincedbLog log; // holding all records, for committing a few changes
+    private int changed;
+
+    private Ruby runtime;
+    private IRubyObject stringIO;
+    private IRubyObject serializer;
+    private IRubyObject deserialize; // a lambda counting the deserialized records
+    private IRubyObject db;
+    private IRubyObject text;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("sincedb-benchmark");
+        records = new SincedbLog.Record[entries];
+        for (int i = 0; i < entries; i++) {
+            records[i] = new SincedbLog.Record(Integer.toString(1_000_000 + i).getBytes(StandardCharsets.US_ASCII),
+                    0, 51, 1024L * i, 1_600_000_000.5 + i, ("/var/log/app/file-" + i + ".log").getBytes(StandardCharsets.UTF_8));
+        }
+        loadPath = directory.resolve("load.sincedb");
+        final SincedbLog loaded = new SincedbLog(loadPath);
+        for (final SincedbLog.Record record : records) loaded.put(record);
+        loaded.commit();
+        writePath = directory.resolve("write.sincedb");
+        log = new SincedbLog(directory.resolve("commit.sincedb"));
+        for (final SincedbLog.Record record : records) log.put(record);
+        log.commit();
+
+        runtime = BenchmarkRuntime.create();
+        BenchmarkRuntime.eval(runtime, "require 'stringio'; require 'filewatch/sincedb_value'; require 'filewatch/sincedb_record_serializer'");
+        stringIO = BenchmarkRuntime.eval(runtime, "StringIO");
+        deserialize = BenchmarkRuntime.eval(runtime, "lambda { |serializer, io| count = 0; serializer.deserialize(io) { count += 1 }; count }");
+        serializer = BenchmarkRuntime.eval(runtime, "FileWatch::SincedbRecordSerializer.new(FileWatch::SincedbRecordSerializer.days_to_seconds(14))");
+        db = BenchmarkRuntime.eval(runtime, "(0..." + entries + ").each_with_object({}) { |i, db| " +
+                "db[FileWatch::InodeStruct.new((1_000_000 + i).to_s, 0, 51)] = " +
+                "FileWatch::SincedbValue.new(1024 * i).add_path_in_sincedb(\"/var/log/app/file-#{i}.log\") }");
+        text = serializeText();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(file -> file.toFile().delete());
+        }
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public void binaryWriteAll() throws IOException {
+        Files.deleteIfExists(writePath);
+        final SincedbLog written = new SincedbLog(writePath);
+        for (final SincedbLog.Record record : records) written.put(record);
+        written.commit();
+    }
+
+    // a hundredth of the records changed since the last commit
+    @Benchmark
+    public void binaryCommitChanged() throws IOException {
+        final int count = Math.max(1, entries / 100);
+        for (int i = 0; i < count; i++) {
+            final SincedbLog.Record record = records[(changed++) % entries];
+            log.put(new SincedbLog.Record(record.inode, record.maj, record.min, record.position + 1, record.lastChangedAt, record.path));
+        }
+        if (log.compactionDue(entries)) log.rewrite(Arrays.asList(records)); // the collection would hand the live records
+        log.commit();
+    }
+
+    @Benchmark
+    public void binaryLoad(final Blackhole blackhole) throws IOException {
+        new SincedbLog(loadPath).load(blackhole::consume);
+    }
+
+    @Benchmark
+    public IRubyObject textSerialize() {
+        return serializeText();
+    }
+
+    @Benchmark
+    public IRubyObject textDeserialize() {
+        final IRubyObject io = stringIO.callMethod(runtime.getCurrentContext(), "new", text);
+        return deserialize.callMethod(runtime.getCurrentContext(), "call", new IRubyObject[] { serializer, io });
+    }
+
+    private IRubyObject serializeText() {
+        final IRubyObject io = stringIO.callMethod(runtime.getCurrentContext(), "new", runtime.newString());
+        serializer.callMethod(runtime.getCurrentContext(), "serialize", new IRubyObject[] { db, io });
+        return io.callMethod(runtime.getCurrentContext(), "string");
+    }
+}
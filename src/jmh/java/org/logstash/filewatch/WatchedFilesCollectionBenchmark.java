@@ -0,0 +1,100 @@
+package org.logstash.filewatch;
+
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adds, re-sorts (after a modification time change) and removes files of a FileWatch::WatchedFilesCollection.
+ * Files are removed from a copy (the copy is part of the measured time).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WatchedFilesCollectionBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int files;
+
+    @Param({"last_modified", "path"})
+    public String sortBy;
+
+    private Ruby runtime;
+    private IRubyObject collectionClass;
+    private IRubyObject settings;
+    private RubyArray watchedFiles;
+    private RubyArray touched; // a tenth of the files
+    private IRubyObject paths;
+    private IRubyObject collection; // holding all the files
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        runtime = BenchmarkRuntime.create();
+        collectionClass = BenchmarkRuntime.eval(runtime, "FileWatch::WatchedFilesCollection");
+        settings = BenchmarkRuntime.eval(runtime, "FileWatch::BenchmarkSettings.new('" + sortBy + "', 'asc')");
+        final RubyArray fixture = (RubyArray) BenchmarkRuntime.eval(runtime,
+                "files = (0..." + files + ").map { |i| FileWatch::BenchmarkFile.new(\"/var/log/app/#{i % 100}/file-#{i}.log\", " +
+                "1_600_000_000.0 + rand(1_000_000)) }; [files, files.each_slice(10).map(&:first), files.map(&:path)]");
+        watchedFiles = (RubyArray) fixture.eltInternal(0);
+        touched = (RubyArray) fixture.eltInternal(1);
+        paths = fixture.eltInternal(2);
+        collection = newCollection();
+        addAll(collection);
+    }
+
+    @Benchmark
+    public IRubyObject add() {
+        final IRubyObject added = newCollection();
+        addAll(added);
+        return added;
+    }
+
+    @Benchmark
+    public IRubyObject updateAll() {
+        final ThreadContext context = runtime.getCurrentContext();
+        for (int i = 0; i < touched.size(); i++) {
+            final IRubyObject file = touched.eltInternal(i);
+            file.callMethod(context, "touch", runtime.newFloat(1_600_000_000.0 + Math.random() * 1_000_000));
+        }
+        return collection.callMethod(context, "update_all", touched);
+    }
+
+    @Benchmark
+    public IRubyObject removePaths() {
+        final IRubyObject copy = collection.callMethod(runtime.getCurrentContext(), "dup");
+        copy.callMethod(runtime.getCurrentContext(), "remove_paths", paths);
+        return copy;
+    }
+
+    @Benchmark
+    public IRubyObject filesWithState() {
+        return collection.callMethod(runtime.getCurrentContext(), "files_with_state", runtime.newSymbol("watched"));
+    }
+
+    private IRubyObject newCollection() {
+        return collectionClass.callMethod(runtime.getCurrentContext(), "new", settings);
+    }
+
+    private void addAll(final IRubyObject target) {
+        final ThreadContext context = runtime.getCurrentContext();
+        for (int i = 0; i < watchedFiles.size(); i++) target.callMethod(context, "add", watchedFiles.eltInternal(i));
+    }
+}
@@ -0,0 +1,258 @@
+package org.logstash.filewatch;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Inflates a BGZF (blocked gzip, as written by bgzip) archive on a fork-join pool.
+ *
+ * A BGZF archive is a series of gzip members, each with its compressed size in a "BC" extra field, so the members
+ * are found without inflating them. Members are inflated (and their CRC verified) in parallel, a bounded number of
+ * them ahead of the reader, and handed out in order. Skipping uses the sizes from the member trailers, so the members
+ * before the skip target are not inflated at all. Should a member without the extra field follow, the rest of the
+ * archive is read as plain gzip.
+ */
+final class BgzfInputStream extends InputStream {
+
+    private static final int HEADER_SIZE = 12; // up to (and including) XLEN
+    private static final int TRAILER_SIZE = 8; // CRC32 and ISIZE
+    private static final int FEXTRA = 4;
+    private static final int MAX_BLOCK_SIZE = 64 * 1024;
+
+    // (pool) threads keep their inflater, one is allocated (natively) per thread instead of per member
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private final InputStream in;
+    private final ForkJoinPool pool;
+    private final int window;
+    private final Deque<ForkJoinTask<byte[]>> pending = new ArrayDeque<>();
+    private final byte[] header = new byte[HEADER_SIZE];
+    private byte[] block = new byte[0]; // the inflated member being read
+    private int offset;
+    private InputStream plain; // once a member is not BGZF
+    private boolean eof;
+
+    BgzfInputStream(final InputStream in, final ForkJoinPool pool) {
+        this.in = in;
+        this.pool = pool;
+        // on a single core handing members over to the pool only adds latency, they get inflated inline
+        this.window = pool.getParallelism() > 1 ? Math.max(8, pool.getParallelism() * 4) : 0;
+    }
+
+    /**
+     * @return true if the bytes (the start of a file) are the header of a BGZF member
+     */
+    static boolean isBgzf(final byte[] bytes, final int length) {
+        if (length < HEADER_SIZE || (bytes[0] & 0xff) != 0x1f || (bytes[1] & 0xff) != 0x8b || bytes[2] != 8) {
+            return false;
+        }
+        if ((bytes[3] & FEXTRA) == 0) return false;
+        final int xlen = uint16(bytes, 10);
+        return blockSize(bytes, HEADER_SIZE, Math.min(length, HEADER_SIZE + xlen)) > 0;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] bytes, final int off, final int len) throws IOException {
+        if (len == 0) return 0;
+        while (offset == block.length) {
+            if (!nextBlock()) return plain == null ? -1 : plain.read(bytes, off, len);
+        }
+        final int read = Math.min(len, block.length - offset);
+        System.arraycopy(block, offset, bytes, off, read);
+        offset += read;
+        return read;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n) {
+            if (offset < block.length) {
+                final int drop = (int) Math.min(n - skipped, block.length - offset);
+                offset += drop;
+                skipped += drop;
+            } else if (!pending.isEmpty()) {
+                nextBlock();
+            } else {
+                final Member member = readMember();
+                if (member == null) {
+                    if (plain != null) skipped += plain.skip(n - skipped);
+                    break;
+                }
+                if (member.inflatedSize() >= 0 && member.inflatedSize() <= n - skipped) {
+                    skipped += member.inflatedSize(); // not inflated (nor verified)
+                } else {
+                    block = member.inflate();
+                    offset = 0;
+                }
+            }
+        }
+        return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (final ForkJoinTask<byte[]> task : pending) task.cancel(false);
+        pending.clear();
+        if (plain != null) plain.close();
+        in.close();
+    }
+
+    // @return false at the end of the BGZF members
+    private boolean nextBlock() throws IOException {
+        if (window == 0) {
+            final Member member = readMember();
+            if (member == null) return false;
+            block = member.inflate();
+            offset = 0;
+            return true;
+        }
+        while (!eof && pending.size() < window) {
+            final Member member = readMember();
+            if (member == null) break;
+            pending.add(pool.submit(member::inflate));
+        }
+        final ForkJoinTask<byte[]> task = pending.poll();
+        if (task == null) return false;
+        try {
+            block = task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while inflating", e);
+        } catch (ExecutionException e) {
+            // the pool wraps the (checked) exception of the task, possibly more than once
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException) throw (IOException) cause;
+            }
+            throw new IOException(e.getCause());
+        }
+        offset = 0;
+        return true;
+    }
+
+    // @return the next (compressed) member or null at the end of the BGZF members
+    private Member readMember() throws IOException {
+        if (eof) return null;
+        final int read = readFully(header, 0, HEADER_SIZE);
+        if (read == 0) {
+            eof = true;
+            return null;
+        }
+        if (read < HEADER_SIZE) throw new EOFException("Unexpected end of ZLIB input stream");
+        if ((header[3] & FEXTRA) == 0) return plainRest(header, HEADER_SIZE);
+        final int xlen = uint16(header, 10);
+        final byte[] extra = new byte[HEADER_SIZE + xlen];
+        System.arraycopy(header, 0, extra, 0, HEADER_SIZE);
+        if (readFully(extra, HEADER_SIZE, xlen) < xlen) throw new EOFException("Unexpected end of ZLIB input stream");
+        final int size = blockSize(extra, HEADER_SIZE, extra.length);
+        if ((header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b || header[2] != 8 || size <= 0) {
+            return plainRest(extra, extra.length);
+        }
+        final int remaining = size - extra.length;
+        if (remaining < TRAILER_SIZE) throw new ZipException("Corrupt BGZF block size");
+        final byte[] data = new byte[remaining];
+        if (readFully(data, 0, remaining) < remaining) throw new EOFException("Unexpected end of ZLIB input stream");
+        return new Member(data);
+    }
+
+    // the header bytes already read are put back in front of the rest of the archive
+    private Member plainRest(final byte[] bytes, final int length) throws IOException {
+        eof = true;
+        plain = new GZIPInputStream(new SequenceInputStream(new ByteArrayInputStream(bytes, 0, length), in));
+        return null;
+    }
+
+    private int readFully(final byte[] bytes, final int off, final int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            final int read = in.read(bytes, off + total, len - total);
+            if (read < 0) break;
+            total += read;
+        }
+        return total;
+    }
+
+    // @return the BSIZE + 1 (total member size) from the "BC" sub field or -1
+    private static int blockSize(final byte[] bytes, final int from, final int to) {
+        int i = from;
+        while (i + 4 <= to) {
+            final int length = uint16(bytes, i + 2);
+            if (bytes[i] == 'B' && bytes[i + 1] == 'C' && length == 2 && i + 6 <= to) {
+                return uint16(bytes, i + 4) + 1;
+            }
+            i += 4 + length;
+        }
+        return -1;
+    }
+
+    private static int uint16(final byte[] bytes, final int at) {
+        return (bytes[at] & 0xff) | (bytes[at + 1] & 0xff) << 8;
+    }
+
+    private static long uint32(final byte[] bytes, final int at) {
+        return (uint16(bytes, at) | (long) uint16(bytes, at + 2) << 16);
+    }
+
+    // the deflated data of a member followed by its trailer
+    private static final class Member {
+
+        private final byte[] data;
+
+        Member(final byte[] data) {
+            this.data = data;
+        }
+
+        int inflatedSize() {
+            return (int) uint32(data, data.length - 4);
+        }
+
+        byte[] inflate() throws IOException {
+            final int size = inflatedSize();
+            if (size < 0 || size > MAX_BLOCK_SIZE) throw new ZipException("Corrupt BGZF block size");
+            final byte[] inflated = new byte[size];
+            final Inflater inflater = INFLATER.get();
+            inflater.reset();
+            try {
+                inflater.setInput(data, 0, data.length - TRAILER_SIZE);
+                int total = 0;
+                while (total < inflated.length) {
+                    final int read = inflater.inflate(inflated, total, inflated.length - total);
+                    if (read == 0 && (inflater.finished() || inflater.needsInput())) break;
+                    total += read;
+                }
+                if (total != inflated.length ||
+                        !inflater.finished() && (inflater.inflate(new byte[1]) > 0 || !inflater.finished())) {
+                    throw new ZipException("Corrupt GZIP trailer");
+                }
+            } catch (DataFormatException e) {
+                final String message = e.getMessage();
+                throw new ZipException(message != null ? message : "Invalid ZLIB data format");
+            }
+            final CRC32 crc = new CRC32();
+            crc.update(inflated, 0, inflated.length);
+            if (crc.getValue() != uint32(data, data.length - TRAILER_SIZE)) {
+                throw new ZipException("Corrupt GZIP trailer");
+            }
+            return inflated;
+        }
+    }
+}
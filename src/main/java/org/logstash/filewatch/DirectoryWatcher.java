@@ -0,0 +1,114 @@
+package org.logstash.filewatch;
+
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyClass;
+import org.jruby.RubyObject;
+import org.jruby.RubySymbol;
+import org.jruby.anno.JRubyClass;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * FileWatch::DirectoryWatcher collects file system events (inotify on Linux) for a set of directories.
+ *
+ * watcher.register(dir) # => true when the directory was not registered before
+ * watcher.poll # => [[:create, path], [:delete, path], [:overflow, nil], ...]
+ *
+ * Polling never blocks, it drains the events that occurred since the last poll. A rename shows up as a delete of
+ * the old path and a create of the new one. Events might get lost (an :overflow is reported) so this is only meant
+ * to complement a periodic full discovery. Directories are not watched recursively.
+ */
+@JRubyClass(name = "DirectoryWatcher")
+public class DirectoryWatcher extends RubyObject {
+
+    private WatchService service;
+    private final Map<WatchKey, Path> directories = new HashMap<>();
+
+    public DirectoryWatcher(Ruby runtime, RubyClass metaClass) {
+        super(runtime, metaClass);
+    }
+
+    static void load(Ruby runtime) {
+        runtime.getOrCreateModule("FileWatch")
+               .defineClassUnder("DirectoryWatcher", runtime.getObject(), DirectoryWatcher::new)
+               .defineAnnotatedMethods(DirectoryWatcher.class);
+    }
+
+    @JRubyMethod(name = "register")
+    public synchronized IRubyObject register(final ThreadContext context, final IRubyObject dir) {
+        final Path path = FileSystems.getDefault().getPath(dir.convertToString().asJavaString()).toAbsolutePath().normalize();
+        if (directories.containsValue(path)) return context.fals;
+        try {
+            if (service == null) service = path.getFileSystem().newWatchService();
+            final WatchKey key = path.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+            directories.put(key, path);
+        } catch (IOException e) {
+            throw context.runtime.newIOErrorFromException(e);
+        }
+        return context.tru;
+    }
+
+    @JRubyMethod(name = "poll")
+    public synchronized IRubyObject poll(final ThreadContext context) {
+        final Ruby runtime = context.runtime;
+        final RubyArray events = runtime.newArray();
+        if (service == null) return events;
+        try {
+            WatchKey key;
+            while ((key = service.poll()) != null) {
+                final Path dir = directories.get(key);
+                for (final WatchEvent<?> event : key.pollEvents()) {
+                    final WatchEvent.Kind<?> kind = event.kind();
+                    if (kind == StandardWatchEventKinds.OVERFLOW) {
+                        events.append(RubyArray.newArray(runtime, symbol(runtime, "overflow"), context.nil));
+                    } else if (dir != null) {
+                        final Path path = dir.resolve((Path) event.context());
+                        final String type = kind == StandardWatchEventKinds.ENTRY_CREATE ? "create" : "delete";
+                        events.append(RubyArray.newArray(runtime, symbol(runtime, type), runtime.newString(path.toString())));
+                    }
+                }
+                if (!key.reset()) directories.remove(key); // the directory is gone
+            }
+        } catch (ClosedWatchServiceException e) {
+            service = null;
+            directories.clear();
+        }
+        return events;
+    }
+
+    @JRubyMethod(name = "size")
+    public synchronized IRubyObject size(final ThreadContext context) {
+        return context.runtime.newFixnum(directories.size());
+    }
+
+    @JRubyMethod(name = "close")
+    public synchronized IRubyObject close(final ThreadContext context) {
+        if (service != null) {
+            try {
+                service.close();
+            } catch (IOException e) {
+                // closing, nothing to be done
+            }
+            service = null;
+        }
+        directories.clear();
+        return context.nil;
+    }
+
+    private static RubySymbol symbol(final Ruby runtime, final String name) {
+        return runtime.newSymbol(name);
+    }
+}
@@ -0,0 +1,60 @@
+package org.logstash.filewatch;
+
+import org.jruby.Ruby;
+import org.jruby.RubyNumeric;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.anno.JRubyModule;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * FileWatch::Fingerprint identifies a file by its content.
+ *
+ * FileWatch::Fingerprint.of(path, length) # => ["6f0d32aa48b5a5c4", 1024]
+ *
+ * The first length bytes of the file (or all of them when it is shorter) are hashed with xxHash64, the hash (as 16
+ * hex digits) is returned along with the number of bytes it covers. Only those bytes are read, with a single read
+ * in the common case. A missing file raises Errno::ENOENT, other errors raise an IOError.
+ */
+@JRubyModule(name = "Fingerprint")
+public final class Fingerprint {
+
+    private Fingerprint() {
+        // no instances
+    }
+
+    static void load(Ruby runtime) {
+        runtime.getOrCreateModule("FileWatch")
+               .defineModuleUnder("Fingerprint")
+               .defineAnnotatedMethods(Fingerprint.class);
+    }
+
+    @JRubyMethod(name = "of", module = true)
+    public static IRubyObject of(final ThreadContext context, final IRubyObject self,
+                                 final IRubyObject path, final IRubyObject length) {
+        final Ruby runtime = context.runtime;
+        final String file = path.convertToString().asJavaString();
+        final long max = RubyNumeric.num2long(length);
+        if (max <= 0) throw runtime.newArgumentError("length must be positive");
+        final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(max, Integer.MAX_VALUE));
+        try (FileChannel channel = FileChannel.open(FileSystems.getDefault().getPath(file), StandardOpenOption.READ)) {
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // until the length is read or the file ends
+            }
+        } catch (NoSuchFileException e) {
+            throw runtime.newErrnoENOENTError(file);
+        } catch (IOException e) {
+            throw runtime.newIOErrorFromException(e);
+        }
+        final int hashed = buffer.position();
+        final String hex = String.format("%016x", XxHash64.hash(buffer.array(), 0, hashed, 0));
+        return runtime.newArray(runtime.newString(hex), runtime.newFixnum(hashed));
+    }
+}
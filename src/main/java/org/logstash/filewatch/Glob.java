@@ -0,0 +1,190 @@
+package org.logstash.filewatch;
+
+import org.jruby.platform.Platform;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * A glob pattern compiled the way Ruby's Dir.glob (File::FNM_PATHNAME | File::FNM_EXTGLOB) matches paths.
+ *
+ * Braces are expanded first ("{a,b/c}" becomes two globs), the leading segments without wildcards are the base
+ * directory a walk starts from, the rest is matched one path segment (file name) at a time. A "**" segment matches
+ * any number of (non hidden, not symlinked) directories, wildcards do not match a leading "." unless it is explicit.
+ * A glob without any wildcard is a path, it is stat-ed instead of listing its directory. As Dir.glob (FNM_SYSCASE)
+ * the file names are matched ignoring case on Windows.
+ */
+final class Glob {
+
+    private static final String MAGIC = "*?[\\";
+
+    final String base; // "" for the current directory
+    final String path; // the file, when no segment has a wildcard, null otherwise
+    private final Pattern[] segments; // null for a "**" segment
+
+    private Glob(final String base, final String path, final Pattern[] segments) {
+        this.base = base;
+        this.path = path;
+        this.segments = segments;
+    }
+
+    /**
+     * @return the globs the (brace expanded) pattern stands for, none if it can only match directories
+     */
+    static List<Glob> compile(final String pattern) {
+        final List<Glob> globs = new ArrayList<>();
+        for (final String glob : expandBraces(pattern)) {
+            if (glob.isEmpty() || glob.endsWith("/")) continue; // a trailing separator only matches directories
+            final String[] parts = glob.split("/+", -1);
+            int literal = 0;
+            while (literal < parts.length - 1 && !isMagic(parts[literal])) literal++;
+            final StringBuilder base = new StringBuilder();
+            for (int i = 0; i < literal; i++) {
+                if (i > 0) base.append('/');
+                base.append(parts[i]);
+            }
+            if (literal == 1 && parts[0].isEmpty()) base.append('/'); // the root directory
+            if (!isMagic(parts[literal])) {
+                final String directory = base.length() == 0 || base.charAt(base.length() - 1) == '/' ? base.toString() : base + "/";
+                globs.add(new Glob(base.toString(), directory + parts[literal], new Pattern[0]));
+                continue;
+            }
+            final List<Pattern> segments = new ArrayList<>();
+            for (int i = literal; i < parts.length; i++) {
+                if (parts[i].isEmpty()) continue;
+                // "**" followed by a separator spans directories, anywhere else it is a "*"
+                segments.add(parts[i].equals("**") && i < parts.length - 1 ? null : segment(parts[i], Platform.IS_WINDOWS));
+            }
+            globs.add(new Glob(base.toString(), null, segments.toArray(new Pattern[0])));
+        }
+        return globs;
+    }
+
+    /**
+     * Compiles a file name pattern, as matched by File.fnmatch (a "*" or a "?" does not match a leading ".").
+     */
+    static Pattern segment(final String pattern) {
+        return segment(pattern, false);
+    }
+
+    static Pattern segment(final String pattern, final boolean ignoreCase) {
+        final StringBuilder regex = new StringBuilder();
+        if (!pattern.startsWith(".") && !pattern.startsWith("\\.")) regex.append("(?!\\.)");
+        int i = 0;
+        while (i < pattern.length()) {
+            final char c = pattern.charAt(i++);
+            switch (c) {
+                case '*':
+                    regex.append(".*");
+                    break;
+                case '?':
+                    regex.append('.');
+                    break;
+                case '\\':
+                    if (i < pattern.length()) regex.append(Pattern.quote(String.valueOf(pattern.charAt(i++))));
+                    else regex.append("\\\\");
+                    break;
+                case '[':
+                    final int end = classEnd(pattern, i);
+                    if (end < 0) {
+                        regex.append("\\[");
+                    } else {
+                        regex.append(charClass(pattern.substring(i, end)));
+                        i = end + 1;
+                    }
+                    break;
+                default:
+                    regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return ignoreCase ? Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE) :
+                Pattern.compile(regex.toString());
+    }
+
+    int size() {
+        return segments.length;
+    }
+
+    /**
+     * @return true if the segment at the given position is a "**"
+     */
+    boolean spans(final int position) {
+        return segments[position] == null;
+    }
+
+    boolean matches(final int position, final String name) {
+        return segments[position].matcher(name).matches();
+    }
+
+    private static boolean isMagic(final String part) {
+        for (int i = 0; i < part.length(); i++) {
+            if (MAGIC.indexOf(part.charAt(i)) >= 0) return true;
+        }
+        return false;
+    }
+
+    // @return the index of the closing ']' or -1 (the '[' is then literal)
+    private static int classEnd(final String pattern, final int from) {
+        int i = from;
+        if (i < pattern.length() && (pattern.charAt(i) == '!' || pattern.charAt(i) == '^')) i++;
+        if (i < pattern.length() && pattern.charAt(i) == ']') i++; // a leading ']' is part of the class
+        while (i < pattern.length()) {
+            final char c = pattern.charAt(i);
+            if (c == '\\') i++;
+            else if (c == ']') return i;
+            i++;
+        }
+        return -1;
+    }
+
+    private static String charClass(final String body) {
+        final StringBuilder regex = new StringBuilder("[");
+        int i = 0;
+        if (!body.isEmpty() && (body.charAt(0) == '!' || body.charAt(0) == '^')) {
+            regex.append('^');
+            i++;
+        }
+        while (i < body.length()) {
+            char c = body.charAt(i++);
+            final boolean escaped = c == '\\' && i < body.length();
+            if (escaped) c = body.charAt(i++);
+            if (c == '-' && !escaped && regex.length() > 1 && i < body.length()) {
+                regex.append('-');
+                continue;
+            }
+            if (Character.isLetterOrDigit(c)) regex.append(c);
+            else regex.append('\\').append(c);
+        }
+        return regex.append(']').toString();
+    }
+
+    static List<String> expandBraces(final String pattern) {
+        int open = -1;
+        int depth = 0;
+        final List<Integer> commas = new ArrayList<>();
+        for (int i = 0; i < pattern.length(); i++) {
+            final char c = pattern.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '{') {
+                if (depth++ == 0) open = i;
+            } else if (c == ',' && depth == 1) {
+                commas.add(i);
+            } else if (c == '}' && depth > 0 && --depth == 0) {
+                final String prefix = pattern.substring(0, open);
+                final String suffix = pattern.substring(i + 1);
+                final List<String> expanded = new ArrayList<>();
+                int from = open + 1;
+                commas.add(i);
+                for (final int to : commas) {
+                    expanded.addAll(expandBraces(prefix + pattern.substring(from, to) + suffix));
+                    from = to + 1;
+                }
+                return expanded;
+            }
+        }
+        return Collections.singletonList(pattern); // no (balanced) braces
+    }
+}
@@ -0,0 +1,271 @@
+package org.logstash.filewatch;
+
+import org.jruby.Ruby;
+import org.jruby.RubyClass;
+import org.jruby.RubyNumeric;
+import org.jruby.RubyObject;
+import org.jruby.anno.JRubyClass;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.Helpers;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BooleanSupplier;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * FileWatch::GzipReader streams the lines of a (gzip) compressed file.
+ *
+ * reader = FileWatch::GzipReader.new(path, delimiter)
+ * reader.skip(offset) # resume, offset being the decompressed bytes consumed by the lines accepted before
+ * consumed = reader.read_lines(amount, listener) { quit? }
+ * reader.flush # => the last line (without a delimiter) once reader.eof?
+ *
+ * Bytes are split on the delimiter the same way plain files are (see {@link LineSplitter}) instead of being decoded
+ * into (UTF-8) Java strings. Concatenated (multi-member) archives are read as one, BGZF archives (see
+ * {@link BgzfInputStream}) get their members inflated in parallel.
+ *
+ * reader.validate(limit) # => true if the (valid) archive got spooled in memory
+ *
+ * Validation inflates the rest of the archive, which verifies the gzip trailer(s). Up to limit decompressed bytes are
+ * kept so a small archive is only inflated once, a larger one is inflated again (from the current position) to read.
+ *
+ * Errors reading the archive (e.g. a java.util.zip.ZipException) are raised as is.
+ */
+@JRubyClass(name = "GzipReader")
+public class GzipReader extends RubyObject {
+
+    private static final int INFLATE_SIZE = 64 * 1024;
+    private static final int HEADER_SIZE = 32;
+
+    private String path;
+    private InputStream input;
+    private LineSplitter splitter;
+    private final byte[] bytes = new byte[INFLATE_SIZE];
+    private final byte[] header = new byte[HEADER_SIZE];
+    private ByteBuffer chunk = ByteBuffer.wrap(bytes, 0, 0); // inflated but not yet split
+    private long position; // decompressed bytes read off the archive
+    private boolean eof;
+    private boolean closed;
+
+    public GzipReader(Ruby runtime, RubyClass metaClass) {
+        super(runtime, metaClass);
+    }
+
+    static void load(Ruby runtime) {
+        runtime.getOrCreateModule("FileWatch")
+               .defineClassUnder("GzipReader", runtime.getObject(), GzipReader::new)
+               .defineAnnotatedMethods(GzipReader.class);
+    }
+
+    @JRubyMethod
+    public IRubyObject initialize(final ThreadContext context, final IRubyObject path, final IRubyObject delimiter) {
+        final ByteList delimiterBytes = delimiter.convertToString().getByteList();
+        if (delimiterBytes.realSize() == 0) {
+            throw context.runtime.newArgumentError("delimiter must not be empty");
+        }
+        this.splitter = new LineSplitter(delimiterBytes.bytes());
+        this.path = path.convertToString().asJavaString();
+        return this; // opened on the first read, a corrupted header raises from there
+    }
+
+    private void open() {
+        final FileInputStream file;
+        try {
+            file = new FileInputStream(path);
+        } catch (IOException e) {
+            throw raise(e);
+        }
+        try {
+            this.input = BgzfInputStream.isBgzf(header, readHeader(file)) ?
+                    new BgzfInputStream(new BufferedInputStream(file, INFLATE_SIZE), ForkJoinPool.commonPool()) : new GZIPInputStream(file, INFLATE_SIZE);
+        } catch (IOException e) {
+            close(file);
+            throw raise(e);
+        }
+        this.position = 0;
+        this.eof = false;
+        this.closed = false;
+    }
+
+    // reads the first bytes of the archive (to pick how it gets inflated) and rewinds
+    private int readHeader(final FileInputStream file) throws IOException {
+        int length = 0;
+        while (length < header.length) {
+            final int read = file.read(header, length, header.length - length);
+            if (read < 0) break;
+            length += read;
+        }
+        file.getChannel().position(0);
+        return length;
+    }
+
+    /**
+     * Inflates (and drops) the decompressed bytes up to the given offset, lines before it are not split.
+     *
+     * @return the bytes skipped, less than requested if the archive ends before the offset
+     */
+    @JRubyMethod(name = "skip")
+    public IRubyObject skip(final ThreadContext context, final IRubyObject offset) {
+        final long target = RubyNumeric.num2long(offset);
+        final long start = position;
+        while (!eof && position < target) {
+            final long skipped = input instanceof BgzfInputStream ? skipInput(target - position) : 0;
+            if (skipped > 0) {
+                position += skipped;
+                continue;
+            }
+            final int read = inflate((int) Math.min(bytes.length, target - position));
+            if (read > 0) position += read;
+        }
+        chunk = ByteBuffer.wrap(bytes, 0, 0);
+        return context.runtime.newFixnum(position - start);
+    }
+
+    /**
+     * Inflates the remaining archive (raises if it is corrupted), to be called before reading lines.
+     *
+     * @return true if the decompressed bytes fit within limit, lines are then split from memory
+     */
+    @JRubyMethod(name = "validate")
+    public IRubyObject validate(final ThreadContext context, final IRubyObject limit) {
+        final long max = RubyNumeric.num2long(limit);
+        final long start = position;
+        byte[] spool = new byte[(int) Math.min(max, bytes.length)];
+        int spooled = 0;
+        while (!eof) {
+            final int read = inflate(bytes.length);
+            if (read <= 0) continue;
+            position += read;
+            if (spool == null) continue;
+            if (spooled + read > max) {
+                spool = null; // too large, the archive gets inflated again
+            } else {
+                if (spooled + read > spool.length) {
+                    spool = Arrays.copyOf(spool, (int) Math.min(max, Math.max(spooled + read, 2L * spool.length)));
+                }
+                System.arraycopy(bytes, 0, spool, spooled, read);
+                spooled += read;
+            }
+        }
+        close(context);
+        if (spool == null) {
+            open();
+            skip(context, context.runtime.newFixnum(start));
+            return context.fals;
+        }
+        chunk = ByteBuffer.wrap(spool, 0, spooled);
+        return context.tru;
+    }
+
+    /**
+     * Inflates about amount bytes (whole chunks) and hands the complete lines to the listener in batches (see
+     * {@link LineBatch}), the (optional) block is called every few lines to check whether to stop. The partial line
+     * at the end is kept for the next call.
+     *
+     * @return the bytes consumed by the accepted lines and their delimiters
+     */
+    @JRubyMethod(name = "read_lines")
+    public IRubyObject read_lines(final ThreadContext context, final IRubyObject amount, final IRubyObject listener,
+                                  final Block block) {
+        final Ruby runtime = context.runtime;
+        final long target = position + RubyNumeric.num2long(amount);
+        final LineBatch batch = new LineBatch(context, listener);
+        final BooleanSupplier stop = batch.stopCheck(block);
+        long consumed = 0;
+        while (true) {
+            if (chunk.hasRemaining()) {
+                consumed += splitter.split(chunk, batch, stop);
+                if (chunk.hasRemaining()) break; // asked to stop, the rest of the chunk is split on the next call
+            }
+            if (eof || position >= target) break;
+            final int read = inflate(bytes.length);
+            if (read > 0) {
+                position += read;
+                chunk = ByteBuffer.wrap(bytes, 0, read);
+            }
+        }
+        batch.flush();
+        return runtime.newFixnum(consumed);
+    }
+
+    /**
+     * @return the buffered partial line (String)
+     */
+    @JRubyMethod(name = "flush")
+    public IRubyObject flush(final ThreadContext context) {
+        return LineReader.newString(context.runtime, splitter.flush());
+    }
+
+    /**
+     * @return true once the whole archive has been inflated and split
+     */
+    @JRubyMethod(name = "eof?")
+    public IRubyObject eof_p(final ThreadContext context) {
+        return context.runtime.newBoolean(eof && !chunk.hasRemaining());
+    }
+
+    /**
+     * @return the decompressed bytes read off the archive so far
+     */
+    @JRubyMethod(name = "position")
+    public IRubyObject position(final ThreadContext context) {
+        return context.runtime.newFixnum(position);
+    }
+
+    @JRubyMethod(name = "close")
+    public IRubyObject close(final ThreadContext context) {
+        if (input != null) {
+            close(input);
+            input = null;
+        }
+        closed = true;
+        return context.nil;
+    }
+
+    // @return the bytes inflated (into bytes) or -1 at the end of the archive
+    private int inflate(final int length) {
+        if (input == null) {
+            if (closed) throw getRuntime().newIOError("closed stream");
+            open();
+        }
+        try {
+            final int read = input.read(bytes, 0, length);
+            if (read < 0) eof = true;
+            return read;
+        } catch (IOException e) {
+            throw raise(e);
+        }
+    }
+
+    private long skipInput(final long length) {
+        try {
+            return input.skip(length);
+        } catch (IOException e) {
+            throw raise(e);
+        }
+    }
+
+    private static void close(final InputStream input) {
+        try {
+            input.close();
+        } catch (IOException e) {
+            // closing, nothing to be done
+        }
+    }
+
+    // the Java exception is raised to Ruby as is (callers rescue ZipException as they did with java.util.zip streams)
+    private static RuntimeException raise(final IOException e) {
+        Helpers.throwException(e);
+        return new IllegalStateException(e); // not reached
+    }
+}
@@ -52,12 +52,10 @@ import java.nio.file.StandardOpenOption;
 @SuppressWarnings("ClassUnconnectedToPackage")
 public class JrubyFileWatchLibrary implements Library {
 
-    private static final BigInteger INIT32 = new BigInteger("811c9dc5", 16);
-    private static final BigInteger INIT64 = new BigInteger("cbf29ce484222325", 16);
-    private static final BigInteger PRIME32 = new BigInteger("01000193", 16);
-    private static final BigInteger PRIME64 = new BigInteger("100000001b3", 16);
-    private static final BigInteger MOD32 = new BigInteger("2").pow(32);
-    private static final BigInteger MOD64 = new BigInteger("2").pow(64);
+    private static final long INIT32 = 0x811c9dc5L;
+    private static final long INIT64 = 0xcbf29ce484222325L;
+    private static final long PRIME32 = 0x01000193L;
+    private static final long PRIME64 = 0x100000001b3L;
 
     // private static final int GENERIC_ALL = 268435456;
     private static final int GENERIC_READ = -2147483648;
@@ -85,6 +83,17 @@ public class JrubyFileWatchLibrary implements Library {
         clazz.defineAnnotatedMethods(JrubyFileWatchLibrary.Fnv.class);
 
         WatchedFilesCollection.load(runtime);
+        LineReader.load(runtime);
+        SincedbJournal.load(runtime);
+        SincedbFile.load(runtime);
+        SincedbIndex.load(runtime);
+        DirectoryWatcher.load(runtime);
+        StatService.load(runtime);
+        GzipReader.load(runtime);
+        Fingerprint.load(runtime);
+        Metrics.load(runtime);
+        PathFinder.load(runtime);
+        ScanCache.load(runtime);
     }
 
     @JRubyClass(name = "FileExt")
@@ -197,7 +206,7 @@ public class JrubyFileWatchLibrary implements Library {
         }
     }
 
-    // This class may be used by fingerprinting in the future
+    // FNV-1a over (a prefix of) the given bytes, file fingerprints use the faster xxHash64 (see Fingerprint)
     @SuppressWarnings({"NewMethodNamingConvention", "ChainOfInstanceofChecks"})
     @JRubyClass(name = "Fnv")
     public static class Fnv extends RubyObject {
@@ -262,7 +271,7 @@ public class JrubyFileWatchLibrary implements Library {
             IRubyObject[] args1 = args;
             if(open) {
                 args1 = Arity.scanArgs(ctx.runtime, args1, 0, 1);
-                return RubyBignum.newBignum(ctx.runtime, common_fnv(args1[0], INIT32, PRIME32, MOD32));
+                return RubyBignum.newBignum(ctx.runtime, BigInteger.valueOf(fnv1a(args1[0], INIT32, PRIME32) & 0xffffffffL));
             }
             throw ctx.runtime.newRaiseException(ctx.runtime.getClass("StandardError"), "Fnv instance is closed!");
         }
@@ -272,7 +281,7 @@ public class JrubyFileWatchLibrary implements Library {
             IRubyObject[] args1 = args;
             if(open) {
                 args1 = Arity.scanArgs(ctx.runtime, args1, 0, 1);
-                return RubyBignum.newBignum(ctx.runtime, common_fnv(args1[0], INIT64, PRIME64, MOD64));
+                return RubyBignum.newBignum(ctx.runtime, unsigned(fnv1a(args1[0], INIT64, PRIME64)));
             }
             throw ctx.runtime.newRaiseException(ctx.runtime.getClass("StandardError"), "Fnv instance is closed!");
         }
@@ -284,20 +293,20 @@ public class JrubyFileWatchLibrary implements Library {
             return size;
         }
 
-        private BigInteger common_fnv(final IRubyObject len, final BigInteger hash, final BigInteger prime, final BigInteger mod) {
-            long converted = convertLong(len);
-
-            if (converted > size) {
-                converted = size;
-            }
-
-            BigInteger tempHash = hash;
-            for (int idx = 0; (long) idx < converted; idx++) {
-                tempHash = tempHash.xor(BigInteger.valueOf((long) ((int) bytes[idx] & 0xff)));
-                tempHash = tempHash.multiply(prime).mod(mod);
+        // multiplying longs wraps around, the 2^64 modulus comes for free (a 32 bit hash is masked by the caller)
+        private long fnv1a(final IRubyObject len, final long init, final long prime) {
+            final int length = (int) Math.min(convertLong(len), size);
+            long hash = init;
+            for (int idx = 0; idx < length; idx++) {
+                hash ^= bytes[idx] & 0xff;
+                hash *= prime;
             }
+            return hash;
+        }
 
-            return tempHash;
+        private static BigInteger unsigned(final long value) {
+            final BigInteger big = BigInteger.valueOf(value);
+            return value < 0 ? big.add(BigInteger.ONE.shiftLeft(64)) : big;
         }
     }
 
@@ -0,0 +1,64 @@
+package org.logstash.filewatch;
+
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.runtime.callsite.CachingCallSite;
+import org.jruby.runtime.callsite.FunctionalCachingCallSite;
+
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Collects the lines split from a chunk and hands them to the listener in batches (`listener.accept_lines(lines)`).
+ *
+ * A batch is handed over every {@link LineReader#STOP_CHECK_LINES} lines, right before the block is asked whether to
+ * stop, so every line emitted by the splitter has been accepted when it stops.
+ */
+final class LineBatch implements Consumer<byte[]> {
+
+    private static final CachingCallSite accept_lines_site = new FunctionalCachingCallSite("accept_lines");
+
+    private final ThreadContext context;
+    private final IRubyObject listener;
+    private RubyArray lines;
+
+    LineBatch(final ThreadContext context, final IRubyObject listener) {
+        this.context = context;
+        this.listener = listener;
+        this.lines = newBatch(context.runtime);
+    }
+
+    @Override
+    public void accept(final byte[] line) {
+        lines.append(LineReader.newString(context.runtime, line));
+    }
+
+    /**
+     * Hands the collected lines (if any) to the listener.
+     */
+    void flush() {
+        if (lines.isEmpty()) return;
+        final RubyArray batch = lines;
+        lines = newBatch(context.runtime);
+        accept_lines_site.call(context, listener, listener, batch);
+    }
+
+    /**
+     * @return the check to pass to the splitter, flushes the batch and then calls the (optional) block
+     */
+    BooleanSupplier stopCheck(final Block block) {
+        final int[] count = new int[1];
+        return () -> {
+            if (++count[0] % LineReader.STOP_CHECK_LINES != 0) return false;
+            flush();
+            return block.isGiven() && block.yield(context, context.nil).isTrue();
+        };
+    }
+
+    private static RubyArray newBatch(final Ruby runtime) {
+        return RubyArray.newArray(runtime, LineReader.STOP_CHECK_LINES);
+    }
+}
@@ -0,0 +1,349 @@
+package org.logstash.filewatch;
+
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyClass;
+import org.jruby.RubyIO;
+import org.jruby.RubyNumeric;
+import org.jruby.RubyObject;
+import org.jruby.RubyString;
+import org.jruby.anno.JRubyClass;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+import org.jruby.util.io.OpenFile;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * FileWatch::LineReader reads chunks off an open file and splits them into lines.
+ *
+ * Replaces the `sysread` + `BufferedTokenizer#extract` combination: bytes are read from the file's channel into a
+ * (per thread) re-usable direct buffer and delimiters are scanned for in Java, only the resulting lines are turned
+ * into Ruby Strings. Each read returns the whole batch of lines together with the byte count the lines consumed,
+ * so callers can advance the sincedb position once per batch instead of once per line.
+ *
+ * The reader keeps the partial line state, it outlives the file handle (a file might get closed and re-opened).
+ * When memory mapping (map_lines) it also keeps the file's channel and the current mapped window, until released.
+ */
+@JRubyClass(name = "LineReader")
+public class LineReader extends RubyObject {
+
+    private static final ThreadLocal<ByteBuffer> READ_BUFFER = new ThreadLocal<>();
+
+    // how often (in lines) the block passed to map_lines is asked whether to stop, lines are accepted in batches as large
+    static final int STOP_CHECK_LINES = 64;
+
+    // map_lines reads (at most) this much at a time when mappings can not be released explicitly
+    static final int UNMAPPED_READ_SIZE = 1024 * 1024;
+
+    private LineSplitter splitter;
+
+    // map_lines state: the channel of the mapped file and the window mapped (starting at windowStart)
+    private FileChannel channel;
+    private String channelPath;
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    public LineReader(Ruby runtime, RubyClass metaClass) {
+        super(runtime, metaClass);
+    }
+
+    static void load(Ruby runtime) {
+        runtime.getOrCreateModule("FileWatch")
+               .defineClassUnder("LineReader", runtime.getObject(), LineReader::new)
+               .defineAnnotatedMethods(LineReader.class);
+    }
+
+    @JRubyMethod
+    public IRubyObject initialize(final ThreadContext context, final IRubyObject delimiter) {
+        final ByteList bytes = delimiter.convertToString().getByteList();
+        if (bytes.realSize() == 0) {
+            throw context.runtime.newArgumentError("delimiter must not be empty");
+        }
+        this.splitter = new LineSplitter(bytes.bytes());
+        return this;
+    }
+
+    /**
+     * Reads up to amount bytes from the (open) file and extracts complete lines.
+     *
+     * lines, bytes_read, bytes_consumed = reader.read_lines(io, amount)
+     *
+     * Raises an EOFError (Ruby) when there's nothing to be read, same as `IO#sysread`.
+     *
+     * @return [lines, bytes_read, bytes_consumed] where bytes consumed is the size of all lines and their delimiters
+     */
+    @JRubyMethod(name = "read_lines")
+    public IRubyObject read_lines(final ThreadContext context, final IRubyObject io, final IRubyObject amount) {
+        final Ruby runtime = context.runtime;
+        final ByteBuffer buffer;
+        if (io instanceof RubyIO) {
+            buffer = readBuffer(RubyNumeric.num2int(amount));
+            readChannel(context, (RubyIO) io, buffer);
+        } else {
+            // duck-typed IO (e.g. a test double) - does not expose a channel
+            final ByteList data = io.callMethod(context, "sysread", amount).convertToString().getByteList();
+            buffer = ByteBuffer.wrap(data.unsafeBytes(), data.begin(), data.realSize());
+        }
+        final int bytesRead = buffer.remaining();
+        if (bytesRead == 0) throw runtime.newEOFError();
+
+        final RubyArray lines = runtime.newArray();
+        final long consumed = splitter.split(buffer, line -> lines.append(newString(runtime, line)));
+        return RubyArray.newArray(runtime, lines, runtime.newFixnum(bytesRead), runtime.newFixnum(consumed));
+    }
+
+    /**
+     * Memory maps a window of the file and hands the extracted lines directly to the listener (see {@link LineBatch}).
+     *
+     * bytes_read, bytes_consumed = reader.map_lines(path, position, amount, listener) { quit? }
+     *
+     * Meant for files that do not change (read mode), the partial line at the end of the window is kept for the
+     * next window. The optional block is called (every few lines) to check whether to stop in the middle of a window.
+     *
+     * The file's channel is opened once and the mapped window only moves forward (the previous one is unmapped), both
+     * are kept until {@link #release(ThreadContext)}. When the JVM does not allow unmapping (a live mapping would
+     * prevent the file from being deleted on Windows) the window is read into the re-usable direct buffer instead.
+     *
+     * @return [bytes_read, bytes_consumed] bytes of the window processed and bytes consumed by the accepted lines,
+     *         0 bytes read means the position is at (or past) the end of the file
+     */
+    @JRubyMethod(name = "map_lines", required = 4)
+    public synchronized IRubyObject map_lines(final ThreadContext context, final IRubyObject[] args, final Block block) {
+        final Ruby runtime = context.runtime;
+        final String path = args[0].convertToString().asJavaString();
+        final long position = RubyNumeric.num2long(args[1]);
+        final long amount = Math.min(RubyNumeric.num2long(args[2]), Integer.MAX_VALUE);
+        final IRubyObject listener = args[3];
+
+        long bytesRead = 0;
+        long consumed = 0;
+        try {
+            final FileChannel channel = channel(path);
+            final long size = Math.min(amount, channel.size() - position);
+            if (size > 0) {
+                final ByteBuffer chunk = Unmapper.SUPPORTED ? window(position, size) : read(position, size);
+                final LineBatch batch = new LineBatch(context, listener);
+                consumed = splitter.split(chunk, batch, batch.stopCheck(block));
+                batch.flush();
+                bytesRead = chunk.position();
+            }
+        } catch (IOException e) {
+            try {
+                release();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw runtime.newIOErrorFromException(e);
+        }
+        return RubyArray.newArray(runtime, runtime.newFixnum(bytesRead), runtime.newFixnum(consumed));
+    }
+
+    /**
+     * Unmaps the current window and closes the channel map_lines uses, called once the file is closed.
+     */
+    @JRubyMethod(name = "release")
+    public synchronized IRubyObject release(final ThreadContext context) {
+        try {
+            release();
+        } catch (IOException e) {
+            throw context.runtime.newIOErrorFromException(e);
+        }
+        return context.nil;
+    }
+
+    @JRubyMethod(name = "unmap_supported?", meta = true)
+    public static IRubyObject unmap_supported_p(final ThreadContext context, final IRubyObject self) {
+        return context.runtime.newBoolean(Unmapper.SUPPORTED);
+    }
+
+    private FileChannel channel(final String path) throws IOException {
+        if (channel == null || !path.equals(channelPath)) {
+            release();
+            channel = FileChannel.open(FileSystems.getDefault().getPath(path), StandardOpenOption.READ);
+            channelPath = path;
+        }
+        return channel;
+    }
+
+    // a view of [position, position + size) in the mapped window, re-mapped when not covered by the current one
+    private ByteBuffer window(final long position, final long size) throws IOException {
+        if (window == null || position < windowStart || position + size > windowStart + window.capacity()) {
+            unmapWindow();
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            windowStart = position;
+        }
+        final ByteBuffer view = window.duplicate();
+        final int offset = (int) (position - windowStart);
+        ((Buffer) view).limit(offset + (int) size).position(offset);
+        return view.slice();
+    }
+
+    private ByteBuffer read(final long position, final long size) throws IOException {
+        final ByteBuffer buffer = readBuffer((int) Math.min(size, UNMAPPED_READ_SIZE));
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, offset);
+            if (read < 0) break;
+            offset += read;
+        }
+        ((Buffer) buffer).flip();
+        return buffer;
+    }
+
+    private void release() throws IOException {
+        unmapWindow();
+        if (channel != null) {
+            final FileChannel channel = this.channel;
+            this.channel = null;
+            this.channelPath = null;
+            channel.close();
+        }
+    }
+
+    private void unmapWindow() {
+        if (window != null) {
+            final MappedByteBuffer window = this.window;
+            this.window = null;
+            Unmapper.unmap(window);
+        }
+    }
+
+    /**
+     * Tokenizer compatible API, extracts complete lines from the given data.
+     *
+     * @return lines (Array)
+     */
+    @JRubyMethod(name = "extract")
+    public IRubyObject extract(final ThreadContext context, final IRubyObject data) {
+        final Ruby runtime = context.runtime;
+        final ByteList bytes = data.convertToString().getByteList();
+        final RubyArray lines = runtime.newArray();
+        splitter.split(bytes.unsafeBytes(), bytes.begin(), bytes.realSize(), line -> lines.append(newString(runtime, line)));
+        return lines;
+    }
+
+    /**
+     * @return the buffered partial line (String), the reader is reset
+     */
+    @JRubyMethod(name = "flush")
+    public IRubyObject flush(final ThreadContext context) {
+        return newString(context.runtime, splitter.flush());
+    }
+
+    @JRubyMethod(name = "empty?")
+    public IRubyObject empty_p(final ThreadContext context) {
+        return context.runtime.newBoolean(splitter.isEmpty());
+    }
+
+    @JRubyMethod(name = "pending")
+    public IRubyObject pending(final ThreadContext context) {
+        return context.runtime.newFixnum(splitter.pending());
+    }
+
+    LineSplitter getSplitter() {
+        return splitter;
+    }
+
+    static RubyString newString(final Ruby runtime, final byte[] line) {
+        return RubyString.newString(runtime, new ByteList(line, false)); // binary (like a sysread chunk)
+    }
+
+    private static void readChannel(final ThreadContext context, final RubyIO io, final ByteBuffer buffer) {
+        final OpenFile fptr = io.getOpenFileChecked();
+        final boolean locked = fptr.lock();
+        try {
+            fptr.checkClosed();
+            final ReadableByteChannel channel = fptr.readChannel();
+            if (channel.read(buffer) < 0) {
+                ((Buffer) buffer).limit(0);
+            }
+            ((Buffer) buffer).flip();
+        } catch (IOException e) {
+            throw context.runtime.newIOErrorFromException(e);
+        } finally {
+            if (locked) {
+                fptr.unlock();
+            }
+        }
+    }
+
+    /**
+     * Releases mappings explicitly, Java has no public API for it: Unsafe#invokeCleaner (Java 9+) or the buffer's
+     * Cleaner (Java 8). Not supported if neither is accessible, mappings are then released once garbage collected.
+     */
+    static final class Unmapper {
+
+        private static final Object UNSAFE;
+        private static final Method INVOKE_CLEANER;
+        static final boolean SUPPORTED;
+
+        static {
+            Object unsafe = null;
+            Method invokeCleaner = null;
+            try {
+                final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                unsafe = theUnsafe.get(null);
+            } catch (Exception | LinkageError e) {
+                invokeCleaner = null; // Java 8
+            }
+            UNSAFE = unsafe;
+            INVOKE_CLEANER = invokeCleaner;
+            SUPPORTED = INVOKE_CLEANER != null || java8Unmap(ByteBuffer.allocateDirect(1));
+        }
+
+        private Unmapper() {}
+
+        static void unmap(final MappedByteBuffer buffer) {
+            try {
+                if (INVOKE_CLEANER != null) {
+                    INVOKE_CLEANER.invoke(UNSAFE, buffer);
+                } else if (SUPPORTED) {
+                    java8Unmap(buffer);
+                }
+            } catch (Exception e) {
+                // left to the garbage collector
+            }
+        }
+
+        private static boolean java8Unmap(final ByteBuffer buffer) {
+            try {
+                final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                final Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+                return true;
+            } catch (Exception | LinkageError e) {
+                return false;
+            }
+        }
+    }
+
+    // a direct buffer per reading thread, the read size is bounded by `file_chunk_size`
+    static ByteBuffer readBuffer(final int size) {
+        ByteBuffer buffer = READ_BUFFER.get();
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = ByteBuffer.allocateDirect(size);
+            READ_BUFFER.set(buffer);
+        }
+        ((Buffer) buffer).clear().limit(size);
+        return buffer;
+    }
+}
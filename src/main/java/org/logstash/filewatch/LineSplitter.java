@@ -0,0 +1,194 @@
+package org.logstash.filewatch;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Splits a stream of bytes, fed in chunks, into delimited lines.
+ *
+ * A trailing partial line (as well as a partially matched multi-byte delimiter) is carried over
+ * to the next chunk, this is the byte level equivalent of a BufferedTokenizer without having to
+ * materialize every chunk as a Ruby String first.
+ *
+ * Instances are not thread-safe, one splitter is expected to be used per file (stream).
+ */
+public final class LineSplitter {
+
+    private static final byte[] EMPTY = new byte[0];
+    private static final BooleanSupplier NEVER = () -> false;
+
+    private final byte[] delimiter;
+    private final int[] fallback; // KMP failure table for multi-byte delimiters
+
+    private byte[] carry = EMPTY; // bytes of the current (incomplete) line
+    private int carryLength;
+    private int matched; // count of delimiter bytes matched at the end of the carry
+
+    public LineSplitter(final String delimiter) {
+        this(delimiter.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public LineSplitter(final byte[] delimiter) {
+        if (delimiter.length == 0) {
+            throw new IllegalArgumentException("delimiter must not be empty");
+        }
+        this.delimiter = delimiter.clone();
+        this.fallback = fallbackTable(this.delimiter);
+    }
+
+    public int delimiterLength() {
+        return delimiter.length;
+    }
+
+    /**
+     * @return the number of bytes held back, waiting for a delimiter
+     */
+    public int pending() {
+        return carryLength;
+    }
+
+    public boolean isEmpty() {
+        return carryLength == 0;
+    }
+
+    /**
+     * Consumes all remaining bytes of the given chunk, each completed line is passed to the consumer (without the
+     * delimiter). On return the chunk's position is at its limit.
+     *
+     * @return the number of bytes (lines + delimiters) consumed by the lines emitted
+     */
+    public long split(final ByteBuffer chunk, final Consumer<byte[]> lines) {
+        return split(chunk, lines, NEVER);
+    }
+
+    /**
+     * Same as {@link #split(ByteBuffer, Consumer)} but checks whether to stop after every emitted line.
+     * When stopped the chunk's position is right after the last line emitted, the remaining bytes are not consumed.
+     *
+     * @return the number of bytes (lines + delimiters) consumed by the lines emitted
+     */
+    public long split(final ByteBuffer chunk, final Consumer<byte[]> lines, final BooleanSupplier stop) {
+        final int start = chunk.position();
+        final int limit = chunk.limit();
+        final int delimiterLength = delimiter.length;
+        long consumed = 0;
+        int lineStart = start;
+        int m = matched;
+
+        if (delimiterLength == 1) {
+            final byte delim = delimiter[0];
+            for (int i = start; i < limit; i++) {
+                if (chunk.get(i) == delim) {
+                    final byte[] line = takeLine(chunk, start, lineStart, i);
+                    lines.accept(line);
+                    consumed += line.length + 1;
+                    lineStart = i + 1;
+                    if (stop.getAsBoolean()) return stopped(chunk, lineStart, consumed);
+                }
+            }
+        } else {
+            for (int i = start; i < limit; i++) {
+                final byte b = chunk.get(i);
+                while (m > 0 && delimiter[m] != b) m = fallback[m - 1];
+                if (delimiter[m] == b) m++;
+                if (m == delimiterLength) {
+                    // the line ends before the delimiter, this might be before the chunk start (delimiter split across chunks)
+                    final byte[] line = takeLine(chunk, start, lineStart, i + 1 - delimiterLength);
+                    lines.accept(line);
+                    consumed += line.length + delimiterLength;
+                    lineStart = i + 1;
+                    m = 0;
+                    if (stop.getAsBoolean()) return stopped(chunk, lineStart, consumed);
+                }
+            }
+        }
+
+        appendCarry(chunk, lineStart, limit);
+        matched = m;
+        ((Buffer) chunk).position(limit);
+        return consumed;
+    }
+
+    /**
+     * Convenience for splitting a heap byte array (e.g. a Ruby String's bytes).
+     */
+    public long split(final byte[] bytes, final int offset, final int length, final Consumer<byte[]> lines) {
+        return split(ByteBuffer.wrap(bytes, offset, length), lines);
+    }
+
+    /**
+     * @return the held back bytes (a line without a delimiter) and resets the splitter
+     */
+    public byte[] flush() {
+        final byte[] line = carryLength == 0 ? EMPTY : Arrays.copyOf(carry, carryLength);
+        carryLength = 0;
+        matched = 0;
+        return line;
+    }
+
+    private long stopped(final ByteBuffer chunk, final int position, final long consumed) {
+        matched = 0;
+        ((Buffer) chunk).position(position);
+        return consumed;
+    }
+
+    // end is exclusive, when end < start the line (and part of the delimiter) lies in the carry
+    private byte[] takeLine(final ByteBuffer chunk, final int start, final int lineStart, final int end) {
+        if (carryLength == 0 || lineStart > start) {
+            return copy(chunk, lineStart, end - lineStart, null, 0);
+        }
+        final byte[] line;
+        if (end < start) {
+            line = Arrays.copyOf(carry, carryLength - (start - end));
+        } else {
+            line = copy(chunk, start, end - start, carry, carryLength);
+        }
+        carryLength = 0;
+        return line;
+    }
+
+    private static byte[] copy(final ByteBuffer chunk, final int from, final int length, final byte[] prefix, final int prefixLength) {
+        final byte[] line = new byte[prefixLength + length];
+        if (prefixLength > 0) System.arraycopy(prefix, 0, line, 0, prefixLength);
+        if (length > 0) {
+            if (chunk.hasArray()) {
+                System.arraycopy(chunk.array(), chunk.arrayOffset() + from, line, prefixLength, length);
+            } else {
+                ((Buffer) chunk).position(from);
+                chunk.get(line, prefixLength, length);
+            }
+        }
+        return line;
+    }
+
+    private void appendCarry(final ByteBuffer chunk, final int from, final int limit) {
+        final int length = limit - from;
+        if (length <= 0) return;
+        final int required = carryLength + length;
+        if (required > carry.length) {
+            carry = Arrays.copyOf(carry, Math.max(required, carry.length * 2));
+        }
+        if (chunk.hasArray()) {
+            System.arraycopy(chunk.array(), chunk.arrayOffset() + from, carry, carryLength, length);
+        } else {
+            ((Buffer) chunk).position(from);
+            chunk.get(carry, carryLength, length);
+        }
+        carryLength = required;
+    }
+
+    private static int[] fallbackTable(final byte[] pattern) {
+        final int[] table = new int[pattern.length];
+        int k = 0;
+        for (int i = 1; i < pattern.length; i++) {
+            while (k > 0 && pattern[k] != pattern[i]) k = table[k - 1];
+            if (pattern[k] == pattern[i]) k++;
+            table[i] = k;
+        }
+        return table;
+    }
+}
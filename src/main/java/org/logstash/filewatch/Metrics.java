@@ -0,0 +1,126 @@
+package org.logstash.filewatch;
+
+import org.jruby.Ruby;
+import org.jruby.RubyClass;
+import org.jruby.RubyHash;
+import org.jruby.RubyNumeric;
+import org.jruby.RubyObject;
+import org.jruby.anno.JRubyClass;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * FileWatch::Metrics collects the counters, gauges and timings of a watch, without locking.
+ *
+ * metrics.increment(:lines, 10)
+ * metrics.gauge(:"files.waiting", 3)
+ * metrics.time(:tick) { ... } # => the value of the block
+ * metrics.snapshot # => {"lines" => 10, "files.waiting" => 3, "tick.count" => 1, "tick.duration_in_millis" => 2, ...}
+ *
+ * Counters are LongAdders, the threads updating them (e.g. the read workers) do not contend on a single value.
+ * Gauges hold the last value set. A timing counts the calls and sums their durations (reported in millis), the
+ * duration of the last call is kept as well. Names are dotted paths, the file input publishes each segment as a
+ * metric namespace.
+ */
+@JRubyClass(name = "Metrics")
+public class Metrics extends RubyObject {
+
+    private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> gauges = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Timing> timings = new ConcurrentHashMap<>();
+
+    public Metrics(Ruby runtime, RubyClass metaClass) {
+        super(runtime, metaClass);
+    }
+
+    static void load(Ruby runtime) {
+        runtime.getOrCreateModule("FileWatch")
+               .defineClassUnder("Metrics", runtime.getObject(), Metrics::new)
+               .defineAnnotatedMethods(Metrics.class);
+    }
+
+    @JRubyMethod(name = "increment", required = 1, optional = 1)
+    public IRubyObject increment(final ThreadContext context, final IRubyObject[] args) {
+        final long delta = args.length > 1 ? RubyNumeric.num2long(args[1]) : 1;
+        final String name = args[0].asJavaString();
+        LongAdder counter = counters.get(name);
+        if (counter == null) counter = counters.computeIfAbsent(name, key -> new LongAdder());
+        counter.add(delta);
+        return context.nil;
+    }
+
+    @JRubyMethod(name = "gauge")
+    public IRubyObject gauge(final ThreadContext context, final IRubyObject name, final IRubyObject value) {
+        final String key = name.asJavaString();
+        AtomicLong gauge = gauges.get(key);
+        if (gauge == null) gauge = gauges.computeIfAbsent(key, k -> new AtomicLong());
+        gauge.set(RubyNumeric.num2long(value));
+        return context.nil;
+    }
+
+    /**
+     * Times the block, also when it raises (or returns).
+     *
+     * @return the value of the block
+     */
+    @JRubyMethod(name = "time")
+    public IRubyObject time(final ThreadContext context, final IRubyObject name, final Block block) {
+        final String key = name.asJavaString();
+        Timing timing = timings.get(key);
+        if (timing == null) timing = timings.computeIfAbsent(key, k -> new Timing());
+        final long start = System.nanoTime();
+        try {
+            return block.yield(context, context.nil);
+        } finally {
+            timing.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return the current values, by (dotted) name
+     */
+    @JRubyMethod(name = "snapshot")
+    public IRubyObject snapshot(final ThreadContext context) {
+        final RubyHash snapshot = RubyHash.newHash(context.runtime);
+        for (final Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            put(context, snapshot, counter.getKey(), counter.getValue().sum());
+        }
+        for (final Map.Entry<String, AtomicLong> gauge : gauges.entrySet()) {
+            put(context, snapshot, gauge.getKey(), gauge.getValue().get());
+        }
+        for (final Map.Entry<String, Timing> timing : timings.entrySet()) {
+            final String key = timing.getKey();
+            final Timing value = timing.getValue();
+            put(context, snapshot, key + ".count", value.count.sum());
+            put(context, snapshot, key + ".duration_in_millis", TimeUnit.NANOSECONDS.toMillis(value.nanos.sum()));
+            put(context, snapshot, key + ".last_duration_in_millis", TimeUnit.NANOSECONDS.toMillis(value.last));
+        }
+        return snapshot;
+    }
+
+    private static void put(final ThreadContext context, final RubyHash hash, final String key, final long value) {
+        hash.op_aset(context, context.runtime.newString(key), context.runtime.newFixnum(value));
+    }
+
+    private static final class Timing {
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private volatile long last;
+
+        void record(final long duration) {
+            count.increment();
+            nanos.add(duration);
+            last = duration;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package org.logstash.filewatch;
+
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyClass;
+import org.jruby.RubyObject;
+import org.jruby.RubyString;
+import org.jruby.anno.JRubyClass;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Pattern;
+
+/**
+ * FileWatch::PathFinder expands the watched globs into the files that are not being watched yet.
+ *
+ * finder = FileWatch::PathFinder.new(exclude, shared) # file name patterns, whether to share listings
+ * paths, found = finder.find(globs, watched_files_collection) # => [[new path, ...], number of files matched]
+ *
+ * The globs are compiled once (see {@link Glob}) and grouped by their base directory, each directory tree is walked
+ * once for all the globs under it, subdirectories being listed in parallel on a fork-join pool. Only regular files
+ * (following links) are matched. A glob without wildcards is a file path, it is only stat-ed. The paths of a tree
+ * come sorted, in the order the globs were given, with the files that are already in the collection or whose name
+ * matches an exclude pattern left out. Shared directory listings come from the {@link ScanCache}.
+ */
+@JRubyClass(name = "PathFinder")
+public class PathFinder extends RubyObject {
+
+    private final Map<String, List<Glob>> globs = new LinkedHashMap<>();
+    private List<Pattern> exclude;
+    private boolean shared;
+    private volatile long foundAt = System.nanoTime(); // when the previous find returned
+
+    public PathFinder(Ruby runtime, RubyClass metaClass) {
+        super(runtime, metaClass);
+    }
+
+    static void load(Ruby runtime) {
+        runtime.getOrCreateModule("FileWatch")
+               .defineClassUnder("PathFinder", runtime.getObject(), PathFinder::new)
+               .defineAnnotatedMethods(PathFinder.class);
+    }
+
+    @JRubyMethod(required = 1, optional = 1)
+    public IRubyObject initialize(final ThreadContext context, final IRubyObject[] args) {
+        final RubyArray patterns = args[0].convertToArray();
+        this.shared = args.length > 1 && args[1].isTrue();
+        this.exclude = new ArrayList<>(patterns.size());
+        for (int i = 0; i < patterns.size(); i++) {
+            this.exclude.add(Glob.segment(patterns.eltInternal(i).convertToString().asJavaString()));
+        }
+        return this;
+    }
+
+    @JRubyMethod(name = "find")
+    public IRubyObject find(final ThreadContext context, final IRubyObject globs, final IRubyObject watchedFiles) {
+        final Ruby runtime = context.runtime;
+        final long since = foundAt;
+        final List<Glob> given = new ArrayList<>();
+        final Map<String, List<Glob>> trees = new LinkedHashMap<>();
+        for (final IRubyObject glob : globs.convertToArray().toJavaArrayMaybeUnsafe()) {
+            for (final Glob compiled : compiled(glob.convertToString().asJavaString())) {
+                given.add(compiled);
+                if (compiled.path == null) trees.computeIfAbsent(compiled.base, base -> new ArrayList<>()).add(compiled);
+            }
+        }
+        // relative globs are relative to Ruby's (Dir.chdir) working directory, not the JVM's
+        final Path cwd = Paths.get(runtime.getCurrentDirectory());
+        final Map<String, Walk> walks = new LinkedHashMap<>(trees.size());
+        for (final Map.Entry<String, List<Glob>> tree : trees.entrySet()) {
+            walks.put(tree.getKey(), Walk.root(cwd, tree.getKey(), tree.getValue(), since, shared));
+        }
+        ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                ForkJoinTask.invokeAll(walks.values());
+            }
+        });
+        foundAt = System.nanoTime();
+        final Set<String> paths = new LinkedHashSet<>();
+        for (final Glob compiled : given) {
+            if (compiled.path != null) {
+                // a single stat, no need to list the directory
+                if (Files.isRegularFile(cwd.resolve(compiled.path))) paths.add(compiled.path);
+                continue;
+            }
+            final Walk walk = walks.remove(compiled.base);
+            if (walk == null) continue; // the tree's paths were added with a previous glob
+            final String[] found = walk.found.toArray(new String[0]);
+            Arrays.sort(found);
+            paths.addAll(Arrays.asList(found));
+        }
+        final WatchedFilesCollection collection =
+                watchedFiles instanceof WatchedFilesCollection ? (WatchedFilesCollection) watchedFiles : null;
+        final RubyArray unknown = runtime.newArray();
+        for (final String path : paths) {
+            if (excluded(path)) continue;
+            final RubyString string = runtime.newString(path);
+            final boolean known = collection != null ? collection.contains(context, string) :
+                    !watchedFiles.callMethod(context, "get", string).isNil();
+            if (!known) unknown.append(string);
+        }
+        return RubyArray.newArray(runtime, unknown, runtime.newFixnum(paths.size()));
+    }
+
+    private synchronized List<Glob> compiled(final String glob) {
+        return globs.computeIfAbsent(glob, Glob::compile);
+    }
+
+    private boolean excluded(final String path) {
+        final String name = path.substring(path.lastIndexOf('/') + 1);
+        for (final Pattern pattern : exclude) {
+            if (pattern.matcher(name).matches()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Lists a directory, matching its entries against the positions (of each glob) reached by the directory.
+     */
+    private static final class Walk extends RecursiveAction {
+
+        private final String prefix; // the directory as given in the glob, with a trailing separator
+        private final Path dir;
+        private final List<Glob> globs;
+        private final int[][] positions; // per glob, the segments the entries of the directory are matched against
+        private final Collection<String> found;
+        private final long since;
+        private final boolean shared;
+
+        private Walk(final String prefix, final Path dir, final List<Glob> globs, final int[][] positions,
+                     final Collection<String> found, final long since, final boolean shared) {
+            this.prefix = prefix;
+            this.dir = dir;
+            this.globs = globs;
+            this.positions = positions;
+            this.found = found;
+            this.since = since;
+            this.shared = shared;
+        }
+
+        static Walk root(final Path cwd, final String base, final List<Glob> globs, final long since, final boolean shared) {
+            final int[][] positions = new int[globs.size()][];
+            for (int i = 0; i < globs.size(); i++) positions[i] = closure(globs.get(i), new int[] { 0 });
+            final String prefix = base.isEmpty() || base.endsWith("/") ? base : base + '/';
+            return new Walk(prefix, cwd.resolve(base), globs, positions, new ConcurrentLinkedQueue<>(), since, shared);
+        }
+
+        @Override
+        protected void compute() {
+            final ScanCache.Listing listing = ScanCache.list(dir, since, shared);
+            for (final String name : listing.files) {
+                if (matchesFile(name)) found.add(prefix + name);
+            }
+            final List<Walk> subdirectories = new ArrayList<>();
+            for (int i = 0; i < listing.directories.size(); i++) {
+                final String name = listing.directories.get(i);
+                final int[][] next = descend(name, listing.links.get(i));
+                if (next != null) {
+                    subdirectories.add(new Walk(prefix + name + '/', dir.resolve(name), globs, next, found, since, shared));
+                }
+            }
+            ForkJoinTask.invokeAll(subdirectories);
+        }
+
+        private boolean matchesFile(final String name) {
+            for (int i = 0; i < globs.size(); i++) {
+                final Glob glob = globs.get(i);
+                for (final int position : positions[i]) {
+                    if (position == glob.size() - 1 && !glob.spans(position) && glob.matches(position, name)) return true;
+                }
+            }
+            return false;
+        }
+
+        // @return the positions for the entries of the sub-directory, null if there is nothing to match in there
+        private int[][] descend(final String name, final boolean symlink) {
+            int[][] next = null;
+            for (int i = 0; i < globs.size(); i++) {
+                final Glob glob = globs.get(i);
+                final int[] current = positions[i];
+                final int[] reached = new int[current.length];
+                int count = 0;
+                for (final int position : current) {
+                    if (position >= glob.size() - 1) continue; // the last segment only matches files
+                    if (glob.spans(position)) {
+                        // a "**" does not go into hidden directories nor follows links
+                        if (!symlink && name.charAt(0) != '.') reached[count++] = position;
+                    } else if (glob.matches(position, name)) {
+                        reached[count++] = position + 1;
+                    }
+                }
+                if (count == 0) continue;
+                if (next == null) next = new int[globs.size()][];
+                next[i] = closure(glob, Arrays.copyOf(reached, count));
+            }
+            if (next != null) {
+                for (int i = 0; i < next.length; i++) if (next[i] == null) next[i] = new int[0];
+            }
+            return next;
+        }
+
+        // a "**" also matches no directory at all, the segment after it is matched as well
+        private static int[] closure(final Glob glob, final int[] positions) {
+            final Set<Integer> closed = new LinkedHashSet<>();
+            for (int position : positions) {
+                closed.add(position);
+                while (position < glob.size() && glob.spans(position)) closed.add(++position);
+            }
+            return closed.stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+}
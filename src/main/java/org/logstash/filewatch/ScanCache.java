@@ -0,0 +1,186 @@
+package org.logstash.filewatch;
+
+import jnr.posix.FileStat;
+import jnr.posix.NanosecondFileStat;
+import jnr.posix.POSIX;
+import org.jruby.Ruby;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.anno.JRubyModule;
+import org.jruby.exceptions.RaiseException;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FileWatch::ScanCache, the directory listings and file stats shared by the file inputs of a JVM.
+ *
+ * FileWatch::ScanCache.size # => the directories and files cached
+ * FileWatch::ScanCache.clear
+ *
+ * Inputs with shared scans (see {@link PathFinder} and {@link StatService}) look a directory or a file up here
+ * first. A cached listing (stat) is used when it was taken (by another input) since the previous round of the input
+ * asking, a change it does not reflect yet is seen on the next round, same as a change right after a fresh stat. With
+ * several inputs watching the same (or overlapping) paths each directory is listed, and each file stat-ed, about
+ * once per interval instead of once per input. The reading state (and the sincedb) is still kept per input.
+ */
+@JRubyModule(name = "ScanCache")
+public final class ScanCache {
+
+    // entries not used for that long are dropped (the path went away or is not watched anymore)
+    private static final long EXPIRE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private static final Map<String, Listing> LISTINGS = new ConcurrentHashMap<>();
+    private static final Map<String, Stat> STATS = new ConcurrentHashMap<>();
+    private static volatile long sweptAt = System.nanoTime();
+
+    private ScanCache() {
+        // no instances
+    }
+
+    static void load(Ruby runtime) {
+        runtime.getOrCreateModule("FileWatch")
+               .defineModuleUnder("ScanCache")
+               .defineAnnotatedMethods(ScanCache.class);
+    }
+
+    @JRubyMethod(name = "size", module = true)
+    public static IRubyObject size(final ThreadContext context, final IRubyObject self) {
+        return context.runtime.newFixnum(LISTINGS.size() + STATS.size());
+    }
+
+    @JRubyMethod(name = "clear", module = true)
+    public static IRubyObject clear(final ThreadContext context, final IRubyObject self) {
+        LISTINGS.clear();
+        STATS.clear();
+        return context.nil;
+    }
+
+    /**
+     * @param since (System.nanoTime) a listing taken before is listed again
+     * @param cached whether to share the listing, otherwise the directory is just listed
+     */
+    static Listing list(final Path dir, final long since, final boolean cached) {
+        if (!cached) return Listing.of(dir);
+        sweep();
+        final String key = dir.toString();
+        final Listing listing = LISTINGS.get(key);
+        if (listing != null && listing.takenAt - since >= 0) return listing;
+        final Listing fresh = Listing.of(dir);
+        LISTINGS.put(key, fresh);
+        return fresh;
+    }
+
+    /**
+     * @param since (System.nanoTime) a stat taken before is done again
+     * @param buffer re-used to stat the file
+     */
+    static Stat stat(final String path, final long since, final POSIX posix, final FileStat buffer) {
+        sweep();
+        final Stat stat = STATS.get(path);
+        if (stat != null && stat.takenAt - since >= 0) return stat;
+        final Stat fresh = Stat.of(path, posix, buffer);
+        STATS.put(path, fresh);
+        return fresh;
+    }
+
+    private static void sweep() {
+        final long now = System.nanoTime();
+        if (now - sweptAt < EXPIRE_NANOS) return;
+        sweptAt = now;
+        LISTINGS.values().removeIf(listing -> now - listing.takenAt > EXPIRE_NANOS);
+        STATS.values().removeIf(stat -> now - stat.takenAt > EXPIRE_NANOS);
+    }
+
+    /**
+     * The regular files and directories (links followed) in a directory.
+     */
+    static final class Listing {
+
+        private static final Listing EMPTY = new Listing(new ArrayList<>(0), new ArrayList<>(0), new ArrayList<>(0));
+
+        final long takenAt = System.nanoTime();
+        final List<String> files;
+        final List<String> directories;
+        final List<Boolean> links; // per directory, whether it is a symlink
+
+        private Listing(final List<String> files, final List<String> directories, final List<Boolean> links) {
+            this.files = files;
+            this.directories = directories;
+            this.links = links;
+        }
+
+        static Listing of(final Path dir) {
+            final List<String> files = new ArrayList<>();
+            final List<String> directories = new ArrayList<>();
+            final List<Boolean> links = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (final Path entry : entries) {
+                    final BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                    } catch (IOException e) {
+                        continue; // gone (or a dangling link) in between
+                    }
+                    final String name = entry.getFileName().toString();
+                    if (attributes.isRegularFile()) {
+                        files.add(name);
+                    } else if (attributes.isDirectory()) {
+                        directories.add(name);
+                        links.add(Files.isSymbolicLink(entry));
+                    }
+                }
+            } catch (IOException e) {
+                return EMPTY; // not a directory (anymore) or not readable, nothing to be found
+            }
+            return new Listing(files, directories, links);
+        }
+    }
+
+    /**
+     * What a stat call tells about a file, exists is false when it could not be stat-ed.
+     */
+    static final class Stat {
+
+        final long takenAt = System.nanoTime();
+        final boolean exists;
+        final long inode;
+        final long dev;
+        final long size;
+        final long mtime;
+        final long mtimeNanos;
+
+        private Stat(final boolean exists, final long inode, final long dev, final long size, final long mtime,
+                     final long mtimeNanos) {
+            this.exists = exists;
+            this.inode = inode;
+            this.dev = dev;
+            this.size = size;
+            this.mtime = mtime;
+            this.mtimeNanos = mtimeNanos;
+        }
+
+        static Stat of(final String path, final POSIX posix, final FileStat stat) {
+            if (!stat(path, posix, stat)) return new Stat(false, 0, 0, 0, 0, 0);
+            final long nanos = stat instanceof NanosecondFileStat ? ((NanosecondFileStat) stat).mTimeNanoSecs() : 0;
+            return new Stat(true, stat.ino(), stat.dev(), stat.st_size(), stat.mtime(), nanos);
+        }
+
+        static boolean stat(final String path, final POSIX posix, final FileStat stat) {
+            try {
+                return posix.stat(path, stat) >= 0;
+            } catch (RaiseException e) {
+                return false; // a non-native POSIX reports errors as Ruby exceptions
+            }
+        }
+    }
+}
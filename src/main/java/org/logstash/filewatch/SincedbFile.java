@@ -0,0 +1,109 @@
+package org.logstash.filewatch;
+
+import org.jruby.Ruby;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.anno.JRubyModule;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * FileWatch::SincedbFile writes a (text) sincedb.
+ *
+ * FileWatch::SincedbFile.write_atomically(path, string, fsync)
+ *
+ * The content goes to a temporary file next to the sincedb which then replaces it (an atomic move), it is forced to
+ * disk before the move when fsync is true. The permissions and the owner of the replaced file are kept. A permission
+ * problem raises Errno::EACCES, any other failure an IOError.
+ */
+@JRubyModule(name = "SincedbFile")
+public final class SincedbFile {
+
+    private SincedbFile() {
+        // no instances
+    }
+
+    static void load(Ruby runtime) {
+        runtime.getOrCreateModule("FileWatch")
+               .defineModuleUnder("SincedbFile")
+               .defineAnnotatedMethods(SincedbFile.class);
+    }
+
+    @JRubyMethod(name = "write_atomically", module = true)
+    public static IRubyObject writeAtomically(final ThreadContext context, final IRubyObject self,
+                                              final IRubyObject path, final IRubyObject content,
+                                              final IRubyObject fsync) {
+        final Path target = FileSystems.getDefault().getPath(path.convertToString().asJavaString());
+        final ByteList bytes = content.convertToString().getByteList();
+        final Path temp = target.resolveSibling(
+                target.getFileName() + "." + ThreadLocalRandom.current().nextInt(1_000_000) + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                write(channel, ByteBuffer.wrap(bytes.unsafeBytes(), bytes.begin(), bytes.realSize()));
+                if (fsync.isTrue()) channel.force(true);
+            }
+            replace(temp, target);
+        } catch (AccessDeniedException e) {
+            deleteQuietly(temp);
+            throw context.runtime.newErrnoEACCESError(e.getMessage());
+        } catch (IOException e) {
+            deleteQuietly(temp);
+            throw context.runtime.newIOErrorFromException(e);
+        }
+        return context.nil;
+    }
+
+    /**
+     * Moves a file over another one (atomically if the file system supports it), keeping its permissions and owner.
+     */
+    static void replace(final Path temp, final Path target) throws IOException {
+        copyAttributes(temp, target);
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    static void write(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void copyAttributes(final Path temp, final Path target) {
+        try {
+            if (!Files.exists(target)) return;
+            final PosixFileAttributes attributes = Files.readAttributes(target, PosixFileAttributes.class);
+            final PosixFileAttributeView view = Files.getFileAttributeView(temp, PosixFileAttributeView.class);
+            view.setPermissions(attributes.permissions());
+            final PosixFileAttributes created = view.readAttributes();
+            if (!created.owner().equals(attributes.owner())) view.setOwner(attributes.owner());
+            if (!created.group().equals(attributes.group())) view.setGroup(attributes.group());
+        } catch (UnsupportedOperationException | IOException e) {
+            // not a POSIX file system (or not allowed), the defaults are kept
+        }
+    }
+
+    private static void deleteQuietly(final Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            // nothing more to be done
+        }
+    }
+}
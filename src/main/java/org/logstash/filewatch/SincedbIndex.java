@@ -0,0 +1,560 @@
+package org.logstash.filewatch;
+
+import org.jcodings.specific.UTF8Encoding;
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyClass;
+import org.jruby.RubyNumeric;
+import org.jruby.RubyObject;
+import org.jruby.RubyString;
+import org.jruby.RubyStruct;
+import org.jruby.anno.JRubyClass;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * FileWatch::SincedbIndex the storage behind the sincedb collection, a Hash like InodeStruct -> SincedbValue map.
+ *
+ * Most sincedb records (rotated away or deleted files) are not associated with a watched file, for these holding a
+ * Ruby SincedbValue (as well as an InodeStruct key) is wasteful. Such values are packed into primitive arrays keyed
+ * by the (inode, major, minor) numbers and only materialized (again) as SincedbValue objects once looked up.
+ * Values that are associated with a watched file, or were set or looked up since the last pack, are kept as is.
+ *
+ * Entries are kept in insertion order (as a Ruby Hash would), the hash table only holds indexes into the entries.
+ *
+ * Writing the sincedb does not materialize packed values either: {@link #changes} and {@link #records} scan the
+ * primitive arrays and return plain records. The entries that might have changed since the last scan (values set or
+ * looked up, packed ones not written yet) are tracked so that {@link #changes} does not visit every entry.
+ */
+@JRubyClass(name = "SincedbIndex")
+public class SincedbIndex extends RubyObject {
+
+    private static final int FREE = -1;
+    private static final int REMOVED = -2;
+    private static final int INITIAL_CAPACITY = 16;
+
+    // the key's major (minor) number is nil, keys are given back as they were stored
+    private static final byte NIL_MAJ = 1;
+    private static final byte NIL_MIN = 2;
+
+    private RubyClass inodeStruct;
+    private RubyClass sincedbValue;
+
+    private int[] table; // open addressing, index into the entries (or FREE / REMOVED)
+    private int tableUsed; // slots not FREE
+
+    // entries, in insertion order
+    private int size; // entries used (including removed ones)
+    private int count; // live entries
+    private boolean[] present;
+    private long[] inodes;
+    private String[] names; // the inode when it is not a (canonical) number e.g. on Windows
+    private long[] devices; // major << 32 | minor
+    private byte[] nils; // NIL_MAJ | NIL_MIN
+    private long[] positions;
+    private double[] changedAt;
+    private byte[][] paths;
+    private boolean[] dirty;
+    private IRubyObject[] keys; // only held while the value is not packed
+    private IRubyObject[] values; // null when packed
+
+    // the entries changes looks at: the unpacked ones and the packed ones that changed since (dirty)
+    private int[] tracked;
+    private int trackedCount;
+    private boolean[] listed; // whether the entry is tracked
+    private double oldestPacked; // a lower bound of the packed entries' last change (for expiry)
+
+    public SincedbIndex(Ruby runtime, RubyClass metaClass) {
+        super(runtime, metaClass);
+    }
+
+    static void load(Ruby runtime) {
+        runtime.getOrCreateModule("FileWatch")
+               .defineClassUnder("SincedbIndex", runtime.getObject(), SincedbIndex::new)
+               .defineAnnotatedMethods(SincedbIndex.class);
+    }
+
+    @JRubyMethod
+    public IRubyObject initialize(final ThreadContext context) {
+        final Ruby runtime = context.runtime;
+        this.inodeStruct = (RubyClass) runtime.getClassFromPath("FileWatch::InodeStruct");
+        this.sincedbValue = (RubyClass) runtime.getClassFromPath("FileWatch::SincedbValue");
+        this.table = newTable(INITIAL_CAPACITY * 2);
+        allocate(INITIAL_CAPACITY);
+        return this;
+    }
+
+    @JRubyMethod(name = "[]")
+    public IRubyObject aref(final ThreadContext context, final IRubyObject key) {
+        final int index = find(Key.of(key));
+        if (index < 0) return context.nil;
+        if (values[index] == null) { // unpack, the value might get modified
+            values[index] = materialize(context, index);
+            keys[index] = key;
+            track(index);
+        }
+        return values[index];
+    }
+
+    @JRubyMethod(name = "[]=")
+    public IRubyObject aset(final ThreadContext context, final IRubyObject key, final IRubyObject value) {
+        final Key k = Key.of(key);
+        int index = find(k);
+        if (index < 0) index = insert(k);
+        keys[index] = key;
+        values[index] = value;
+        track(index);
+        return value;
+    }
+
+    @JRubyMethod(name = {"member?", "key?", "include?"})
+    public IRubyObject member_p(final ThreadContext context, final IRubyObject key) {
+        return context.runtime.newBoolean(find(Key.of(key)) >= 0);
+    }
+
+    /**
+     * @return the deleted value or nil
+     */
+    @JRubyMethod(name = "delete")
+    public IRubyObject delete(final ThreadContext context, final IRubyObject key) {
+        final Key k = Key.of(key);
+        final int slot = findSlot(k);
+        if (slot < 0) return context.nil;
+        final int index = table[slot];
+        final IRubyObject value = values[index] == null ? materialize(context, index) : values[index];
+        table[slot] = REMOVED;
+        remove(index);
+        return value;
+    }
+
+    /**
+     * Yields every entry, packed values are yielded as (temporary) copies: changing them has no effect.
+     */
+    @JRubyMethod(name = "each")
+    public IRubyObject each(final ThreadContext context, final Block block) {
+        final int end = size;
+        for (int i = 0; i < end && i < size; i++) {
+            if (!present[i]) continue;
+            final IRubyObject value = values[i] != null ? values[i] : materialize(context, i);
+            block.yieldSpecific(context, keyAt(context, i), value);
+        }
+        return this;
+    }
+
+    /**
+     * The records to write to a (text) sincedb, all entries that have not expired.
+     *
+     * expired_keys, records = index.records(as_of, expiry_duration)
+     *
+     * @return [expired keys, records] where a record is [inode, maj, min, position, last_changed_at, path]
+     */
+    @JRubyMethod(name = "records")
+    public IRubyObject records(final ThreadContext context, final IRubyObject asOf, final IRubyObject expiry) {
+        final Ruby runtime = context.runtime;
+        final double as = RubyNumeric.num2dbl(asOf);
+        final double duration = RubyNumeric.num2dbl(expiry);
+        final RubyArray expired = runtime.newArray();
+        final RubyArray records = runtime.newArray(count);
+        for (int i = 0; i < size; i++) {
+            if (!present[i]) continue;
+            final IRubyObject value = values[i];
+            final double lastChangedAt = value == null ? changedAt[i] : lastChangedAt(context, value);
+            if (as > lastChangedAt + duration) {
+                expired.append(keyAt(context, i));
+            } else {
+                records.append(value == null ? packedRecord(context, i) : record(context, i, value));
+            }
+        }
+        return RubyArray.newArray(runtime, expired, records);
+    }
+
+    /**
+     * The records that changed since the last call (the changed values are marked clean) and the expired keys.
+     * Only the tracked entries are visited, the packed ones are only all scanned (for expiry) once the oldest one
+     * might have expired.
+     *
+     * expired_keys, records = index.changes(as_of, expiry_duration)
+     *
+     * @return [expired keys, records] where a record is [inode, maj, min, position, last_changed_at, path]
+     */
+    @JRubyMethod(name = "changes")
+    public IRubyObject changes(final ThreadContext context, final IRubyObject asOf, final IRubyObject expiry) {
+        final Ruby runtime = context.runtime;
+        final double as = RubyNumeric.num2dbl(asOf);
+        final double duration = RubyNumeric.num2dbl(expiry);
+        final RubyArray expired = runtime.newArray();
+        final RubyArray records = runtime.newArray();
+        if (as > oldestPacked + duration) {
+            double oldest = Double.MAX_VALUE;
+            for (int i = 0; i < size; i++) {
+                if (!present[i] || values[i] != null) continue;
+                if (as > changedAt[i] + duration) {
+                    expired.append(keyAt(context, i));
+                } else {
+                    oldest = Math.min(oldest, changedAt[i]);
+                }
+            }
+            oldestPacked = oldest;
+        }
+        int kept = 0;
+        for (int t = 0; t < trackedCount; t++) {
+            final int i = tracked[t];
+            final IRubyObject value = values[i];
+            if (!present[i] || value == null) {
+                // packed: a clean entry does not change until unpacked (tracked again), the expired were collected
+                if (present[i] && dirty[i] && as <= changedAt[i] + duration) {
+                    records.append(packedRecord(context, i));
+                    dirty[i] = false;
+                }
+                listed[i] = false;
+                continue;
+            }
+            if (as > lastChangedAt(context, value) + duration) {
+                expired.append(keyAt(context, i));
+            } else if (value.callMethod(context, "dirty?").isTrue()) {
+                records.append(record(context, i, value));
+                value.callMethod(context, "mark_clean");
+            }
+            tracked[kept++] = i;
+        }
+        trackedCount = kept;
+        return RubyArray.newArray(runtime, expired, records);
+    }
+
+    @JRubyMethod(name = "keys")
+    public IRubyObject keys(final ThreadContext context) {
+        final RubyArray result = context.runtime.newArray(count);
+        for (int i = 0; i < size; i++) {
+            if (present[i]) result.append(keyAt(context, i));
+        }
+        return result;
+    }
+
+    @JRubyMethod(name = {"size", "length"})
+    public IRubyObject size(final ThreadContext context) {
+        return context.runtime.newFixnum(count);
+    }
+
+    @JRubyMethod(name = "empty?")
+    public IRubyObject empty_p(final ThreadContext context) {
+        return context.runtime.newBoolean(count == 0);
+    }
+
+    @JRubyMethod(name = "clear")
+    public IRubyObject clear(final ThreadContext context) {
+        this.table = newTable(INITIAL_CAPACITY * 2);
+        this.tableUsed = 0;
+        allocate(INITIAL_CAPACITY);
+        return this;
+    }
+
+    /**
+     * Packs the values that are not associated with a watched file.
+     *
+     * @return the number of values packed
+     */
+    @JRubyMethod(name = "pack")
+    public IRubyObject pack(final ThreadContext context) {
+        int packed = 0;
+        for (int i = 0; i < size; i++) {
+            final IRubyObject value = values[i];
+            if (value == null || !value.callMethod(context, "watched_file").isNil()) continue;
+            positions[i] = RubyNumeric.num2long(value.callMethod(context, "position"));
+            changedAt[i] = RubyNumeric.num2dbl(value.callMethod(context, "last_changed_at"));
+            final IRubyObject path = value.callMethod(context, "path_in_sincedb");
+            paths[i] = path.isNil() ? null : path.convertToString().getByteList().bytes();
+            dirty[i] = value.callMethod(context, "dirty?").isTrue();
+            values[i] = null;
+            keys[i] = null;
+            oldestPacked = Math.min(oldestPacked, changedAt[i]);
+            packed++;
+        }
+        return context.runtime.newFixnum(packed);
+    }
+
+    int count() {
+        return count;
+    }
+
+    // all entries as binary sincedb records (see SincedbJournal#compact_from), a nil device number is written as 0
+    List<SincedbLog.Record> logRecords(final ThreadContext context) {
+        final List<SincedbLog.Record> records = new ArrayList<>(count);
+        for (int i = 0; i < size; i++) {
+            if (!present[i]) continue;
+            final String inode = names[i] != null ? names[i] : Long.toString(inodes[i]);
+            final long maj = (nils[i] & NIL_MAJ) != 0 ? 0 : devices[i] >> 32;
+            final long min = (nils[i] & NIL_MIN) != 0 ? 0 : (int) devices[i];
+            final IRubyObject value = values[i];
+            if (value == null) {
+                records.add(new SincedbLog.Record(inode.getBytes(StandardCharsets.UTF_8), maj, min, positions[i],
+                        changedAt[i], paths[i]));
+            } else {
+                final IRubyObject path = value.callMethod(context, "path");
+                records.add(new SincedbLog.Record(inode.getBytes(StandardCharsets.UTF_8), maj, min,
+                        RubyNumeric.num2long(value.callMethod(context, "position")), lastChangedAt(context, value),
+                        path.isNil() ? null : path.convertToString().getByteList().bytes()));
+                value.callMethod(context, "mark_clean");
+            }
+            dirty[i] = false;
+        }
+        return records;
+    }
+
+    @JRubyMethod(name = "packed_size")
+    public IRubyObject packed_size(final ThreadContext context) {
+        int packed = 0;
+        for (int i = 0; i < size; i++) {
+            if (present[i] && values[i] == null) packed++;
+        }
+        return context.runtime.newFixnum(packed);
+    }
+
+    private IRubyObject materialize(final ThreadContext context, final int index) {
+        final Ruby runtime = context.runtime;
+        IRubyObject value = sincedbValue.newInstance(context, runtime.newFixnum(positions[index]),
+                runtime.newFloat(changedAt[index]), Block.NULL_BLOCK);
+        if (paths[index] != null) {
+            value.callMethod(context, "add_path_in_sincedb",
+                    RubyString.newString(runtime, new ByteList(paths[index], UTF8Encoding.INSTANCE, false)));
+        }
+        if (!dirty[index]) value.callMethod(context, "mark_clean");
+        return value;
+    }
+
+    private IRubyObject keyAt(final ThreadContext context, final int index) {
+        if (keys[index] != null) return keys[index];
+        return RubyStruct.newStruct(inodeStruct, inode(context, index), maj(context, index), min(context, index),
+                Block.NULL_BLOCK);
+    }
+
+    private IRubyObject packedRecord(final ThreadContext context, final int index) {
+        final Ruby runtime = context.runtime;
+        return RubyArray.newArrayMayCopy(runtime, inode(context, index), maj(context, index), min(context, index),
+                runtime.newFixnum(positions[index]), runtime.newFloat(changedAt[index]),
+                paths[index] == null ? context.nil : RubyString.newString(runtime, new ByteList(paths[index], UTF8Encoding.INSTANCE, false)));
+    }
+
+    private IRubyObject record(final ThreadContext context, final int index, final IRubyObject value) {
+        return RubyArray.newArrayMayCopy(context.runtime, inode(context, index), maj(context, index), min(context, index),
+                value.callMethod(context, "position"), value.callMethod(context, "last_changed_at"),
+                value.callMethod(context, "path"));
+    }
+
+    private IRubyObject inode(final ThreadContext context, final int index) {
+        return context.runtime.newString(names[index] != null ? names[index] : Long.toString(inodes[index]));
+    }
+
+    private IRubyObject maj(final ThreadContext context, final int index) {
+        return (nils[index] & NIL_MAJ) != 0 ? context.nil : context.runtime.newFixnum(devices[index] >> 32);
+    }
+
+    private IRubyObject min(final ThreadContext context, final int index) {
+        return (nils[index] & NIL_MIN) != 0 ? context.nil : context.runtime.newFixnum((int) devices[index]);
+    }
+
+    private static double lastChangedAt(final ThreadContext context, final IRubyObject value) {
+        return RubyNumeric.num2dbl(value.callMethod(context, "last_changed_at"));
+    }
+
+    private void track(final int index) {
+        if (listed[index]) return;
+        if (trackedCount == tracked.length) tracked = Arrays.copyOf(tracked, tracked.length * 2);
+        tracked[trackedCount++] = index;
+        listed[index] = true;
+    }
+
+    private int find(final Key key) {
+        final int slot = findSlot(key);
+        return slot < 0 ? -1 : table[slot];
+    }
+
+    private int findSlot(final Key key) {
+        final int mask = table.length - 1;
+        for (int slot = key.hash & mask; ; slot = (slot + 1) & mask) {
+            final int index = table[slot];
+            if (index == FREE) return -1;
+            if (index >= 0 && matches(index, key)) return slot;
+        }
+    }
+
+    private boolean matches(final int index, final Key key) {
+        if (devices[index] != key.device || nils[index] != key.nils) return false;
+        if (key.name == null) return names[index] == null && inodes[index] == key.inode;
+        return key.name.equals(names[index]);
+    }
+
+    private int insert(final Key key) {
+        if (size == present.length) {
+            if (count < size / 2) {
+                rebuild(present.length);
+            } else {
+                rebuild(present.length * 2);
+            }
+        }
+        if ((tableUsed + 1) * 4 > table.length * 3) rehash(); // keep the load under 75%
+        final int index = size++;
+        present[index] = true;
+        inodes[index] = key.inode;
+        names[index] = key.name;
+        devices[index] = key.device;
+        nils[index] = key.nils;
+        count++;
+        final int mask = table.length - 1;
+        int slot = key.hash & mask;
+        while (table[slot] >= 0) slot = (slot + 1) & mask;
+        if (table[slot] == FREE) tableUsed++;
+        table[slot] = index;
+        return index;
+    }
+
+    private void remove(final int index) {
+        present[index] = false;
+        names[index] = null;
+        paths[index] = null;
+        keys[index] = null;
+        values[index] = null;
+        count--;
+    }
+
+    // drops the removed entries (keeping the order) and grows the entry arrays to the given capacity
+    private void rebuild(final int capacity) {
+        int live = 0;
+        for (int i = 0; i < size; i++) {
+            if (!present[i]) continue;
+            present[live] = true;
+            inodes[live] = inodes[i];
+            names[live] = names[i];
+            devices[live] = devices[i];
+            nils[live] = nils[i];
+            positions[live] = positions[i];
+            changedAt[live] = changedAt[i];
+            paths[live] = paths[i];
+            dirty[live] = dirty[i];
+            keys[live] = keys[i];
+            values[live] = values[i];
+            live++;
+        }
+        for (int i = live; i < size; i++) remove(i);
+        size = live;
+        count = live;
+        present = Arrays.copyOf(present, capacity);
+        inodes = Arrays.copyOf(inodes, capacity);
+        names = Arrays.copyOf(names, capacity);
+        devices = Arrays.copyOf(devices, capacity);
+        nils = Arrays.copyOf(nils, capacity);
+        positions = Arrays.copyOf(positions, capacity);
+        changedAt = Arrays.copyOf(changedAt, capacity);
+        paths = Arrays.copyOf(paths, capacity);
+        dirty = Arrays.copyOf(dirty, capacity);
+        keys = Arrays.copyOf(keys, capacity);
+        values = Arrays.copyOf(values, capacity);
+        // the entries moved, what is tracked is worked out again
+        listed = new boolean[capacity];
+        trackedCount = 0;
+        for (int i = 0; i < size; i++) {
+            if (values[i] != null || dirty[i]) track(i);
+        }
+        rehash();
+    }
+
+    private void rehash() {
+        int capacity = INITIAL_CAPACITY * 2;
+        while (capacity * 3 < (count + 1) * 8) capacity <<= 1; // load under 37.5% after a rehash
+        table = newTable(capacity);
+        tableUsed = 0;
+        final int mask = capacity - 1;
+        for (int i = 0; i < size; i++) {
+            if (!present[i]) continue;
+            int slot = hash(inodes[i], names[i], devices[i]) & mask;
+            while (table[slot] != FREE) slot = (slot + 1) & mask;
+            table[slot] = i;
+            tableUsed++;
+        }
+    }
+
+    private void allocate(final int capacity) {
+        size = 0;
+        count = 0;
+        present = new boolean[capacity];
+        inodes = new long[capacity];
+        names = new String[capacity];
+        devices = new long[capacity];
+        nils = new byte[capacity];
+        positions = new long[capacity];
+        changedAt = new double[capacity];
+        paths = new byte[capacity][];
+        dirty = new boolean[capacity];
+        keys = new IRubyObject[capacity];
+        values = new IRubyObject[capacity];
+        tracked = new int[INITIAL_CAPACITY];
+        trackedCount = 0;
+        listed = new boolean[capacity];
+        oldestPacked = Double.MAX_VALUE;
+    }
+
+    private static int[] newTable(final int capacity) {
+        final int[] table = new int[capacity];
+        Arrays.fill(table, FREE);
+        return table;
+    }
+
+    static int hash(final long inode, final String name, final long device) {
+        long h = (name == null ? inode : name.hashCode()) * 0x9E3779B97F4A7C15L + device;
+        h ^= (h >>> 32);
+        h *= 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 29));
+    }
+
+    private static final class Key {
+        final long inode;
+        final String name;
+        final long device;
+        final byte nils;
+        final int hash;
+
+        private Key(final long inode, final String name, final long device, final byte nils) {
+            this.inode = inode;
+            this.name = name;
+            this.device = device;
+            this.nils = nils;
+            this.hash = hash(inode, name, device);
+        }
+
+        // InodeStruct(inode, maj, min)
+        static Key of(final IRubyObject key) {
+            final RubyStruct struct = (RubyStruct) key;
+            final String inode = struct.get(0).asString().asJavaString();
+            final IRubyObject maj = struct.get(1);
+            final IRubyObject min = struct.get(2);
+            final long device = (number(maj) << 32) | (number(min) & 0xFFFFFFFFL);
+            final byte nils = (byte) ((maj.isNil() ? NIL_MAJ : 0) | (min.isNil() ? NIL_MIN : 0));
+            final long number = parseInode(inode);
+            return number == -1 ? new Key(0, inode, device, nils) : new Key(number, null, device, nils);
+        }
+
+        private static long number(final IRubyObject value) {
+            return value.isNil() ? 0 : RubyNumeric.num2long(value);
+        }
+
+        // @return -1 if the inode is not a canonical number (that fits a long)
+        private static long parseInode(final String inode) {
+            final int length = inode.length();
+            if (length == 0 || length > 18 || (length > 1 && inode.charAt(0) == '0')) return -1;
+            long value = 0;
+            for (int i = 0; i < length; i++) {
+                final char c = inode.charAt(i);
+                if (c < '0' || c > '9') return -1;
+                value = value * 10 + (c - '0');
+            }
+            return value;
+        }
+    }
+}
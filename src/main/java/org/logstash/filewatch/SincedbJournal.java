@@ -0,0 +1,126 @@
+package org.logstash.filewatch;
+
+import org.jcodings.specific.UTF8Encoding;
+import org.jruby.Ruby;
+import org.jruby.RubyClass;
+import org.jruby.RubyNumeric;
+import org.jruby.RubyObject;
+import org.jruby.RubyString;
+import org.jruby.anno.JRubyClass;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+
+/**
+ * FileWatch::SincedbJournal the Ruby facing side of the binary sincedb (see {@link SincedbLog}).
+ *
+ * journal = FileWatch::SincedbJournal.new(path[, fsync]) # fsync defaults to true
+ * journal.load { |inode, maj, min, position, last_changed_at, path| ... } # => false if not a journal
+ * journal.put(inode, maj, min, position, last_changed_at, path)
+ * journal.delete(inode, maj, min)
+ * journal.compact_from(index) # a FileWatch::SincedbIndex holding all live records, if the log is due a rewrite
+ * journal.commit
+ */
+@JRubyClass(name = "SincedbJournal")
+public class SincedbJournal extends RubyObject {
+
+    private SincedbLog log;
+
+    public SincedbJournal(Ruby runtime, RubyClass metaClass) {
+        super(runtime, metaClass);
+    }
+
+    static void load(Ruby runtime) {
+        runtime.getOrCreateModule("FileWatch")
+               .defineClassUnder("SincedbJournal", runtime.getObject(), SincedbJournal::new)
+               .defineAnnotatedMethods(SincedbJournal.class);
+    }
+
+    @JRubyMethod(required = 1, optional = 1)
+    public IRubyObject initialize(final ThreadContext context, final IRubyObject[] args) {
+        final boolean fsync = args.length < 2 || args[1].isTrue();
+        this.log = new SincedbLog(FileSystems.getDefault().getPath(args[0].convertToString().asJavaString()), fsync);
+        return this;
+    }
+
+    /**
+     * Yields every live record.
+     *
+     * @return true if the file is a journal, false if it is not (e.g. a text sincedb to be migrated)
+     */
+    @JRubyMethod(name = "load")
+    public IRubyObject load(final ThreadContext context, final Block block) {
+        final Ruby runtime = context.runtime;
+        try {
+            return runtime.newBoolean(log.load(record -> {
+                if (!block.isGiven()) return;
+                block.yieldValues(context, new IRubyObject[] {
+                    newString(runtime, record.inode),
+                    runtime.newFixnum(record.maj),
+                    runtime.newFixnum(record.min),
+                    runtime.newFixnum(record.position),
+                    runtime.newFloat(record.lastChangedAt),
+                    record.path == null ? context.nil : newString(runtime, record.path)
+                });
+            }));
+        } catch (IOException e) {
+            throw runtime.newIOErrorFromException(e);
+        }
+    }
+
+    @JRubyMethod(name = "put", required = 6)
+    public IRubyObject put(final ThreadContext context, final IRubyObject[] args) {
+        log.put(new SincedbLog.Record(
+                bytes(args[0]),
+                RubyNumeric.num2long(args[1]),
+                RubyNumeric.num2long(args[2]),
+                RubyNumeric.num2long(args[3]),
+                RubyNumeric.num2dbl(args[4]),
+                args[5].isNil() ? null : bytes(args[5])
+        ));
+        return context.nil;
+    }
+
+    @JRubyMethod(name = "delete")
+    public IRubyObject delete(final ThreadContext context, final IRubyObject inode, final IRubyObject maj, final IRubyObject min) {
+        log.delete(bytes(inode), RubyNumeric.num2long(maj), RubyNumeric.num2long(min));
+        return context.nil;
+    }
+
+    @JRubyMethod(name = "commit")
+    public IRubyObject commit(final ThreadContext context) {
+        try {
+            log.commit();
+        } catch (IOException e) {
+            throw context.runtime.newIOErrorFromException(e);
+        }
+        return context.nil;
+    }
+
+    /**
+     * The log does not keep the live records, once it holds too many stale ones the next commit rewrites it from
+     * the given index.
+     *
+     * @return true if the log is to be rewritten
+     */
+    @JRubyMethod(name = "compact_from")
+    public IRubyObject compact_from(final ThreadContext context, final IRubyObject index) {
+        final SincedbIndex sincedb = (SincedbIndex) index;
+        if (!log.compactionDue(sincedb.count())) return context.fals;
+        log.rewrite(sincedb.logRecords(context));
+        return context.tru;
+    }
+
+    private static byte[] bytes(final IRubyObject value) {
+        return value.convertToString().getByteList().bytes();
+    }
+
+    private static RubyString newString(final Ruby runtime, final byte[] bytes) {
+        return RubyString.newString(runtime, new ByteList(bytes, UTF8Encoding.INSTANCE, false));
+    }
+}
@@ -0,0 +1,331 @@
+package org.logstash.filewatch;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * A binary, append-only sincedb.
+ *
+ * The file starts with a magic header followed by records, each record is framed as
+ * <pre>[int length][payload][int crc32(payload)]</pre> where the payload is either a put (the full sincedb record)
+ * or a delete (the key only). Updates are buffered and appended on {@link #commit()}, only the records that changed
+ * since the last commit are written. The log does not hold the live records (the sincedb collection does): once the
+ * file holds a lot more records than there are live ones ({@link #compactionDue(int)}) the owner hands all of them to
+ * {@link #rewrite(Iterable)}, the next commit writes them to a temporary file which then replaces the log.
+ *
+ * A torn (partially written) tail is detected when loading, the log is then due to be rewritten.
+ * With fsync the appended records (the rewritten file) are forced to disk before commit returns.
+ *
+ * Instances are not thread-safe, access is expected to be guarded by the (Ruby) sincedb collection.
+ */
+public final class SincedbLog {
+
+    static final byte[] MAGIC = { 'F', 'W', 'S', 'D', 'B', '\n', 0, 1 }; // format version 1
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+
+    // records in the file before compaction is considered
+    private static final int MIN_COMPACT_RECORDS = 1024;
+
+    private final Path path;
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private int pendingRecords;
+    private ByteArrayOutputStream rewritten; // the whole log to be written (see rewrite)
+    private int rewrittenRecords;
+    private long fileRecords;
+    private boolean rewrite = true; // the file is not a log (yet) or its content can not be trusted
+    private final boolean fsync;
+
+    public SincedbLog(final Path path) {
+        this(path, true);
+    }
+
+    public SincedbLog(final Path path, final boolean fsync) {
+        this.path = path;
+        this.fsync = fsync;
+    }
+
+    /**
+     * A sincedb record, inode and path are raw bytes.
+     */
+    public static final class Record {
+        public final byte[] inode;
+        public final long maj;
+        public final long min;
+        public final long position;
+        public final double lastChangedAt;
+        public final byte[] path; // null when unknown
+
+        public Record(final byte[] inode, final long maj, final long min, final long position,
+                      final double lastChangedAt, final byte[] path) {
+            this.inode = inode;
+            this.maj = maj;
+            this.min = min;
+            this.position = position;
+            this.lastChangedAt = lastChangedAt;
+            this.path = path;
+        }
+    }
+
+    /**
+     * Reads the log, live records are passed to the consumer.
+     *
+     * @return false if the file is not a sincedb log (e.g. empty or in the text format), it is then fully written
+     *         on the next commit
+     */
+    public boolean load(final Consumer<Record> records) throws IOException {
+        clearPending();
+        fileRecords = 0;
+        rewrite = true;
+        if (!Files.exists(path)) return false;
+        final byte[] bytes = Files.readAllBytes(path);
+        if (bytes.length < MAGIC.length || !Arrays.equals(MAGIC, Arrays.copyOf(bytes, MAGIC.length))) {
+            return false;
+        }
+        // the live records are only held while loading
+        final Map<String, byte[]> live = new LinkedHashMap<>(); // key -> framed put record
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes, MAGIC.length, bytes.length - MAGIC.length);
+        boolean torn = false;
+        while (buffer.hasRemaining()) {
+            if (!replay(buffer, live)) {
+                torn = true;
+                break;
+            }
+            fileRecords++;
+        }
+        rewrite = torn;
+        final Record[] loaded = new Record[live.size()];
+        int i = 0;
+        for (final byte[] framed : live.values()) {
+            loaded[i++] = decode(framed);
+        }
+        live.clear();
+        for (final Record record : loaded) {
+            records.accept(record); // the consumer is free to put/delete
+        }
+        return true;
+    }
+
+    public void put(final Record record) {
+        append(frame(encodePut(record)));
+    }
+
+    /**
+     * A delete for a key that is not in the log is harmless (it is dropped once the log is rewritten).
+     */
+    public void delete(final byte[] inode, final long maj, final long min) {
+        append(frame(encodeDelete(inode, maj, min)));
+    }
+
+    /**
+     * @param live the number of live records
+     * @return whether the log is to be rewritten (with all live records) before the next commit
+     */
+    public boolean compactionDue(final int live) {
+        return rewritten == null &&
+            (rewrite || fileRecords + pendingRecords > Math.max(MIN_COMPACT_RECORDS, 2L * live));
+    }
+
+    /**
+     * The next commit writes the given (all live) records as the whole log, the updates buffered so far are dropped.
+     */
+    public void rewrite(final Iterable<Record> records) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(MAGIC.length + pending.size());
+        out.write(MAGIC, 0, MAGIC.length);
+        int count = 0;
+        for (final Record record : records) {
+            final byte[] framed = frame(encodePut(record));
+            out.write(framed, 0, framed.length);
+            count++;
+        }
+        clearPending();
+        rewritten = out;
+        rewrittenRecords = count;
+    }
+
+    private void rewritePending() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(MAGIC.length + pending.size());
+        out.write(MAGIC, 0, MAGIC.length);
+        out.write(pending.toByteArray(), 0, pending.size());
+        final int count = pendingRecords;
+        clearPending();
+        rewritten = out;
+        rewrittenRecords = count;
+    }
+
+    /**
+     * Appends the buffered updates to the file, or replaces the file with the rewritten log.
+     * When the log is due to be rewritten but was not given the live records, the file is replaced with the
+     * buffered updates only (e.g. a new log).
+     */
+    public void commit() throws IOException {
+        try {
+            if (rewritten == null && rewrite) rewritePending();
+            if (rewritten != null) {
+                replace();
+                return;
+            }
+            if (pendingRecords == 0) return;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                write(channel, pending.toByteArray());
+                if (fsync) channel.force(false);
+            }
+            fileRecords += pendingRecords;
+            clearPending();
+        } catch (IOException e) {
+            rewrite = true; // we do not know what made it to disk
+            rewritten = null; // the owner hands the live records again
+            throw e;
+        }
+    }
+
+    long fileRecords() {
+        return fileRecords;
+    }
+
+    private void replace() throws IOException {
+        final ByteArrayOutputStream content = rewritten;
+        final Path temp = path.resolveSibling(path.getFileName() + ".compact");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(channel, content.toByteArray());
+            if (fsync) channel.force(true);
+        }
+        SincedbFile.replace(temp, path);
+        fileRecords = rewrittenRecords;
+        rewritten = null;
+        rewrite = false;
+    }
+
+    private void append(final byte[] framed) {
+        pending.write(framed, 0, framed.length);
+        pendingRecords++;
+    }
+
+    private void clearPending() {
+        pending.reset();
+        pendingRecords = 0;
+        rewritten = null;
+    }
+
+    // @return false when the remaining bytes do not hold a complete (valid) record
+    private boolean replay(final ByteBuffer buffer, final Map<String, byte[]> live) throws IOException {
+        if (buffer.remaining() < Integer.BYTES) return false;
+        final int length = buffer.getInt();
+        if (length <= 0 || buffer.remaining() < length + Integer.BYTES) return false;
+        final byte[] payload = new byte[length];
+        buffer.get(payload);
+        if (buffer.getInt() != crc(payload, 0, length)) return false;
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        try {
+            final byte type = in.readByte();
+            final byte[] inode = readBytes(in);
+            final long maj = in.readLong();
+            final long min = in.readLong();
+            if (type == PUT) {
+                live.put(key(inode, maj, min), frame(payload));
+            } else if (type == DELETE) {
+                live.remove(key(inode, maj, min));
+            } else {
+                return false;
+            }
+        } catch (EOFException e) {
+            return false;
+        }
+        return true;
+    }
+
+    private static Record decode(final byte[] framed) throws IOException {
+        final DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(framed, Integer.BYTES, framed.length - 2 * Integer.BYTES));
+        in.readByte(); // PUT
+        final byte[] inode = readBytes(in);
+        final long maj = in.readLong();
+        final long min = in.readLong();
+        final long position = in.readLong();
+        final double lastChangedAt = in.readDouble();
+        final byte[] path = in.readBoolean() ? readBytes(in) : null;
+        return new Record(inode, maj, min, position, lastChangedAt, path);
+    }
+
+    private static byte[] encodePut(final Record record) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + (record.path == null ? 0 : record.path.length));
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(PUT);
+            writeBytes(out, record.inode);
+            out.writeLong(record.maj);
+            out.writeLong(record.min);
+            out.writeLong(record.position);
+            out.writeDouble(record.lastChangedAt);
+            out.writeBoolean(record.path != null);
+            if (record.path != null) writeBytes(out, record.path);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // not expected writing to memory
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeDelete(final byte[] inode, final long maj, final long min) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(DELETE);
+            writeBytes(out, inode);
+            out.writeLong(maj);
+            out.writeLong(min);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // not expected writing to memory
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] frame(final byte[] payload) {
+        final ByteBuffer framed = ByteBuffer.allocate(payload.length + 2 * Integer.BYTES);
+        framed.putInt(payload.length);
+        framed.put(payload);
+        framed.putInt(crc(payload, 0, payload.length));
+        return framed.array();
+    }
+
+    private static int crc(final byte[] bytes, final int offset, final int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private static void writeBytes(final DataOutputStream out, final byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(final DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0 || length > in.available()) throw new EOFException();
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static String key(final byte[] inode, final long maj, final long min) {
+        return new String(inode, StandardCharsets.ISO_8859_1) + ' ' + maj + ' ' + min;
+    }
+
+    private static void write(final FileChannel channel, final byte[] bytes) throws IOException {
+        SincedbFile.write(channel, ByteBuffer.wrap(bytes));
+    }
+}
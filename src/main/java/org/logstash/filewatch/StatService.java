@@ -0,0 +1,141 @@
+package org.logstash.filewatch;
+
+import jnr.posix.FileStat;
+import jnr.posix.NanosecondFileStat;
+import jnr.posix.POSIX;
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyClass;
+import org.jruby.RubyObject;
+import org.jruby.anno.JRubyClass;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * FileWatch::StatService stats a whole collection of watched files in one call.
+ *
+ * service = FileWatch::StatService.new(shared) # whether to share the stats (see {@link ScanCache}), false by default
+ * service.changed(watched_files) # => the watched files that need a (Ruby) restat
+ *
+ * A file is reported when its inode, device, size or modification time differ from the previous call, when its
+ * state changed in between, when it is seen for the first time or when it can not be stat-ed (the restat is then
+ * expected to raise). The stat buffer is re-used and the last known values are kept as primitives so nothing is
+ * allocated for the files that did not change. Files missing from the given collection are forgotten.
+ */
+@JRubyClass(name = "StatService")
+public class StatService extends RubyObject {
+
+    private Map<IRubyObject, Entry> entries = new IdentityHashMap<>();
+    private FileStat stat;
+    private boolean shared;
+    private long changedAt = System.nanoTime(); // when the previous call returned
+
+    public StatService(Ruby runtime, RubyClass metaClass) {
+        super(runtime, metaClass);
+    }
+
+    static void load(Ruby runtime) {
+        runtime.getOrCreateModule("FileWatch")
+               .defineClassUnder("StatService", runtime.getObject(), StatService::new)
+               .defineAnnotatedMethods(StatService.class);
+    }
+
+    @JRubyMethod(optional = 1)
+    public IRubyObject initialize(final ThreadContext context, final IRubyObject[] args) {
+        this.shared = args.length > 0 && args[0].isTrue();
+        return this;
+    }
+
+    @JRubyMethod(name = "changed")
+    public synchronized IRubyObject changed(final ThreadContext context, final IRubyObject watchedFiles) {
+        final Ruby runtime = context.runtime;
+        final POSIX posix = runtime.getPosix();
+        if (stat == null) stat = posix.allocateStat();
+        final long since = changedAt;
+        final RubyArray files = watchedFiles.convertToArray();
+        final RubyArray changed = runtime.newArray();
+        final Map<IRubyObject, Entry> seen = new IdentityHashMap<>(Math.max(16, files.size() * 2));
+        for (int i = 0; i < files.size(); i++) {
+            final IRubyObject watchedFile = files.eltInternal(i);
+            Entry entry = entries.get(watchedFile);
+            if (entry == null) {
+                entry = new Entry(watchedFile.callMethod(context, "path").asJavaString());
+            }
+            seen.put(watchedFile, entry);
+            final boolean stateChanged = entry.updateState(context, watchedFile);
+            final boolean statChanged = shared ? entry.update(ScanCache.stat(entry.path, since, posix, stat)) :
+                    entry.update(posix, stat);
+            if (statChanged || stateChanged) changed.append(watchedFile);
+        }
+        entries = seen;
+        changedAt = System.nanoTime();
+        return changed;
+    }
+
+    @JRubyMethod(name = "size")
+    public synchronized IRubyObject size(final ThreadContext context) {
+        return context.runtime.newFixnum(entries.size());
+    }
+
+    private static final class Entry {
+
+        private final String path;
+        private boolean known;
+        private IRubyObject state;
+        private long inode;
+        private long dev;
+        private long size;
+        private long mtime;
+        private long mtimeNanos;
+
+        Entry(final String path) {
+            this.path = path;
+        }
+
+        /**
+         * @return true if the state of the file changed since the previous update
+         */
+        boolean updateState(final ThreadContext context, final IRubyObject watchedFile) {
+            final IRubyObject currentState = watchedFile.callMethod(context, "state");
+            final boolean stateChanged = currentState != state;
+            state = currentState;
+            return stateChanged;
+        }
+
+        /**
+         * @return true if the file changed (or can not be stat-ed) since the previous update
+         */
+        boolean update(final POSIX posix, final FileStat stat) {
+            if (!ScanCache.Stat.stat(path, posix, stat)) {
+                known = false;
+                return true;
+            }
+            final long nanos = stat instanceof NanosecondFileStat ? ((NanosecondFileStat) stat).mTimeNanoSecs() : 0;
+            return update(stat.ino(), stat.dev(), stat.st_size(), stat.mtime(), nanos);
+        }
+
+        boolean update(final ScanCache.Stat stat) {
+            if (!stat.exists) {
+                known = false;
+                return true;
+            }
+            return update(stat.inode, stat.dev, stat.size, stat.mtime, stat.mtimeNanos);
+        }
+
+        private boolean update(final long inode, final long dev, final long size, final long mtime, final long mtimeNanos) {
+            final boolean changed = !known || inode != this.inode || dev != this.dev ||
+                    size != this.size || mtime != this.mtime || mtimeNanos != this.mtimeNanos;
+            known = true;
+            this.inode = inode;
+            this.dev = dev;
+            this.size = size;
+            this.mtime = mtime;
+            this.mtimeNanos = mtimeNanos;
+            return changed;
+        }
+    }
+}
@@ -17,8 +17,11 @@ import org.jruby.runtime.callsite.CachingCallSite;
 import org.jruby.runtime.callsite.FunctionalCachingCallSite;
 
 import java.util.Comparator;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
 
 /**
  * FileWatch::WatchedFilesCollection for managing paths mapped to (watched) files.
@@ -26,12 +29,19 @@ import java.util.TreeMap;
  * Implemented in native to avoid Ruby->Java type casting (which JRuby provides no control of as of 9.2).
  * The collection already has a noticeable footprint when 10_000s of files are being watched at once, having
  * the implementation in Java reduces 1000s of String conversions on every watch re-stat tick.
+ *
+ * Files are also indexed by their state (kept up to date by FileWatch::WatchedFile#set_state) so processing
+ * the files in a given state does not need to go over the whole collection.
+ *
+ * The sort keys (path and modified_at) are cached with each file, comparing files does not call back into Ruby.
  */
 public class WatchedFilesCollection extends RubyObject {
 
     // we could have used Ruby's SortedSet but it does not provide support for custom comparators
-    private SortedMap<IRubyObject, RubyString> files; // FileWatch::WatchedFile -> String
+    private SortedSet<Entry> files;
+    private Map<IRubyObject, Entry> entries; // FileWatch::WatchedFile -> Entry
     private RubyHash filesInverse; // String -> FileWatch::WatchedFile
+    private Map<IRubyObject, SortedSet<Entry>> stateFiles; // Symbol -> Entry(s)
     private String sortBy;
 
     public WatchedFilesCollection(Ruby runtime, RubyClass metaClass) {
@@ -49,23 +59,21 @@ public class WatchedFilesCollection extends RubyObject {
         final String sort_by = settings.callMethod(context, "file_sort_by").asJavaString();
         final String sort_direction = settings.callMethod(context, "file_sort_direction").asJavaString();
 
-        Comparator<IRubyObject> comparator;
+        Comparator<Entry> comparator;
         switch (sort_by) {
             case "last_modified" :
                 sortBy = "modified_at";
-                comparator = (file1, file2) -> {
-                    if (file1 == file2) return 0; // fast shortcut
-                    RubyFloat mtime1 = modified_at(context, file1);
-                    RubyFloat mtime2 = modified_at(context, file2);
-                    int cmp = Double.compare(mtime1.getDoubleValue(), mtime2.getDoubleValue());
+                comparator = (entry1, entry2) -> {
+                    if (entry1 == entry2) return 0; // fast shortcut
+                    int cmp = Double.compare(entry1.modifiedAt, entry2.modifiedAt);
                     // if mtime same (rare unless file1 == file2) - order consistently
-                    if (cmp == 0) return path(context, file1).op_cmp(path(context, file2));
+                    if (cmp == 0) return entry1.comparePath(entry2);
                     return cmp;
                 };
                 break;
             case "path" :
                 sortBy = "path";
-                comparator = (file1, file2) -> path(context, file1).op_cmp(path(context, file2));
+                comparator = Entry::comparePath;
                 break;
             default :
                 throw context.runtime.newArgumentError("sort_by: '" + sort_by + "' not supported");
@@ -81,8 +89,10 @@ public class WatchedFilesCollection extends RubyObject {
                 throw context.runtime.newArgumentError("sort_direction: '" + sort_direction + "' not supported");
         }
 
-        this.files = new TreeMap<>(comparator);
+        this.files = new TreeSet<>(comparator);
+        this.entries = new IdentityHashMap<>();
         this.filesInverse = RubyHash.newHash(context.runtime);
+        this.stateFiles = new HashMap<>();
 
         // variableTableStore("@files", JavaUtil.convertJavaToRuby(context.runtime, this.files));
         // variableTableStore("@files_inverse", this.filesInverse);
@@ -93,10 +103,22 @@ public class WatchedFilesCollection extends RubyObject {
     @JRubyMethod
     public IRubyObject add(ThreadContext context, IRubyObject file) {
         RubyString path = getFilePath(context, file);
+        final double modifiedAt = sortsByModifiedAt() ? modified_at(context, file).getDoubleValue() : 0;
         synchronized (this) {
-            RubyString prev_path = this.files.put(file, path);
-            assert prev_path == null || path.equals(prev_path); // file's path should not change!
+            final Entry prev = this.entries.get(file);
+            if (prev != null) {
+                assert path.equals(prev.path); // file's path should not change!
+                removeEntry(prev);
+            }
+            final IRubyObject prev_file = this.filesInverse.fastARef(path);
+            if (prev_file != null && this.entries.containsKey(prev_file)) removeEntry(this.entries.get(prev_file));
+
+            final Entry entry = new Entry(file, path, modifiedAt);
+            this.entries.put(file, entry);
+            this.files.add(entry);
             this.filesInverse.op_aset(context, path, file);
+            indexState(entry, file.callMethod(context, "state"));
+            file.callMethod(context, "watched_files_collection=", this);
         }
         return path;
     }
@@ -131,7 +153,61 @@ public class WatchedFilesCollection extends RubyObject {
     private boolean removePath(ThreadContext context, RubyString path) {
         IRubyObject file = this.filesInverse.delete(context, path, Block.NULL_BLOCK);
         if (file.isNil()) return false;
-        return this.files.remove(file) != null;
+        final Entry entry = this.entries.get(file);
+        if (entry == null) return false;
+        removeEntry(entry);
+        if (file.callMethod(context, "watched_files_collection") == this) {
+            file.callMethod(context, "watched_files_collection=", context.nil);
+        }
+        return true;
+    }
+
+    private void removeEntry(final Entry entry) {
+        unindexState(entry);
+        this.files.remove(entry);
+        this.entries.remove(entry.file);
+    }
+
+    /**
+     * Called on a file's state transition (from FileWatch::WatchedFile#set_state).
+     */
+    @JRubyMethod
+    public synchronized IRubyObject update_state(ThreadContext context, IRubyObject file, IRubyObject state) {
+        final Entry entry = this.entries.get(file);
+        if (entry != null) indexState(entry, state);
+        return context.nil;
+    }
+
+    // NOTE: ordered as the collection
+    @JRubyMethod
+    public IRubyObject files_with_state(ThreadContext context, IRubyObject state) {
+        IRubyObject[] keys;
+        synchronized (this) {
+            final SortedSet<Entry> set = this.stateFiles.get(state);
+            keys = set == null ? IRubyObject.NULL_ARRAY : set.stream().map(entry -> entry.file).toArray(IRubyObject[]::new);
+        }
+        return context.runtime.newArrayNoCopy(keys);
+    }
+
+    @JRubyMethod
+    public synchronized IRubyObject count_with_state(ThreadContext context, IRubyObject state) {
+        final SortedSet<Entry> set = this.stateFiles.get(state);
+        return context.runtime.newFixnum(set == null ? 0 : set.size());
+    }
+
+    private void indexState(final Entry entry, final IRubyObject state) {
+        if (entry.state == state && state != null) return;
+        unindexState(entry);
+        if (state.isNil()) return;
+        entry.state = state;
+        this.stateFiles.computeIfAbsent(state, (key) -> new TreeSet<>(this.files.comparator())).add(entry);
+    }
+
+    private void unindexState(final Entry entry) {
+        if (entry.state == null) return;
+        final SortedSet<Entry> set = this.stateFiles.get(entry.state);
+        if (set != null) set.remove(entry);
+        entry.state = null;
     }
 
     @JRubyMethod // synchronize { @files_inverse[path] }
@@ -139,6 +215,11 @@ public class WatchedFilesCollection extends RubyObject {
         return this.filesInverse.op_aref(context, path);
     }
 
+    // used by PathFinder, without calling back into Ruby
+    synchronized boolean contains(ThreadContext context, RubyString path) {
+        return !this.filesInverse.op_aref(context, path).isNil();
+    }
+
     @JRubyMethod // synchronize { @files.size }
     public synchronized IRubyObject size(ThreadContext context) {
         return context.runtime.newFixnum(this.files.size());
@@ -151,8 +232,8 @@ public class WatchedFilesCollection extends RubyObject {
 
     @JRubyMethod
     public synchronized IRubyObject each_file(ThreadContext context, Block block) {
-        for (IRubyObject watched_file : this.files.keySet()) {
-            block.yield(context, watched_file);
+        for (Entry entry : this.files) {
+            block.yield(context, entry.file);
         }
         return context.nil;
     }
@@ -161,7 +242,7 @@ public class WatchedFilesCollection extends RubyObject {
     public IRubyObject paths(ThreadContext context) {
         IRubyObject[] values;
         synchronized (this) {
-            values = this.files.values().stream().toArray(IRubyObject[]::new);
+            values = this.files.stream().map(entry -> entry.path).toArray(IRubyObject[]::new);
         }
         return context.runtime.newArrayNoCopy(values);
     }
@@ -171,28 +252,58 @@ public class WatchedFilesCollection extends RubyObject {
     public IRubyObject files(ThreadContext context) {
         IRubyObject[] keys;
         synchronized (this) {
-            keys = this.files.keySet().stream().toArray(IRubyObject[]::new);
+            keys = this.files.stream().map(entry -> entry.file).toArray(IRubyObject[]::new);
         }
         return context.runtime.newArrayNoCopy(keys);
     }
 
-
     @JRubyMethod
     public IRubyObject update(ThreadContext context, IRubyObject file) {
         // NOTE: modified_at might change on restat - to cope with that we need to potentially
         // update the sorted collection, on such changes (when file_sort_by: last_modified) :
-        if (!"modified_at".equals(sortBy)) return context.nil;
+        if (!sortsByModifiedAt()) return context.nil;
 
-        RubyString path = getFilePath(context, file);
+        final double modifiedAt = modified_at(context, file, context.tru).getDoubleValue(); // file.modified_at(update: true)
         synchronized (this) {
-            this.files.remove(file); // we need to "re-sort" changed file -> remove and add it back
-            modified_at(context, file, context.tru); // file.modified_at(update: true)
-            RubyString prev_path = this.files.put(file, path);
-            assert prev_path == null;
+            resort(file, modifiedAt);
         }
         return context.tru;
     }
 
+    /**
+     * Same as calling update for each of the given files, re-sorts them at once.
+     */
+    @JRubyMethod
+    public IRubyObject update_all(ThreadContext context, IRubyObject files) {
+        if (!sortsByModifiedAt()) return context.nil;
+
+        final RubyArray array = files.convertToArray();
+        final double[] modifiedAt = new double[array.size()];
+        for (int i = 0; i < modifiedAt.length; i++) {
+            modifiedAt[i] = modified_at(context, array.eltInternal(i), context.tru).getDoubleValue();
+        }
+        synchronized (this) {
+            for (int i = 0; i < modifiedAt.length; i++) resort(array.eltInternal(i), modifiedAt[i]);
+        }
+        return context.tru;
+    }
+
+    private void resort(final IRubyObject file, final double modifiedAt) {
+        final Entry entry = this.entries.get(file);
+        if (entry == null || entry.modifiedAt == modifiedAt) return;
+        // we need to "re-sort" changed file -> remove and add it back
+        final IRubyObject state = entry.state;
+        unindexState(entry);
+        this.files.remove(entry);
+        entry.modifiedAt = modifiedAt;
+        this.files.add(entry);
+        if (state != null) indexState(entry, state);
+    }
+
+    private boolean sortsByModifiedAt() {
+        return "modified_at".equals(sortBy);
+    }
+
     @JRubyMethod(required = 1, visibility = Visibility.PRIVATE)
     @Override
     public IRubyObject initialize_copy(IRubyObject original) {
@@ -203,9 +314,18 @@ public class WatchedFilesCollection extends RubyObject {
 
         WatchedFilesCollection proto = (WatchedFilesCollection) original;
 
-        this.files = new TreeMap<>(proto.files.comparator());
+        this.sortBy = proto.sortBy;
+        this.files = new TreeSet<>(proto.files.comparator());
+        this.entries = new IdentityHashMap<>();
+        this.stateFiles = new HashMap<>();
         synchronized (proto) {
-            this.files.putAll(proto.files);
+            // entries are mutable (re-sorted in place), the copy gets its own
+            for (final Entry protoEntry : proto.files) {
+                final Entry entry = new Entry(protoEntry.file, protoEntry.path, protoEntry.modifiedAt);
+                this.entries.put(entry.file, entry);
+                this.files.add(entry);
+                if (protoEntry.state != null) indexState(entry, protoEntry.state);
+            }
             this.filesInverse = (RubyHash) proto.filesInverse.dup(runtime.getCurrentContext());
         }
 
@@ -218,11 +338,6 @@ public class WatchedFilesCollection extends RubyObject {
     }
 
     private static final CachingCallSite modified_at_site = new FunctionalCachingCallSite("modified_at");
-    private static final CachingCallSite path_site = new FunctionalCachingCallSite("path");
-
-    private static RubyString path(ThreadContext context, IRubyObject watched_file) {
-        return path_site.call(context, watched_file, watched_file).convertToString();
-    }
 
     private static RubyFloat modified_at(ThreadContext context, IRubyObject watched_file) {
         return modified_at_site.call(context, watched_file, watched_file).convertToFloat();
@@ -232,4 +347,25 @@ public class WatchedFilesCollection extends RubyObject {
         return modified_at_site.call(context, watched_file, watched_file, update).convertToFloat();
     }
 
+    /**
+     * A watched file along with its (cached) sort keys and state.
+     */
+    private static final class Entry {
+
+        final IRubyObject file; // FileWatch::WatchedFile
+        final RubyString path; // frozen
+        double modifiedAt;
+        IRubyObject state; // Symbol (the state indexed under)
+
+        Entry(final IRubyObject file, final RubyString path, final double modifiedAt) {
+            this.file = file;
+            this.path = path;
+            this.modifiedAt = modifiedAt;
+        }
+
+        int comparePath(final Entry other) {
+            return this.path.getByteList().cmp(other.path.getByteList());
+        }
+    }
+
 }
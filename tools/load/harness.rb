@@ -0,0 +1,311 @@
+# encoding: utf-8
+$LOAD_PATH.unshift(File.expand_path("../../lib", __dir__))
+require "json"
+require "tmpdir"
+require "logstash/util/loggable"
+require "filewatch/bootstrap"
+require_relative "writers"
+
+module FileWatch module Load
+  # Drives FileWatch (ObservingTail / ObservingRead, as the file input does) against synthetic writers and reports
+  # throughput, write-to-accept latency, heap and GC usage and the watch metrics (phase timings) as JSON, to compare
+  # releases with. See the `load_test` rake task for the options (environment variables).
+  #
+  # tail mode: the writers append to the files for `duration` seconds (rotating them if asked to), the harness then
+  # waits (up to `drain` seconds) for every line written to be accepted.
+  # read mode: the files (and gzip archives) are written first, the watch exits once all of them are read. The latency
+  # then includes the time the lines waited before the watch started.
+  class Harness
+    DEFAULTS = {
+      :mode => "tail",
+      :files => 100,
+      :line_size => 200,
+      :rate => 100,         # lines per second per file (tail mode), 0 for as fast as possible
+      :duration => 30,      # seconds the writers run (tail mode)
+      :drain => 30,         # seconds to wait for the lines written to be accepted
+      :rotation => "none",  # tail mode: "none", "rename" or "copytruncate"
+      :rotate_bytes => 1024 * 1024,
+      :lines => 10_000,     # lines per file (read mode)
+      :gzip => 0,           # gzip archives, besides the files (read mode)
+      :writers => 4,        # writer threads (tail mode)
+      :stat_interval => 1,
+      :options => {},       # FileWatch settings, e.g. {"read_workers": 4}
+      :output => nil,       # the JSON report, build/reports/load/<mode>-<time>.json by default
+    }
+    LATENCY_SAMPLES = 100_000
+    HEAP_SAMPLE_INTERVAL = 0.1
+
+    def self.from_env(env)
+      config = DEFAULTS.each_with_object({}) do |(key, default), options|
+        value = env[key.to_s.upcase]
+        options[key] =
+          if value.nil? then default
+          elsif default.is_a?(Integer) then Integer(value)
+          elsif default.is_a?(Hash) then JSON.parse(value)
+          else value
+          end
+      end
+      new(config)
+    end
+
+    def initialize(config)
+      @config = DEFAULTS.merge(config)
+      @recorder = Recorder.new(LATENCY_SAMPLES)
+    end
+
+    # @return [Hash] the report (also written to the output file)
+    def run
+      Dir.mktmpdir("filewatch-load") do |dir|
+        @dir = dir
+        heap = HeapSampler.new(HEAP_SAMPLE_INTERVAL).start
+        gc = GcStats.new
+        report = @config[:mode] == "read" ? run_read : run_tail
+        report[:heap] = heap.stop
+        report[:gc] = gc.delta
+        write(report)
+      end
+    end
+
+    private
+
+    def run_tail
+      paths = (0...@config[:files]).map { |i| File.join(@dir, "file-#{i}.log") }
+      paths.each { |path| FileUtils.touch(path) }
+      # renamed files keep being read (as `<path>.1`), copies of truncated ones are not (they would be read again)
+      glob = @config[:rotation] == "rename" ? "*.log*" : "*.log"
+      watch = ObservingTail.new(watch_options(:start_new_files_at => :beginning))
+      watch.watch_this(File.join(@dir, glob))
+      started = Time.now
+      thread = Thread.new { watch.subscribe(@recorder) }
+      slices = paths.each_slice((paths.size.to_f / @config[:writers]).ceil).to_a
+      writers = slices.map do |slice|
+        Writer.new(slice, @config[:line_size], @config[:rate], @config[:rotation], @config[:rotate_bytes]).start(@config[:duration])
+      end
+      writers.each(&:join)
+      written = writers.map(&:lines_written).inject(0, :+)
+      drain(written)
+      elapsed = Time.now - started
+      watch.quit
+      thread.join
+      report(watch, elapsed, written, writers.map(&:bytes_written).inject(0, :+),
+             :rotations => writers.map(&:rotations).inject(0, :+))
+    end
+
+    def run_read
+      plain = (0...@config[:files]).map { |i| [File.join(@dir, "file-#{i}.log"), false] }
+      archives = (0...@config[:gzip]).map { |i| [File.join(@dir, "archive-#{i}.log.gz"), true] }
+      bytes = (plain + archives).map { |path, gzip| Archive.write(path, @config[:lines], @config[:line_size], gzip) }
+      written = (plain.size + archives.size) * @config[:lines]
+      watch = ObservingRead.new(watch_options(:exit_after_read => true))
+      watch.watch_this(File.join(@dir, "*.log"))
+      watch.watch_this(File.join(@dir, "*.log.gz")) unless archives.empty?
+      started = Time.now
+      thread = Thread.new { watch.subscribe(@recorder) }
+      drain(written) { !thread.alive? }
+      elapsed = Time.now - started
+      watch.quit
+      thread.join
+      report(watch, elapsed, written, bytes.inject(0, :+), :archives => archives.size)
+    end
+
+    def watch_options(options)
+      settings = @config[:options].each_with_object({}) { |(key, value), all| all[key.to_sym] = value }
+      {
+        :sincedb_path => File.join(@dir, "sincedb"),
+        :stat_interval => @config[:stat_interval],
+        :discover_interval => 5,
+      }.merge(settings).merge(options)
+    end
+
+    # waits for the lines written to be accepted (or for the block to return true)
+    def drain(written)
+      deadline = Time.now + @config[:drain]
+      until @recorder.lines >= written || Time.now > deadline
+        break if block_given? && yield
+        sleep(0.05)
+      end
+    end
+
+    def report(watch, elapsed, written, bytes_written, details)
+      lines, bytes = @recorder.lines, @recorder.bytes
+      {
+        :version => File.read(File.expand_path("../../version", __dir__)).split("\n").first,
+        :jar_version => File.read(File.expand_path("../../JAR_VERSION", __dir__)).strip,
+        :ruby => "#{RUBY_ENGINE} #{defined?(JRUBY_VERSION) ? JRUBY_VERSION : RUBY_VERSION}",
+        :java => java_version,
+        :config => @config.reject { |key, _| key == :output },
+        :elapsed_seconds => elapsed.round(3),
+        :lines_written => written,
+        :bytes_written => bytes_written,
+        :lines_accepted => lines,
+        :bytes_accepted => bytes,
+        :lines_per_second => (lines / elapsed).round(1),
+        :bytes_per_second => (bytes / elapsed).round(1),
+        :latency_millis => @recorder.latency_percentiles,
+        :metrics => watch_metrics(watch),
+      }.merge(details)
+    end
+
+    # the phase (tick) timings, discovery, sincedb writes ...
+    def watch_metrics(watch)
+      watch.watch.instance_variable_get(:@settings).metrics.snapshot
+    end
+
+    def java_version
+      defined?(JRUBY_VERSION) ? java.lang.System.getProperty("java.version") : nil
+    end
+
+    def write(report)
+      json = JSON.pretty_generate(report)
+      output = @config[:output] ||
+               File.expand_path("../../build/reports/load/#{@config[:mode]}-#{Time.now.strftime('%Y%m%d-%H%M%S')}.json", __dir__)
+      FileUtils.mkdir_p(File.dirname(output))
+      File.write(output, json)
+      puts(json)
+      $stderr.puts("load report written to #{output}")
+      report
+    end
+  end
+
+  # The observer of the watch: counts the lines accepted and samples how long after being written they were.
+  class Recorder
+    attr_reader :lines, :bytes
+
+    class Listener
+      def initialize(recorder)
+        @recorder = recorder
+      end
+
+      def accept(line)
+        @recorder.accepted([line])
+      end
+
+      def accept_lines(lines)
+        if block_given?
+          accepted = 0
+          lines.each do |line|
+            accepted += 1
+            break if yield
+          end
+          lines = lines.first(accepted)
+        end
+        @recorder.accepted(lines)
+        lines.size
+      end
+
+      def opened; end
+      def eof; end
+      def error; end
+      def deleted; end
+      def timed_out; end
+      def reading_completed; end
+    end
+
+    def initialize(samples)
+      @samples = samples
+      @latencies = []
+      @seen = 0
+      @lines = @bytes = 0
+      @mutex = Mutex.new
+      @listener = Listener.new(self)
+    end
+
+    def listener_for(path)
+      @listener
+    end
+
+    def accepted(lines)
+      now = Lines.now_nanos
+      @mutex.synchronize do
+        lines.each do |line|
+          @lines += 1
+          @bytes += line.bytesize + 1 # the delimiter
+          sample(now - Lines.written_at(line))
+        end
+      end
+    end
+
+    def latency_percentiles
+      sorted = @mutex.synchronize { @latencies.sort }
+      return {} if sorted.empty?
+      at = lambda { |p| (sorted[[(p * sorted.size).ceil - 1, 0].max] / 1_000_000.0).round(3) }
+      { :samples => sorted.size, :p50 => at.(0.5), :p90 => at.(0.9), :p99 => at.(0.99), :p999 => at.(0.999),
+        :max => (sorted.last / 1_000_000.0).round(3) }
+    end
+
+    private
+
+    # reservoir sampling, every line has the same chance to be in the samples
+    def sample(nanos)
+      @seen += 1
+      if @latencies.size < @samples
+        @latencies << nanos
+      else
+        slot = rand(@seen)
+        @latencies[slot] = nanos if slot < @samples
+      end
+    end
+  end
+
+  # The heap used (sampled) while the load runs.
+  class HeapSampler
+    def initialize(interval)
+      @interval = interval
+      @peak = 0
+    end
+
+    def start
+      @start = used
+      @thread = Thread.new do
+        loop do
+          value = used
+          @peak = value if value > @peak
+          sleep(@interval)
+        end
+      end
+      self
+    end
+
+    # @return the heap used at the start, at the end and at its peak, in bytes
+    def stop
+      @thread.kill
+      usage = memory.getHeapMemoryUsage
+      { :start_bytes => @start, :end_bytes => usage.getUsed, :peak_bytes => [@peak, usage.getUsed].max,
+        :committed_bytes => usage.getCommitted, :max_bytes => usage.getMax }
+    end
+
+    private
+
+    def used
+      memory.getHeapMemoryUsage.getUsed
+    end
+
+    def memory
+      java.lang.management.ManagementFactory.getMemoryMXBean
+    end
+  end
+
+  # The collections (and the time they took) of each garbage collector since created.
+  class GcStats
+    def initialize
+      @start = current
+    end
+
+    def delta
+      current.each_with_object({}) do |(name, (count, millis)), delta|
+        start_count, start_millis = @start.fetch(name, [0, 0])
+        delta[name] = { :count => count - start_count, :time_millis => millis - start_millis }
+      end
+    end
+
+    private
+
+    def current
+      java.lang.management.ManagementFactory.getGarbageCollectorMXBeans.each_with_object({}) do |bean, all|
+        all[bean.getName] = [bean.getCollectionCount, bean.getCollectionTime]
+      end
+    end
+  end
+end end
+
+FileWatch::Load::Harness.from_env(ENV).run if $PROGRAM_NAME == __FILE__
@@ -0,0 +1,142 @@
+# encoding: utf-8
+require "fileutils"
+require "zlib"
+
+module FileWatch module Load
+  # Lines carry the (monotonic) time they were written at and a sequence number, padded to the configured size, so
+  # the harness can tell how long a line took to be accepted.
+  module Lines
+    extend self
+
+    def now_nanos
+      Process.clock_gettime(Process::CLOCK_MONOTONIC, :nanosecond)
+    end
+
+    # @return the line, newline included, of at least line_size bytes
+    def line(sequence, line_size)
+      prefix = "#{now_nanos} #{sequence} "
+      padding = line_size - prefix.bytesize - 1
+      padding > 0 ? "#{prefix}#{'x' * padding}\n" : "#{prefix}\n"
+    end
+
+    # @return the nanos the line was written at (see #line)
+    def written_at(line)
+      line.to_i
+    end
+  end
+
+  # Appends lines to a slice of the files on a thread of its own, `rate` lines per second to each file (as fast as
+  # it can with a rate of 0). A file is rotated once it holds `rotate_bytes`:
+  # - "rename" moves it to `<path>.1` (replacing the previous one) and starts a new file
+  # - "copytruncate" copies it to `<path>.1` and truncates it, lines written in between are lost (as in logrotate)
+  class Writer
+    # lines written to each file in a pass when not rate limited
+    BURST = 100
+    TICK = 0.01
+
+    attr_reader :lines_written, :bytes_written, :rotations
+
+    def initialize(paths, line_size, rate, rotation = "none", rotate_bytes = 0)
+      @paths = paths
+      @line_size = line_size
+      @rate = rate
+      @rotation = rotation
+      @rotate_bytes = rotate_bytes
+      @io = {}
+      @sizes = Hash.new(0)
+      @lines_written = @bytes_written = @rotations = 0
+      @sequence = 0
+      @stopped = false
+    end
+
+    def start(duration)
+      @thread = Thread.new do
+        Thread.current.name = "load-writer" if Thread.current.respond_to?(:name=)
+        run(duration)
+      end
+      self
+    end
+
+    def stop
+      @stopped = true
+      join
+    end
+
+    def join
+      @thread.join if @thread
+      @io.each_value(&:close)
+      @io.clear
+    end
+
+    private
+
+    def run(duration)
+      started = Time.now
+      per_file = 0
+      until @stopped || (elapsed = Time.now - started) >= duration
+        due = @rate.zero? ? BURST : (elapsed * @rate).to_i - per_file
+        if due <= 0
+          sleep(TICK)
+          next
+        end
+        @paths.each { |path| write(path, due) }
+        per_file += due
+      end
+    end
+
+    def write(path, count)
+      chunk = String.new
+      count.times { chunk << Lines.line(@sequence += 1, @line_size) }
+      io(path).write(chunk)
+      io(path).flush
+      @lines_written += count
+      @bytes_written += chunk.bytesize
+      @sizes[path] += chunk.bytesize
+      rotate(path) if @rotation != "none" && @sizes[path] >= @rotate_bytes
+    end
+
+    def io(path)
+      @io[path] ||= File.open(path, "a")
+    end
+
+    def rotate(path)
+      rotated = "#{path}.1"
+      if @rotation == "copytruncate"
+        FileUtils.cp(path, rotated)
+        File.truncate(path, 0)
+      else
+        @io.delete(path).close
+        File.rename(path, rotated)
+      end
+      @sizes[path] = 0
+      @rotations += 1
+    end
+  end
+
+  # Writes the files read (read mode) before the watch starts.
+  module Archive
+    extend self
+
+    # @return the bytes written
+    def write(path, lines, line_size, gzip = false)
+      chunk = String.new
+      bytes = 0
+      open(path, gzip) do |io|
+        lines.times do |sequence|
+          chunk << Lines.line(sequence, line_size)
+          next if chunk.bytesize < 1024 * 1024
+          bytes += io.write(chunk)
+          chunk.clear
+        end
+        bytes += io.write(chunk)
+      end
+      bytes
+    end
+
+    private
+
+    def open(path, gzip, &block)
+      gzip ? Zlib::GzipWriter.open(path, &block) : File.open(path, "w", &block)
+    end
+  end
+end end